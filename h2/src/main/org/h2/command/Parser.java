@@ -5886,6 +5886,17 @@ public class Parser {
                 }
 
             }
+            if (readIf(WITH)) {
+                read(OPEN_PAREN);
+                read("FILLFACTOR");
+                read(EQUAL);
+                int fillFactor = readNonNegativeInt();
+                if (fillFactor < 50 || fillFactor > 100) {
+                    throw DbException.getInvalidValueException("FILLFACTOR", fillFactor);
+                }
+                command.setFillFactor(fillFactor);
+                read(CLOSE_PAREN);
+            }
             command.setHash(hash);
             command.setSpatial(spatial);
             return command;
@@ -30,6 +30,7 @@ public class CreateIndex extends SchemaCommand {
     private boolean ifTableExists;
     private boolean ifNotExists;
     private String comment;
+    private int fillFactor;
 
     public CreateIndex(Session session, Schema schema) {
         super(session, schema);
@@ -103,6 +104,7 @@ public class CreateIndex extends SchemaCommand {
         } else {
             indexType = IndexType.createNonUnique(persistent, hash, spatial);
         }
+        indexType.setFillFactor(fillFactor);
         IndexColumn.mapColumns(indexColumns, table);
         table.addIndex(session, indexName, id, indexColumns, indexType, create,
                 comment);
@@ -133,6 +135,10 @@ public class CreateIndex extends SchemaCommand {
         this.comment = comment;
     }
 
+    public void setFillFactor(int fillFactor) {
+        this.fillFactor = fillFactor;
+    }
+
     @Override
     public int getType() {
         return CommandInterface.CREATE_INDEX;
@@ -22,6 +22,8 @@ import org.h2.expression.ExpressionColumn;
 import org.h2.expression.ExpressionVisitor;
 import org.h2.expression.Parameter;
 import org.h2.expression.Wildcard;
+import org.h2.expression.aggregate.Aggregate;
+import org.h2.expression.aggregate.AggregateType;
 import org.h2.expression.analysis.DataAnalysisOperation;
 import org.h2.expression.analysis.Window;
 import org.h2.expression.condition.Comparison;
@@ -51,6 +53,7 @@ import org.h2.util.ColumnNamer;
 import org.h2.util.StringUtils;
 import org.h2.util.Utils;
 import org.h2.value.Value;
+import org.h2.value.ValueLong;
 import org.h2.value.ValueNull;
 import org.h2.value.ValueRow;
 
@@ -142,7 +145,14 @@ public class Select extends Query {
     private boolean isWindowQuery;
     private boolean isForUpdate, isForUpdateMvcc;
     private double cost;
-    private boolean isQuickAggregateQuery, isDistinctQuery;
+    private boolean isQuickAggregateQuery, isRangeCountQuery, isDistinctQuery;
+
+    /**
+     * Whether the condition only consists of the index conditions of the
+     * single table filter, so that the rows in the range can be counted and
+     * skipped without reading them.
+     */
+    private boolean isRangeCondition;
     private boolean isPrepared, checkInit;
     private boolean sortUsingIndex;
 
@@ -731,7 +741,13 @@ public class Select extends Query {
         int sampleSize = getSampleSizeValue(session);
         LazyResultQueryFlat lazyResult = new LazyResultQueryFlat(expressionArray, columnCount, sampleSize,
                 isForUpdateMvcc);
-        skipOffset(lazyResult, offset, quickOffset);
+        if (quickOffset && offset > 0 && sampleSize <= 0 && isRangeCondition && topTableFilter.isPositionalRange()) {
+            // skip the rows using their position in the index
+            topTableFilter.setOffset(offset);
+            lazyResult.rowNumber = offset;
+        } else {
+            skipOffset(lazyResult, offset, quickOffset);
+        }
         if (result == null) {
             return lazyResult;
         }
@@ -765,6 +781,26 @@ public class Select extends Query {
         }
     }
 
+    private boolean isCountAll() {
+        ExpressionVisitor visitor = ExpressionVisitor.getOptimizableVisitor(topTableFilter.getTable());
+        for (Expression e : expressions) {
+            e = e.getNonAliasExpression();
+            if (!(e instanceof Aggregate) || ((Aggregate) e).getAggregateType() != AggregateType.COUNT_ALL
+                    || !e.isEverything(visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void queryRangeCount(int columnCount, ResultTarget result, boolean skipResult) {
+        Value[] row = new Value[columnCount];
+        Arrays.fill(row, ValueLong.get(topTableFilter.getRowCountInRange()));
+        if (!skipResult) {
+            result.addRow(row);
+        }
+    }
+
     private void queryQuick(int columnCount, ResultTarget result, boolean skipResult) {
         Value[] row = new Value[columnCount];
         for (int i = 0; i < columnCount; i++) {
@@ -866,6 +902,8 @@ public class Select extends Query {
             try {
                 if (isQuickAggregateQuery) {
                     queryQuick(columnCount, to, quickOffset && offset > 0);
+                } else if (isRangeCountQuery && topTableFilter.isPositionalRange()) {
+                    queryRangeCount(columnCount, to, quickOffset && offset > 0);
                 } else if (isWindowQuery) {
                     if (isGroupQuery) {
                         queryGroupWindow(columnCount, result, offset, quickOffset);
@@ -1264,6 +1302,15 @@ public class Select extends Query {
             isQuickAggregateQuery = isEverything(ExpressionVisitor.getOptimizableVisitor(filters.get(0).getTable()));
         }
         cost = preparePlan(session.isParsingCreateView());
+        if (filters.size() == 1 && (condition == null
+                || condition.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR)
+                && ConditionAndOr.getComparisonCount(condition) == topTableFilter.getIndexConditions().size())) {
+            isRangeCondition = true;
+            if (isGroupQuery && groupIndex == null && havingIndex < 0 && qualifyIndex < 0 && !isWindowQuery
+                    && condition != null) {
+                isRangeCountQuery = isCountAll();
+            }
+        }
         if (distinct && session.getDatabase().getSettings().optimizeDistinct &&
                 !isGroupQuery && filters.size() == 1 &&
                 expressions.size() == 1 && condition == null) {
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2004-2019 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.compress;
+
+/**
+ * <p>
+ * This class implements a compressor that uses the LZ4 block format. LZ4 is a
+ * Lempel-Ziv variant with byte-aligned output, similar to LZF, but it allows
+ * longer back-references and longer literal runs, which usually makes it both
+ * faster and slightly better than LZF.
+ * </p>
+ * <p>
+ * Safety/Use Notes:
+ * </p>
+ * <ul>
+ * <li>Each instance should be used by a single thread only (for compression;
+ * expansion does not use any state).</li>
+ * <li>The data buffers should be smaller than 1 GB.</li>
+ * <li>Invalid compressed data can cause an ArrayIndexOutOfBoundsException.</li>
+ * </ul>
+ * <p>
+ * The compressed data is a sequence of blocks. Each block starts with a token
+ * byte: the highest four bits are the number of literals, and the lowest four
+ * bits are the back-reference length minus 4. If four bits are not enough, 15
+ * is stored, and the remaining length follows as a sequence of bytes (255
+ * means another byte follows). After the literal length come the literals,
+ * then the back-reference offset (two bytes, little endian), then the
+ * remaining back-reference length. The last block only contains literals.
+ * </p>
+ */
+public final class CompressLZ4 implements Compressor {
+
+    /**
+     * The number of bits of the hash table index.
+     */
+    private static final int HASH_LOG = 14;
+
+    /**
+     * The number of entries in the hash table.
+     */
+    private static final int HASH_SIZE = 1 << HASH_LOG;
+
+    /**
+     * The minimum back-reference length.
+     */
+    private static final int MIN_MATCH = 4;
+
+    /**
+     * The maximum offset allowed for a back-reference.
+     */
+    private static final int MAX_OFF = (1 << 16) - 1;
+
+    /**
+     * The number of bytes at the end that are always stored as literals.
+     */
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * The minimum distance from the start of a back-reference to the end.
+     */
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    /**
+     * The number of failed searches after which the search step is increased
+     * (for data that does not compress well).
+     */
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * Hash table for matching byte sequences (reused for performance).
+     */
+    private int[] cachedHashTable;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] & 255) | ((in[pos + 1] & 255) << 8) |
+                ((in[pos + 2] & 255) << 16) | (in[pos + 3] << 24);
+    }
+
+    /**
+     * Compute the address in the hash table.
+     */
+    private static int hash(int x) {
+        return (x * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int anchor = 0;
+        if (inLen > MATCH_FIND_LIMIT) {
+            if (cachedHashTable == null) {
+                cachedHashTable = new int[HASH_SIZE];
+            }
+            // old entries do no harm, as each match is verified
+            int[] hashTab = cachedHashTable;
+            int limit = inLen - MATCH_FIND_LIMIT;
+            int matchLimit = inLen - LAST_LITERALS;
+            int inPos = 0;
+            while (inPos < limit) {
+                int seq = readInt(in, inPos);
+                int h = hash(seq);
+                int ref = hashTab[h];
+                hashTab[h] = inPos;
+                if (ref >= inPos || inPos - ref > MAX_OFF || readInt(in, ref) != seq) {
+                    inPos += 1 + ((inPos - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                // extend the match backwards
+                while (inPos > anchor && ref > 0 && in[inPos - 1] == in[ref - 1]) {
+                    inPos--;
+                    ref--;
+                }
+                int len = MIN_MATCH;
+                while (inPos + len < matchLimit && in[ref + len] == in[inPos + len]) {
+                    len++;
+                }
+                outPos = writeBlock(in, anchor, inPos - anchor, out, outPos, inPos - ref, len);
+                inPos += len;
+                anchor = inPos;
+                if (inPos < limit) {
+                    // improves the compression ratio
+                    hashTab[hash(readInt(in, inPos - 2))] = inPos - 2;
+                }
+            }
+        }
+        // the last block only contains literals
+        int literals = inLen - anchor;
+        int tokenPos = outPos++;
+        outPos = writeLength(out, outPos, literals);
+        out[tokenPos] = (byte) (Math.min(literals, 15) << 4);
+        System.arraycopy(in, anchor, out, outPos, literals);
+        return outPos + literals;
+    }
+
+    private static int writeBlock(byte[] in, int literalPos, int literals,
+            byte[] out, int outPos, int off, int len) {
+        int tokenPos = outPos++;
+        outPos = writeLength(out, outPos, literals);
+        System.arraycopy(in, literalPos, out, outPos, literals);
+        outPos += literals;
+        out[outPos++] = (byte) off;
+        out[outPos++] = (byte) (off >>> 8);
+        len -= MIN_MATCH;
+        outPos = writeLength(out, outPos, len);
+        out[tokenPos] = (byte) ((Math.min(literals, 15) << 4) | Math.min(len, 15));
+        return outPos;
+    }
+
+    /**
+     * Write the part of the length that does not fit in the token.
+     */
+    private static int writeLength(byte[] out, int outPos, int len) {
+        if (len >= 15) {
+            len -= 15;
+            while (len >= 255) {
+                out[outPos++] = (byte) 255;
+                len -= 255;
+            }
+            out[outPos++] = (byte) len;
+        }
+        return outPos;
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos,
+            int outLen) {
+        if (inPos < 0 || outPos < 0 || outLen < 0) {
+            throw new IllegalArgumentException();
+        }
+        int inEnd = inPos + inLen;
+        int outEnd = outPos + outLen;
+        while (true) {
+            int token = in[inPos++] & 255;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(in, inPos, out, outPos, literals);
+            inPos += literals;
+            outPos += literals;
+            if (inPos >= inEnd) {
+                break;
+            }
+            int off = (in[inPos++] & 255) | ((in[inPos++] & 255) << 8);
+            int len = token & 15;
+            if (len == 15) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    len += b;
+                } while (b == 255);
+            }
+            len += MIN_MATCH;
+            int ref = outPos - off;
+            if (off == 0 || ref < 0 || outPos + len > outEnd) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            if (off >= len) {
+                System.arraycopy(out, ref, out, outPos, len);
+                outPos += len;
+            } else {
+                // overlapping: repeat the last bytes
+                for (int i = 0; i < len; i++) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        }
+        if (outPos != outEnd) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+    }
+
+}
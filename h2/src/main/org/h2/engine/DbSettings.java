@@ -329,6 +329,59 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>GROUP_COMMIT_DELAY</code>
+     * (default: -1).<br />
+     * The maximum time in milliseconds a commit waits for concurrent commits,
+     * so that they are written and synced to disk together. If set to -1,
+     * commits are not synced to disk. This setting only applies to the
+     * MVStore.
+     */
+    public final int groupCommitDelay = get("GROUP_COMMIT_DELAY", -1);
+
+    /**
+     * Database setting <code>INDEX_KEY_PREFIXES</code>
+     * (default: false).<br />
+     * Store the leading values that all keys of an index page have in common
+     * only once. Older versions can not open a database file that was opened
+     * with this setting. This setting only applies to the MVStore.
+     */
+    public final boolean indexKeyPrefixes = get("INDEX_KEY_PREFIXES", false);
+
+    /**
+     * Database setting <code>MAPPED_READS</code>
+     * (default: false).<br />
+     * Read pages from memory mapped regions of the database file. This
+     * setting only applies to the MVStore.
+     */
+    public final boolean mappedReads = get("MAPPED_READS", false);
+
+    /**
+     * Database setting <code>READ_AHEAD_PAGES</code>
+     * (default: 0).<br />
+     * The maximum number of pages read ahead when scanning an index. This
+     * setting only applies to the MVStore.
+     */
+    public final int readAheadPages = get("READ_AHEAD_PAGES", 0);
+
+    /**
+     * Database setting <code>COMPACT_BYTES_PER_SECOND</code>
+     * (default: 0).<br />
+     * The maximum number of bytes per second written to compact the database
+     * file in the background, or 0 for no limit. This setting only applies to
+     * the MVStore.
+     */
+    public final int compactBytesPerSecond = get("COMPACT_BYTES_PER_SECOND", 0);
+
+    /**
+     * Database setting <code>OFF_HEAP_CACHE_SIZE</code>
+     * (default: 0).<br />
+     * The size of the second level page cache in MB, which keeps pages in
+     * serialized form outside of the heap. This setting only applies to the
+     * MVStore.
+     */
+    public final int offHeapCacheSize = get("OFF_HEAP_CACHE_SIZE", 0);
+
     /**
      * Database setting <code>STANDARD_DROP_TABLE_RESTRICT</code> (default:
      * false).<br />
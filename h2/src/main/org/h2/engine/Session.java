@@ -1796,6 +1796,15 @@ public class Session extends SessionWithState implements TransactionStore.Rollba
         return transaction == null ? 0 : transaction.getBlockerId();
     }
 
+    /**
+     * Get the time when this session started to wait for another session.
+     *
+     * @return the time in milliseconds, or 0 if it is not waiting
+     */
+    public long getWaitStart() {
+        return transaction == null ? 0 : transaction.getWaitStart();
+    }
+
     @Override
     public void onRollback(MVMap<Object, VersionedValue> map, Object key,
                             VersionedValue existingValue,
@@ -310,6 +310,26 @@ public class ConditionAndOr extends Condition {
         }
     }
 
+    /**
+     * Get the number of comparisons in the given condition, if it only
+     * consists of comparisons combined with AND.
+     *
+     * @param e the condition
+     * @return the number of comparisons, or -1 if the condition contains
+     *         anything else
+     */
+    public static int getComparisonCount(Expression e) {
+        if (e instanceof Comparison) {
+            return 1;
+        }
+        if (e instanceof ConditionAndOr && ((ConditionAndOr) e).andOrType == AND) {
+            int left = getComparisonCount(e.getSubexpression(0));
+            int right = getComparisonCount(e.getSubexpression(1));
+            return left < 0 || right < 0 ? -1 : left + right;
+        }
+        return -1;
+    }
+
     /**
      * Optimize query according to the given condition. Example:
      * (A AND B) OR (C AND B), the new condition B AND (A OR C) is returned
@@ -148,6 +148,21 @@ public abstract class BaseIndex extends SchemaObjectBase implements Index {
         throw DbException.throwInternalError(toString());
     }
 
+    @Override
+    public boolean canFindByPosition() {
+        return false;
+    }
+
+    @Override
+    public long getRowCount(Session session, SearchRow first, SearchRow last) {
+        throw DbException.throwInternalError(toString());
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last, long offset) {
+        throw DbException.throwInternalError(toString());
+    }
+
     /**
      * Calculate the cost for the given mask as if this index was a typical
      * b-tree range index. This is the estimated cost required to search one
@@ -431,6 +446,10 @@ public abstract class BaseIndex extends SchemaObjectBase implements Index {
             StringUtils.quoteStringSQL(buff, comment);
         }
         buff.append('(').append(getColumnListSQL(true)).append(')');
+        int fillFactor = indexType.getFillFactor();
+        if (fillFactor != 0) {
+            buff.append(" WITH (FILLFACTOR = ").append(fillFactor).append(')');
+        }
         return buff.toString();
     }
 
@@ -149,6 +149,36 @@ public interface Index extends SchemaObject {
      */
     Cursor findNext(Session session, SearchRow higherThan, SearchRow last);
 
+    /**
+     * Check if the index can count the rows in a range, and skip rows, without
+     * reading them. This is only possible for ranges on the first column.
+     *
+     * @return true if it can
+     */
+    boolean canFindByPosition();
+
+    /**
+     * Get the number of rows in the given range, without reading them.
+     *
+     * @param session the session
+     * @param first the first row, or null for no limit
+     * @param last the last row, or null for no limit
+     * @return the number of rows
+     */
+    long getRowCount(Session session, SearchRow first, SearchRow last);
+
+    /**
+     * Find a row or a list of rows and create a cursor to iterate over the
+     * result, skipping the given number of rows without reading them.
+     *
+     * @param session the session
+     * @param first the first row, or null for no limit
+     * @param last the last row, or null for no limit
+     * @param offset the number of rows to skip
+     * @return the cursor
+     */
+    Cursor find(Session session, SearchRow first, SearchRow last, long offset);
+
     /**
      * Find the first (or last) value of this index. The cursor returned is
      * positioned on the correct row, or on null if no row has been found.
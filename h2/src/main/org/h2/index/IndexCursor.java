@@ -165,6 +165,102 @@ public class IndexCursor implements Cursor {
         }
     }
 
+    /**
+     * Check if the index conditions only restrict the first column of the
+     * index to a range, so that the rows can be counted and skipped using
+     * their position in the index, without reading them.
+     *
+     * @param s the session
+     * @param indexConditions the index conditions
+     * @return true if the rows can be counted and skipped
+     */
+    public boolean isPositionalRange(Session s, ArrayList<IndexCondition> indexConditions) {
+        if (index == null || !index.canFindByPosition() || index.isFindUsingFullTableScan()) {
+            return false;
+        }
+        boolean hasStart = false, hasEnd = false;
+        for (IndexCondition condition : indexConditions) {
+            if (condition.isAlwaysFalse()) {
+                return false;
+            }
+            switch (condition.getCompareType()) {
+            case Comparison.EQUAL:
+                hasStart = hasEnd = true;
+                break;
+            case Comparison.BIGGER_EQUAL:
+                hasStart = true;
+                break;
+            case Comparison.SMALLER_EQUAL:
+                hasEnd = true;
+                break;
+            default:
+                // the bounds of the index are inclusive
+                return false;
+            }
+            Column column = condition.getColumn();
+            int columnId = column.getColumnId();
+            if (columnId == SearchRow.ROWID_INDEX) {
+                if (!index.isRowIdIndex()) {
+                    return false;
+                }
+            } else {
+                IndexColumn idxCol = indexColumns[columnId];
+                if (!index.isFirstColumn(column) || idxCol == null
+                        || (idxCol.sortType & SortOrder.DESCENDING) != 0) {
+                    return false;
+                }
+            }
+            Value v = condition.getCurrentValue(s);
+            if (v == ValueNull.INSTANCE || v.getValueType() != column.getType().getValueType()) {
+                // the value would be converted, possibly with rounding
+                return false;
+            }
+        }
+        if (!index.isRowIdIndex() && !(hasStart && hasEnd)) {
+            // NULL values are sorted first or last, and are not in the range
+            for (IndexCondition condition : indexConditions) {
+                if (condition.getColumn().isNullable()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count the rows in the range of the index conditions, without reading
+     * them. This is only possible for a positional range.
+     *
+     * @param s the session
+     * @param indexConditions the index conditions
+     * @return the number of rows
+     * @see #isPositionalRange(Session, ArrayList)
+     */
+    public long getRowCount(Session s, ArrayList<IndexCondition> indexConditions) {
+        prepare(s, indexConditions);
+        if (alwaysFalse) {
+            return 0;
+        }
+        return index.getRowCount(s, start, end);
+    }
+
+    /**
+     * Re-evaluate the start and end values of the index search for rows, and
+     * skip the given number of rows without reading them. This is only
+     * possible for a positional range.
+     *
+     * @param s the session
+     * @param indexConditions the index conditions
+     * @param offset the number of rows to skip
+     * @see #isPositionalRange(Session, ArrayList)
+     */
+    public void find(Session s, ArrayList<IndexCondition> indexConditions, long offset) {
+        prepare(s, indexConditions);
+        if (!alwaysFalse) {
+            cursor = index.find(s, start, end, offset);
+        }
+    }
+
     private boolean canUseIndexForIn(Column column) {
         if (inColumn != null) {
             // only one IN(..) condition can be used at the same time
@@ -12,6 +12,7 @@ public class IndexType {
 
     private boolean primaryKey, persistent, unique, hash, scan, spatial, affinity;
     private boolean belongsToConstraint;
+    private int fillFactor;
 
     /**
      * Create a primary key index.
@@ -114,6 +115,25 @@ public class IndexType {
         return belongsToConstraint;
     }
 
+    /**
+     * Set the fill factor, used when pages are split while adding entries in
+     * ascending order.
+     *
+     * @param fillFactor the fill factor in percent, or 0 for the default
+     */
+    public void setFillFactor(int fillFactor) {
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * Get the fill factor.
+     *
+     * @return the fill factor in percent, or 0 for the default
+     */
+    public int getFillFactor() {
+        return fillFactor;
+    }
+
     /**
      * Is this a hash index?
      *
@@ -16,19 +16,38 @@ import java.util.NoSuchElementException;
  */
 public class Cursor<K, V> implements Iterator<K> {
     private final K to;
+    private final boolean scan;
     private CursorPos cursorPos;
     private CursorPos keeper;
     private K current;
     private K last;
     private V lastValue;
     private Page lastPage;
+    private Page readAheadParent;
+    private int readAheadEnd;
+    private int readAheadDepth;
 
     public Cursor(Page root, K from) {
         this(root, from, null);
     }
 
     public Cursor(Page root, K from, K to) {
-        this.cursorPos = traverseDown(root, from);
+        this(root, from, to, false);
+    }
+
+    /**
+     * Create a cursor.
+     *
+     * @param root the root page
+     * @param from the first key to return, or null to start at the beginning
+     * @param to the last key to return, or null if there is no limit
+     * @param scan whether the cursor is used for a scan, in which case pages
+     *            that are not cached yet are added to the cache as cold
+     *            entries
+     */
+    public Cursor(Page root, K from, K to, boolean scan) {
+        this.scan = scan;
+        this.cursorPos = traverseDown(root, from, scan);
         this.to = to;
     }
 
@@ -50,7 +69,8 @@ public class Cursor<K, V> implements Iterator<K> {
                     }
                 } else {
                     while (!page.isLeaf()) {
-                        page = page.getChildPage(index);
+                        readAhead(page, index);
+                        page = getChildPage(page, index, scan);
                         if (keeper == null) {
                             cursorPos = new CursorPos(page, 0, cursorPos);
                         } else {
@@ -134,8 +154,51 @@ public class Cursor<K, V> implements Iterator<K> {
             MVMap<K, ?> map = (MVMap<K, ?>) root.map;
             long index = map.getKeyIndex(next());
             last = map.getKey(index + n);
-            this.cursorPos = traverseDown(root, last);
+            this.cursorPos = traverseDown(root, last, scan);
+        }
+    }
+
+    /**
+     * Read the following leaf pages ahead, if the cursor is about to move to
+     * the leaf page with the given index. This is only called after the
+     * previous leaf page was read completely, so the cursor is scanning. The
+     * number of pages read ahead doubles each time, up to the limit of the
+     * store.
+     *
+     * @param parent the parent page
+     * @param index the index of the next child page
+     */
+    private void readAhead(Page parent, int index) {
+        MVStore store = parent.map.store;
+        int max = store.getReadAheadPages();
+        if (max == 0 || DataUtils.getPageType(parent.getChildPagePos(index)) != DataUtils.PAGE_TYPE_LEAF) {
+            return;
+        }
+        if (parent != readAheadParent) {
+            readAheadParent = parent;
+            readAheadEnd = 0;
+        }
+        if (readAheadDepth == 0) {
+            readAheadDepth = Math.min(2, max);
+        }
+        // read more once half of the pages read ahead are used
+        if (index + readAheadDepth / 2 >= readAheadEnd) {
+            int from = Math.max(index + 1, readAheadEnd);
+            readAheadEnd = index + 1 + readAheadDepth;
+            store.readAhead(parent, from, readAheadEnd, scan);
+            readAheadDepth = Math.min(max, readAheadDepth * 2);
+        }
+    }
+
+    private static Page getChildPage(Page parent, int index, boolean scan) {
+        if (!scan) {
+            return parent.getChildPage(index);
+        }
+        Page p = parent.getChildPageIfLoaded(index);
+        if (p == null) {
+            p = parent.map.readPage(parent.getChildPagePos(index), true);
         }
+        return p;
     }
 
     @Override
@@ -150,8 +213,9 @@ public class Cursor<K, V> implements Iterator<K> {
      *
      * @param p the page to start from
      * @param key the key to search, null means search for the first key
+     * @param scan whether the cursor is used for a scan
      */
-    private static CursorPos traverseDown(Page p, Object key) {
+    private static CursorPos traverseDown(Page p, Object key, boolean scan) {
         CursorPos cursorPos = null;
         while (!p.isLeaf()) {
             int index = 0;
@@ -162,7 +226,7 @@ public class Cursor<K, V> implements Iterator<K> {
                 }
             }
             cursorPos = new CursorPos(p, index, cursorPos);
-            p = p.getChildPage(index);
+            p = getChildPage(p, index, scan);
         }
         int index = 0;
         if(key != null) {
@@ -16,6 +16,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
 import org.h2.util.StringUtils;
 
@@ -127,6 +128,11 @@ public final class DataUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for compressed pages (LZ4 compression).
+     */
+    public static final int PAGE_COMPRESSED_LZ4 = 2 + 8;
+
     /**
      * The maximum length of a variable size int.
      */
@@ -515,6 +521,43 @@ public final class DataUtils {
         return (int) (pos >> 6);
     }
 
+    /**
+     * Get the compression algorithm of a page from the page type.
+     *
+     * @param type the page type
+     * @return the compression algorithm (Compressor.NO, LZF, DEFLATE, or LZ4)
+     */
+    public static int getPageCompression(int type) {
+        if ((type & PAGE_COMPRESSED) == 0) {
+            return Compressor.NO;
+        } else if ((type & PAGE_COMPRESSED_LZ4) == PAGE_COMPRESSED_LZ4) {
+            return Compressor.LZ4;
+        } else if ((type & PAGE_COMPRESSED_HIGH) == PAGE_COMPRESSED_HIGH) {
+            return Compressor.DEFLATE;
+        }
+        return Compressor.LZF;
+    }
+
+    /**
+     * Get the bits to add to the page type for pages compressed with the
+     * given algorithm.
+     *
+     * @param algorithm the compression algorithm
+     * @return the bits to add
+     */
+    static int getPageCompressType(int algorithm) {
+        switch (algorithm) {
+        case Compressor.LZF:
+            return PAGE_COMPRESSED;
+        case Compressor.DEFLATE:
+            return PAGE_COMPRESSED_HIGH;
+        case Compressor.LZ4:
+            return PAGE_COMPRESSED_LZ4;
+        default:
+            return 0;
+        }
+    }
+
     /**
      * Get the page type from the position.
      *
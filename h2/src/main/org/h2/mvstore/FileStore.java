@@ -7,9 +7,11 @@ package org.h2.mvstore;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 import org.h2.mvstore.cache.FilePathCache;
 import org.h2.store.fs.FilePath;
@@ -24,6 +26,12 @@ import org.h2.store.fs.FilePathNio;
  */
 public class FileStore {
 
+    /**
+     * The size of the regions of the file that are memory mapped when using
+     * memory mapped reads.
+     */
+    private static final int MAPPED_WINDOW_SHIFT = 28;
+
     /**
      * The number of read operations.
      */
@@ -48,8 +56,8 @@ public class FileStore {
      * The free spaces between the chunks. The first block to use is block 2
      * (the first two blocks are the store header).
      */
-    protected final FreeSpaceBitSet freeSpace =
-            new FreeSpaceBitSet(2, MVStore.BLOCK_SIZE);
+    protected final FreeSpaceExtents freeSpace =
+            new FreeSpaceExtents(2, MVStore.BLOCK_SIZE);
 
     /**
      * The file name.
@@ -81,6 +89,19 @@ public class FileStore {
      */
     private FileLock fileLock;
 
+    /**
+     * Whether pages are read from memory mapped regions of the file.
+     */
+    private volatile boolean mappedReads;
+
+    /**
+     * The memory mapped regions of the file, indexed by position shifted by
+     * MAPPED_WINDOW_SHIFT. The array is replaced when a region is mapped or
+     * unmapped. Each region only covers the part of the file that existed
+     * when it was mapped.
+     */
+    private volatile MappedByteBuffer[] mappedWindows = new MappedByteBuffer[0];
+
     @Override
     public String toString() {
         return fileName;
@@ -101,6 +122,118 @@ public class FileStore {
         return dst;
     }
 
+    /**
+     * Read from the file, if possible without copying the data. If memory
+     * mapped reads are enabled, the returned buffer is a read-only view of the
+     * mapped file, so it must not be used after this region of the file is
+     * overwritten. Otherwise, this is the same as readFully.
+     *
+     * @param pos the read position
+     * @param len the number of bytes to read
+     * @return the byte buffer
+     */
+    public ByteBuffer readView(long pos, int len) {
+        if (mappedReads) {
+            long end = pos + len;
+            int index = (int) (pos >>> MAPPED_WINDOW_SHIFT);
+            if (index == (int) ((end - 1) >>> MAPPED_WINDOW_SHIFT)) {
+                int offset = (int) (pos - ((long) index << MAPPED_WINDOW_SHIFT));
+                MappedByteBuffer[] windows = mappedWindows;
+                MappedByteBuffer window = index < windows.length ? windows[index] : null;
+                if (window == null || window.limit() < offset + len) {
+                    window = mapWindow(index, end);
+                }
+                if (window != null) {
+                    ByteBuffer dst = window.duplicate();
+                    dst.position(offset).limit(offset + len);
+                    readCount.incrementAndGet();
+                    readBytes.addAndGet(len);
+                    return dst.slice();
+                }
+            }
+        }
+        return readFully(pos, len);
+    }
+
+    /**
+     * Map a region of the file, so that it includes the given end position.
+     *
+     * @param index the index of the region
+     * @param end the end position that needs to be mapped
+     * @return the mapped region, or null if the data can not be read from a
+     *         memory mapped region
+     */
+    private synchronized MappedByteBuffer mapWindow(int index, long end) {
+        MappedByteBuffer[] windows = mappedWindows;
+        MappedByteBuffer window = index < windows.length ? windows[index] : null;
+        long start = (long) index << MAPPED_WINDOW_SHIFT;
+        if (window != null && start + window.limit() >= end) {
+            return window;
+        }
+        if (!mappedReads || file == null) {
+            return null;
+        }
+        try {
+            long size = Math.min(file.size(), start + (1L << MAPPED_WINDOW_SHIFT)) - start;
+            if (start + size < end) {
+                // beyond the end of the file
+                return null;
+            }
+            window = file.map(FileChannel.MapMode.READ_ONLY, start, size);
+        } catch (UnsupportedOperationException e) {
+            // for example an encrypted file: use regular reads
+            mappedReads = false;
+            return null;
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not map file {0} at {1}", fileName, start, e);
+        }
+        windows = Arrays.copyOf(windows, Math.max(windows.length, index + 1));
+        windows[index] = window;
+        mappedWindows = windows;
+        return window;
+    }
+
+    /**
+     * Remove the mapped regions that reach beyond the given position. The
+     * regions are unmapped by the garbage collector once they are no longer
+     * referenced.
+     *
+     * @param pos the position
+     */
+    private synchronized void unmapWindows(long pos) {
+        MappedByteBuffer[] windows = mappedWindows;
+        int index = (int) (pos >>> MAPPED_WINDOW_SHIFT);
+        if (index < windows.length) {
+            mappedWindows = Arrays.copyOf(windows, index);
+        }
+    }
+
+    /**
+     * Enable or disable reading pages from memory mapped regions of the file
+     * (see readView). This is only supported if the file channel supports
+     * memory mapping; otherwise regular reads are used. The default is
+     * disabled.
+     *
+     * @param mappedReads whether to use memory mapped reads
+     */
+    public void setMappedReads(boolean mappedReads) {
+        this.mappedReads = mappedReads;
+        if (!mappedReads) {
+            unmapWindows(0);
+        }
+    }
+
+    /**
+     * Check whether reads are done from memory mapped regions of the file.
+     *
+     * @return true if memory mapped reads are enabled and supported
+     */
+    public boolean isMappedReads() {
+        return mappedReads;
+    }
+
     /**
      * Write to the file.
      *
@@ -186,6 +319,7 @@ public class FileStore {
      * Close this store.
      */
     public void close() {
+        unmapWindows(0);
         try {
             if(file != null && file.isOpen()) {
                 if (fileLock != null) {
@@ -237,6 +371,7 @@ public class FileStore {
         while (true) {
             try {
                 writeCount.incrementAndGet();
+                unmapWindows(size);
                 file.truncate(size);
                 fileSize = Math.min(fileSize, size);
                 return;
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2004-2019 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.h2.util.MathUtils;
+
+/**
+ * A free space map that keeps the ranges of free blocks (extents), indexed by
+ * position and by size.
+ * <p>
+ * Allocation uses the smallest free range that is large enough (best fit; if
+ * there are multiple, the one with the lowest position). If there is no such
+ * range, the space after the last used block is used. All operations are
+ * O(log n), where n is the number of free ranges, except for the fill rate,
+ * which is O(1). The space after the last used block is not stored as a range.
+ */
+public class FreeSpaceExtents {
+
+    /**
+     * The first usable block.
+     */
+    private final int firstFreeBlock;
+
+    /**
+     * The block size in bytes.
+     */
+    private final int blockSize;
+
+    /**
+     * The free ranges before the last used block: the number of blocks by
+     * start block.
+     */
+    private final TreeMap<Integer, Integer> byStart = new TreeMap<>();
+
+    /**
+     * The free ranges before the last used block, by size. The number of
+     * blocks is stored in the upper 32 bits, and the start block in the lower
+     * 32 bits.
+     */
+    private final TreeSet<Long> bySize = new TreeSet<>();
+
+    /**
+     * The block after the last used block.
+     */
+    private int end;
+
+    /**
+     * The number of used blocks.
+     */
+    private long usedBlocks;
+
+    /**
+     * Create a new free space map.
+     *
+     * @param firstFreeBlock the first free block
+     * @param blockSize the block size
+     */
+    public FreeSpaceExtents(int firstFreeBlock, int blockSize) {
+        this.firstFreeBlock = firstFreeBlock;
+        this.blockSize = blockSize;
+        clear();
+    }
+
+    /**
+     * Reset the list.
+     */
+    public void clear() {
+        byStart.clear();
+        bySize.clear();
+        end = firstFreeBlock;
+        usedBlocks = firstFreeBlock;
+    }
+
+    /**
+     * Check whether one of the blocks is in use.
+     *
+     * @param pos the position in bytes
+     * @param length the number of bytes
+     * @return true if a block is in use
+     */
+    public boolean isUsed(long pos, int length) {
+        int start = getBlock(pos);
+        int blocks = getBlockCount(length);
+        if (start + blocks > end) {
+            return false;
+        }
+        Map.Entry<Integer, Integer> free = byStart.floorEntry(start + blocks - 1);
+        return free == null || free.getKey() + free.getValue() <= start;
+    }
+
+    /**
+     * Check whether one of the blocks is free.
+     *
+     * @param pos the position in bytes
+     * @param length the number of bytes
+     * @return true if a block is free
+     */
+    public boolean isFree(long pos, int length) {
+        int start = getBlock(pos);
+        int blocks = getBlockCount(length);
+        if (start >= end) {
+            return true;
+        }
+        Map.Entry<Integer, Integer> free = byStart.floorEntry(start);
+        return free != null && free.getKey() + free.getValue() >= start + blocks;
+    }
+
+    /**
+     * Allocate a number of blocks and mark them as used.
+     *
+     * @param length the number of bytes to allocate
+     * @return the start position in bytes
+     */
+    public long allocate(int length) {
+        return allocate(length, true);
+    }
+
+    /**
+     * Calculate starting position of the prospective allocation.
+     *
+     * @param length the number of bytes to allocate
+     * @return the start position in bytes
+     */
+    public long predictAllocation(int length) {
+        return allocate(length, false);
+    }
+
+    private long allocate(int length, boolean allocate) {
+        int blocks = getBlockCount(length);
+        Long best = bySize.ceiling((long) blocks << 32);
+        if (best == null) {
+            int start = end;
+            if (allocate) {
+                end += blocks;
+                usedBlocks += blocks;
+            }
+            return getPos(start);
+        }
+        int start = (int) best.longValue();
+        if (allocate) {
+            int size = (int) (best >>> 32);
+            removeRange(start, size);
+            if (size > blocks) {
+                addRange(start + blocks, size - blocks);
+            }
+            usedBlocks += blocks;
+        }
+        return getPos(start);
+    }
+
+    /**
+     * Mark the space as in use.
+     *
+     * @param pos the position in bytes
+     * @param length the number of bytes
+     */
+    public void markUsed(long pos, int length) {
+        int start = getBlock(pos);
+        int blocks = getBlockCount(length);
+        if (start >= end) {
+            if (start > end) {
+                addRange(end, start - end);
+            }
+            end = start + blocks;
+        } else {
+            Map.Entry<Integer, Integer> free = byStart.floorEntry(start);
+            assert free != null && free.getKey() + free.getValue() >= start + blocks :
+                    "Double mark: " + Integer.toHexString(start) + "/" + Integer.toHexString(blocks) + " " + this;
+            int freeStart = free.getKey();
+            int freeBlocks = free.getValue();
+            removeRange(freeStart, freeBlocks);
+            if (start > freeStart) {
+                addRange(freeStart, start - freeStart);
+            }
+            int freeEnd = freeStart + freeBlocks;
+            if (freeEnd > start + blocks) {
+                addRange(start + blocks, freeEnd - start - blocks);
+            }
+        }
+        usedBlocks += blocks;
+    }
+
+    /**
+     * Mark the space as free.
+     *
+     * @param pos the position in bytes
+     * @param length the number of bytes
+     */
+    public void free(long pos, int length) {
+        int start = getBlock(pos);
+        int blocks = getBlockCount(length);
+        assert isUsed(pos, length) :
+                "Double free: " + Integer.toHexString(start) + "/" + Integer.toHexString(blocks) + " " + this;
+        usedBlocks -= blocks;
+        // merge with the previous range
+        Map.Entry<Integer, Integer> prev = byStart.lowerEntry(start);
+        if (prev != null && prev.getKey() + prev.getValue() == start) {
+            removeRange(prev.getKey(), prev.getValue());
+            start = prev.getKey();
+            blocks += prev.getValue();
+        }
+        if (start + blocks == end) {
+            // the space at the end is not stored as a range
+            end = start;
+            return;
+        }
+        // merge with the next range
+        Integer nextBlocks = byStart.get(start + blocks);
+        if (nextBlocks != null) {
+            removeRange(start + blocks, nextBlocks);
+            blocks += nextBlocks;
+        }
+        addRange(start, blocks);
+    }
+
+    private void addRange(int start, int blocks) {
+        byStart.put(start, blocks);
+        bySize.add(((long) blocks << 32) | start);
+    }
+
+    private void removeRange(int start, int blocks) {
+        byStart.remove(start);
+        bySize.remove(((long) blocks << 32) | start);
+    }
+
+    private long getPos(int block) {
+        return (long) block * (long) blockSize;
+    }
+
+    private int getBlock(long pos) {
+        return (int) (pos / blockSize);
+    }
+
+    private int getBlockCount(int length) {
+        return MathUtils.roundUpInt(length, blockSize) / blockSize;
+    }
+
+    /**
+     * Get the fill rate of the space in percent. The value 0 means the space is
+     * completely free, and 100 means it is completely full.
+     *
+     * @return the fill rate (0 - 100)
+     */
+    public int getFillRate() {
+        if (usedBlocks == 0) {
+            return 0;
+        }
+        return Math.max(1, (int) (100L * usedBlocks / end));
+    }
+
+    /**
+     * Get the position of the first free space.
+     *
+     * @return the position.
+     */
+    public long getFirstFree() {
+        return getPos(byStart.isEmpty() ? end : byStart.firstKey());
+    }
+
+    /**
+     * Get the position of the last (infinite) free space.
+     *
+     * @return the position.
+     */
+    public long getLastFree() {
+        return getPos(end);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        buff.append('[');
+        for (Map.Entry<Integer, Integer> e : byStart.entrySet()) {
+            buff.append(Integer.toHexString(e.getKey())).append('-').
+                    append(Integer.toHexString(e.getKey() + e.getValue() - 1)).
+                    append(", ");
+        }
+        buff.append(Integer.toHexString(end)).append('-');
+        buff.append(']');
+        return buff.toString();
+    }
+
+}
@@ -8,13 +8,17 @@ package org.h2.mvstore;
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
+import org.h2.compress.Compressor;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.mvstore.type.StringDataType;
@@ -51,6 +55,12 @@ public class MVMap<K, V> extends AbstractMap<K, V>
     private final K[] keysBuffer;
     private final V[] valuesBuffer;
 
+    /**
+     * The memory of the entries in the append buffer that were added using
+     * tryAppend (only changed while the root is locked).
+     */
+    private int appendBufferMemory;
+
     private final Object lock = new Object();
     private volatile boolean notificationRequested;
 
@@ -62,6 +72,23 @@ public class MVMap<K, V> extends AbstractMap<K, V>
     private boolean readOnly;
     private boolean isVolatile;
 
+    /**
+     * The compression algorithm for pages of this map, or -1 to use the
+     * setting of the store.
+     */
+    private volatile int compression = -1;
+
+    /**
+     * The percentage of the entries that are kept in the left page when the
+     * right-most page is split while adding the highest key.
+     */
+    private volatile int fillFactor = DEFAULT_FILL_FACTOR;
+
+    /**
+     * The default fill factor.
+     */
+    public static final int DEFAULT_FILL_FACTOR = 90;
+
     /**
      * This designates the "last stored" version for a store which was
      * just open for the first time.
@@ -78,6 +105,9 @@ public class MVMap<K, V> extends AbstractMap<K, V>
                 ((MVStore) config.get("store")).getKeysPerPage(),
                 config.containsKey("singleWriter") && (Boolean) config.get("singleWriter")
         );
+        if (config.containsKey("fillFactor")) {
+            setFillFactor((Integer) config.get("fillFactor"));
+        }
         setInitialRoot(createEmptyLeaf(), store.getCurrentVersion());
     }
 
@@ -181,7 +211,22 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         if (index < 0 || index >= sizeAsLong()) {
             return null;
         }
-        Page p = getRootPage();
+        return getKey(getRootPage(), index);
+    }
+
+    /**
+     * Get the key at the given index in the given version of the map.
+     * <p>
+     * This is a O(log(size)) operation.
+     *
+     * @param p the root page
+     * @param index the index
+     * @return the key, or null if there is no such key
+     */
+    public final K getKey(Page p, long index) {
+        if (index < 0 || index >= p.getTotalCount()) {
+            return null;
+        }
         long offset = 0;
         while (true) {
             if (p.isLeaf()) {
@@ -250,7 +295,19 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      * @return the index
      */
     public final long getKeyIndex(K key) {
-        Page p = getRootPage();
+        return getKeyIndex(getRootPage(), key);
+    }
+
+    /**
+     * Get the index of the given key in the given version of the map.
+     * <p>
+     * This is a O(log(size)) operation. See also {@link #getKeyIndex(Object)}.
+     *
+     * @param p the root page
+     * @param key the key
+     * @return the index
+     */
+    public final long getKeyIndex(Page p, K key) {
         if (p.getTotalCount() == 0) {
             return -1;
         }
@@ -554,6 +611,17 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return store.readPage(this, pos);
     }
 
+    /**
+     * Read a page.
+     *
+     * @param pos the position of the page
+     * @param scan whether the page is read by a scan
+     * @return the page
+     */
+    final Page readPage(long pos, boolean scan) {
+        return store.readPage(this, pos, scan);
+    }
+
     /**
      * Set the position of the root page.
      * @param rootPos the position, 0 for empty
@@ -660,6 +728,20 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return new Cursor<>(getRootPage(), from);
     }
 
+    /**
+     * Get a cursor to iterate over a number of keys and values. If the cursor
+     * is used for a scan, pages that are read are added to the cache as cold
+     * entries, so that the scan does not evict the pages that are used often.
+     *
+     * @param from the first key to return
+     * @param to the last key to return, or null if there is no limit
+     * @param scan whether the cursor is used for a scan
+     * @return the cursor
+     */
+    public final Cursor<K, V> cursor(K from, K to, boolean scan) {
+        return new Cursor<>(getRootPage(), from, to, scan);
+    }
+
     @Override
     public final Set<Map.Entry<K, V>> entrySet() {
         final Page root = this.getRootPage();
@@ -875,6 +957,79 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return isVolatile;
     }
 
+    /**
+     * Set the compression algorithm for the pages of this map. The setting is
+     * not persisted; it only affects pages written from now on. Pages that
+     * were written with a different algorithm can still be read. Using LZ4
+     * upgrades the file format, so that older versions can not open it.
+     *
+     * @param algorithm the algorithm (Compressor.NO, LZF, DEFLATE, or LZ4),
+     *            or -1 to use the compression setting of the store
+     */
+    public final void setCompression(int algorithm) {
+        switch (algorithm) {
+        case -1:
+        case Compressor.NO:
+        case Compressor.LZF:
+        case Compressor.DEFLATE:
+        case Compressor.LZ4:
+            break;
+        default:
+            throw DataUtils.newIllegalArgumentException(
+                    "Unsupported compression algorithm {0}", algorithm);
+        }
+        if (algorithm == Compressor.LZ4) {
+            // older versions can not read the pages
+            store.upgradeFormat();
+        }
+        compression = algorithm;
+    }
+
+    /**
+     * Set the fill factor, which is used when a page is split while adding
+     * entries in ascending key order. Normally, a full page is split in the
+     * middle. But if the new key is the highest key of the map, the left page
+     * keeps this percentage of the entries, so that pages filled by ascending
+     * keys (for example generated keys) are not left half empty. The value
+     * 50 means pages are always split in the middle. The setting is not
+     * persisted.
+     *
+     * @param fillFactor the fill factor in percent (50 - 100)
+     */
+    public final void setFillFactor(int fillFactor) {
+        DataUtils.checkArgument(fillFactor >= 50 && fillFactor <= 100,
+                "The fill factor must be between 50 and 100, is {0}", fillFactor);
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * Get the fill factor.
+     *
+     * @return the fill factor in percent
+     */
+    public final int getFillFactor() {
+        return fillFactor;
+    }
+
+    /**
+     * Get the compression algorithm of this map.
+     *
+     * @return the algorithm, or -1 if the setting of the store is used
+     */
+    public final int getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get the compression algorithm used when writing pages of this map.
+     *
+     * @return the algorithm
+     */
+    final int getCompressionAlgorithm() {
+        int algorithm = compression;
+        return algorithm < 0 ? store.getCompressionAlgorithm() : algorithm;
+    }
+
     /**
      * This method is called before writing to the map. The default
      * implementation checks whether writing is allowed, and tries
@@ -1154,6 +1309,285 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return target;
     }
 
+    /**
+     * Load sorted entries into this map, which needs to be empty. Instead of
+     * inserting the entries one at a time (which splits full pages, see
+     * {@link #setFillFactor(int)}), the leaf and internal pages are built
+     * bottom-up, and filled up to the
+     * given percentage of the maximum number of keys and the maximum page
+     * size. The new tree is installed when all entries were added. If the
+     * store needs to save pages before that, the entries loaded so far are
+     * installed and saved first, so that they don't need to be kept in memory.
+     * <p>
+     * This method is NOT thread safe: the map may not be changed concurrently.
+     *
+     * @param entries the entries, sorted by key, without duplicate keys
+     * @param fillRate the fill rate of the pages, in percent (1 - 100)
+     * @return the number of entries that were loaded
+     * @throws IllegalArgumentException if the keys are not sorted
+     */
+    public final long bulkLoad(Iterator<? extends Map.Entry<K, V>> entries, int fillRate) {
+        DataUtils.checkArgument(fillRate > 0 && fillRate <= 100,
+                "The fill rate must be between 1 and 100, is {0}", fillRate);
+        beforeWrite();
+        RootReference rootReference = flushAndGetRoot();
+        if (rootReference.getTotalCount() != 0) {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Bulk load requires an empty map");
+        }
+        MVStore.TxCounter txCounter = store.registerVersionUsage();
+        try {
+            BulkLoader loader = new BulkLoader(rootReference.root, fillRate);
+            while (entries.hasNext()) {
+                Map.Entry<K, V> e = entries.next();
+                loader.add(e.getKey(), e.getValue());
+            }
+            return loader.finish();
+        } finally {
+            store.deregisterVersionUsage(txCounter);
+        }
+    }
+
+    /**
+     * Builds a tree from sorted entries. Only the right edge of the tree (the
+     * current leaf, and the children of the unfinished internal page of each
+     * level) is kept.
+     */
+    private final class BulkLoader {
+
+        private final int maxKeys;
+        private final long maxMemory;
+        private final Object[] leafKeys;
+        private final Object[] leafValues;
+        private int leafCount;
+        private long leafMemory;
+        private long totalCount;
+        private K lastKey;
+
+        /**
+         * The unfinished internal page of each level, from bottom to top.
+         */
+        private final ArrayList<Level> levels = new ArrayList<>();
+
+        /**
+         * The internal pages that were only created to save the entries loaded
+         * so far, including the root, and that are not installed yet.
+         */
+        private ArrayList<Page> temporaryPages = new ArrayList<>();
+
+        /**
+         * The temporary internal pages of the installed root. They are removed
+         * when the next root is installed, which no longer references them.
+         */
+        private ArrayList<Page> installedTemporaryPages = new ArrayList<>();
+
+        /**
+         * The root page that was installed last.
+         */
+        private Page rootPage;
+        private boolean installed;
+
+        BulkLoader(Page rootPage, int fillRate) {
+            this.rootPage = rootPage;
+            maxKeys = Math.max(1, keysPerPage * fillRate / 100);
+            maxMemory = Math.max(1, store.getMaxPageSize() * fillRate / 100);
+            leafKeys = new Object[maxKeys];
+            leafValues = new Object[maxKeys];
+        }
+
+        void add(K key, V value) {
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            if (lastKey != null && keyType.compare(lastKey, key) >= 0) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The keys are not sorted: {0} after {1}", key, lastKey);
+            }
+            lastKey = key;
+            int memory = keyType.getMemory(key) + valueType.getMemory(value);
+            if (leafCount == maxKeys || leafCount > 0 && leafMemory + memory > maxMemory) {
+                addLeaf();
+                if (store.isSaveNeeded() && store.getFileStore() != null) {
+                    save();
+                }
+            }
+            leafKeys[leafCount] = key;
+            leafValues[leafCount] = value;
+            leafCount++;
+            leafMemory += memory;
+            totalCount++;
+        }
+
+        private void addLeaf() {
+            Page leaf = Page.createLeaf(MVMap.this,
+                    Arrays.copyOf(leafKeys, leafCount),
+                    Arrays.copyOf(leafValues, leafCount), 0);
+            Arrays.fill(leafKeys, 0, leafCount, null);
+            Arrays.fill(leafValues, 0, leafCount, null);
+            leafCount = 0;
+            leafMemory = 0;
+            store.registerUnsavedPage(leaf.getMemory());
+            addChild(0, new Page.PageReference(leaf), leaf.getKey(0));
+        }
+
+        private void addChild(int level, Page.PageReference child, Object firstKey) {
+            if (level == levels.size()) {
+                levels.add(new Level());
+            }
+            Level l = levels.get(level);
+            l.add(child, firstKey, keyType.getMemory(firstKey));
+            int size = l.children.size();
+            if (size > maxKeys || size > 1 && l.memory > maxMemory) {
+                Page node = createNode(l.children, l.firstKeys);
+                Object key = l.firstKeys.get(0);
+                l.clear();
+                addChild(level + 1, new Page.PageReference(node), key);
+            }
+        }
+
+        private Page createNode(List<Page.PageReference> children, List<Object> firstKeys) {
+            int size = children.size();
+            Object[] keys = new Object[size - 1];
+            for (int i = 1; i < size; i++) {
+                keys[i - 1] = firstKeys.get(i);
+            }
+            long count = 0;
+            for (Page.PageReference ref : children) {
+                count += ref.count;
+            }
+            Page node = Page.createNode(MVMap.this, keys,
+                    children.toArray(new Page.PageReference[size]), count, 0);
+            store.registerUnsavedPage(node.getMemory());
+            return node;
+        }
+
+        /**
+         * Create the root page, by adding the right edge of each level to the
+         * level above.
+         *
+         * @param temporary whether the root is only needed to save the entries
+         *            loaded so far (in which case the levels are not changed)
+         * @return the root page
+         */
+        private Page createRoot(boolean temporary) {
+            Page.PageReference top = null;
+            Object topKey = null;
+            for (Level l : levels) {
+                List<Page.PageReference> children = l.children;
+                List<Object> firstKeys = l.firstKeys;
+                if (top != null) {
+                    if (temporary) {
+                        children = new ArrayList<>(children);
+                        firstKeys = new ArrayList<>(firstKeys);
+                    }
+                    children.add(top);
+                    firstKeys.add(topKey);
+                }
+                if (children.isEmpty()) {
+                    continue;
+                }
+                topKey = firstKeys.get(0);
+                if (children.size() == 1) {
+                    // no need for an internal page with just one child
+                    top = children.get(0);
+                } else {
+                    Page node = createNode(children, firstKeys);
+                    if (temporary) {
+                        temporaryPages.add(node);
+                    }
+                    top = new Page.PageReference(node);
+                }
+            }
+            if (top == null) {
+                return createEmptyLeaf();
+            }
+            Page root = top.getPage();
+            return root != null ? root : readPage(top.getPos());
+        }
+
+        /**
+         * Install and save the entries loaded so far, and then only keep the
+         * positions of the pages that were saved.
+         */
+        private void save() {
+            install(createRoot(true));
+            store.commit();
+            for (Level l : levels) {
+                l.clearSavedPages();
+            }
+        }
+
+        private void install(Page root) {
+            RootReference current = flushAndGetRoot();
+            // storing changes the root reference, but not the root page
+            if (current.root != rootPage || !updateRoot(current, root, 1)) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL,
+                        "The map {0} was changed concurrently", getName());
+            }
+            if (!installed) {
+                // the empty root page
+                current.root.removePage();
+                installed = true;
+            }
+            rootPage = root;
+            for (Page p : installedTemporaryPages) {
+                p.removePage();
+            }
+            installedTemporaryPages.clear();
+            ArrayList<Page> list = installedTemporaryPages;
+            installedTemporaryPages = temporaryPages;
+            temporaryPages = list;
+        }
+
+        long finish() {
+            if (leafCount > 0) {
+                addLeaf();
+            }
+            install(createRoot(false));
+            return totalCount;
+        }
+    }
+
+    /**
+     * The children of the unfinished internal page of a level, while bulk
+     * loading.
+     */
+    private static final class Level {
+
+        final ArrayList<Page.PageReference> children = new ArrayList<>();
+
+        /**
+         * The first key of each child.
+         */
+        final ArrayList<Object> firstKeys = new ArrayList<>();
+
+        /**
+         * The memory of the keys.
+         */
+        long memory;
+
+        Level() {}
+
+        void add(Page.PageReference child, Object firstKey, int keyMemory) {
+            children.add(child);
+            firstKeys.add(firstKey);
+            memory += keyMemory;
+        }
+
+        void clear() {
+            children.clear();
+            firstKeys.clear();
+            memory = 0;
+        }
+
+        void clearSavedPages() {
+            for (int i = 0; i < children.size(); i++) {
+                Page p = children.get(i).getPage();
+                if (p != null && p.isSaved()) {
+                    children.set(i, new Page.PageReference(p.getPos(), p.getTotalCount()));
+                }
+            }
+        }
+    }
+
     /**
      * If map was used in append mode, this method will ensure that append buffer
      * is flushed - emptied with all entries inserted into map as a new leaf.
@@ -1189,6 +1623,10 @@ public class MVMap<K, V> extends AbstractMap<K, V>
                 int remainingBuffer = 0;
                 Page page = null;
                 int available = store.getKeysPerPage() - p.getKeyCount();
+                if (p.getKeyCount() > 0 && p.getMemory() + appendBufferMemory > store.getMaxPageSize()) {
+                    // the entries don't fit into the last leaf
+                    available = 0;
+                }
                 if (available > 0) {
                     p = p.copy();
                     if (keyCount <= available) {
@@ -1259,6 +1697,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
                         lockedForUpdate);
                 if (root.compareAndSet(rootReference, updatedRootReference)) {
                     lockedRootReference = null;
+                    appendBufferMemory = remainingBuffer == 0 ? 0 : getAppendBufferMemory(remainingBuffer);
                     while (tip != null) {
                         tip.page.removePage();
                         tip = tip.parent;
@@ -1280,6 +1719,18 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return rootReference;
     }
 
+    private int getAppendBufferMemory(int keyCount) {
+        if (appendBufferMemory == 0) {
+            // not used by append(K, V)
+            return 0;
+        }
+        int memory = 0;
+        for (int i = 0; i < keyCount; i++) {
+            memory += keyType.getMemory(keysBuffer[i]) + valueType.getMemory(valuesBuffer[i]);
+        }
+        return memory;
+    }
+
     private static Page replacePage(CursorPos path, Page replacement, IntValueHolder unsavedMemoryHolder) {
         int unsavedMemory = replacement.getMemory();
         while (path != null) {
@@ -1324,6 +1775,66 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         }
     }
 
+    /**
+     * Appends entry to this map, if the key is higher than all existing keys
+     * (including the appended ones). Unlike {@link #append(Object, Object)},
+     * this method may be used concurrently with other updates, as the key is
+     * checked while the root is locked. The entries are collected in the append
+     * buffer, and added to the right-most leaf with a single root update once
+     * the buffer is full, or the map is read or changed in another way.
+     * <p>
+     * The decision maker is only called if the key is higher, with no existing
+     * value, and the entry is only appended if it decides to put it.
+     *
+     * @param key the key
+     * @param value the value
+     * @param decisionMaker command object to make choices
+     * @return whether the entry was appended; false if the map doesn't have an
+     *         append buffer (see {@link Builder#singleWriter()}), or the key is
+     *         not the highest one
+     */
+    public final boolean tryAppend(K key, V value, DecisionMaker<? super V> decisionMaker) {
+        if (keysBuffer == null) {
+            return false;
+        }
+        beforeWrite();
+        RootReference rootReference = lockRoot(getRoot(), 1);
+        int appendCounter = rootReference.getAppendCounter();
+        try {
+            Object lastKey;
+            if (appendCounter > 0) {
+                lastKey = keysBuffer[appendCounter - 1];
+            } else {
+                Page lastLeaf = rootReference.root.getAppendCursorPos(null).page;
+                int keyCount = lastLeaf.getKeyCount();
+                lastKey = keyCount == 0 ? null : lastLeaf.getKey(keyCount - 1);
+            }
+            if (lastKey != null && keyType.compare(key, lastKey) <= 0) {
+                return false;
+            }
+            if (decisionMaker.decide(null, value) != Decision.PUT) {
+                decisionMaker.reset();
+                return false;
+            }
+            value = decisionMaker.selectValue(null, value);
+            int memory = store.getFileStore() == null ? 0 :
+                    keyType.getMemory(key) + valueType.getMemory(value);
+            if (appendCounter >= keysPerPage ||
+                    appendCounter > 0 && appendBufferMemory + memory > store.getMaxPageSize()) {
+                rootReference = flushAppendBuffer(rootReference, true);
+                appendCounter = rootReference.getAppendCounter();
+                assert appendCounter < keysPerPage;
+            }
+            keysBuffer[appendCounter] = key;
+            valuesBuffer[appendCounter] = value;
+            ++appendCounter;
+            appendBufferMemory += memory;
+            return true;
+        } finally {
+            unlockRoot(rootReference.root, appendCounter);
+        }
+    }
+
     /**
      * Removes last entry from this map. this method is NOT thread safe and can not be used
      * neither concurrently, nor in combination with any method that updates this map.
@@ -1477,6 +1988,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      */
     public static class Builder<K, V> extends BasicBuilder<MVMap<K, V>, K, V> {
         private boolean singleWriter;
+        private int fillFactor;
 
         public Builder() {}
 
@@ -1503,9 +2015,23 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             return this;
         }
 
+        /**
+         * Set the fill factor of the map.
+         * @see MVMap#setFillFactor(int)
+         * @param fillFactor the fill factor in percent (50 - 100)
+         * @return this Builder for chained execution
+         */
+        public Builder<K,V> fillFactor(int fillFactor) {
+            this.fillFactor = fillFactor;
+            return this;
+        }
+
         @Override
         protected MVMap<K, V> create(Map<String, Object> config) {
             config.put("singleWriter", singleWriter);
+            if (fillFactor != 0) {
+                config.put("fillFactor", fillFactor);
+            }
             Object type = config.get("type");
             if(type == null || type.equals("rtree")) {
                 return new MVMap<>(config);
@@ -1722,13 +2248,15 @@ public class MVMap<K, V> extends AbstractMap<K, V>
                         value = decisionMaker.selectValue(result, value);
                         p = p.copy();
                         if (index < 0) {
+                            // adding the highest key of the map
+                            boolean ascending = -index - 1 == p.getKeyCount() && isRightMost(pos);
                             p.insertLeaf(-index - 1, key, value);
                             int keyCount;
                             while ((keyCount = p.getKeyCount()) > store.getKeysPerPage()
                                     || p.getMemory() > store.getMaxPageSize()
                                     && keyCount > (p.isLeaf() ? 1 : 2)) {
                                 long totalCount = p.getTotalCount();
-                                int at = keyCount >> 1;
+                                int at = ascending ? getSplitIndex(p, keyCount) : keyCount >> 1;
                                 Object k = p.getKey(at);
                                 Page split = p.split(at);
                                 unsavedMemoryHolder.value += p.getMemory() + split.getMemory();
@@ -1780,6 +2308,356 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         }
     }
 
+    /**
+     * Add, replace or remove the entries for a number of keys, with a single
+     * update of the root. Each affected page is copied only once, no matter
+     * how many of the keys it contains. The root is locked while the changes
+     * are applied, so that concurrent updates wait instead of retrying.
+     * <p>
+     * For each key, the decision maker decides as in
+     * {@link #operate(Object, Object, DecisionMaker)}. If it decides to abort,
+     * the entry is not changed; the caller can check the decision maker, and
+     * then process this key on its own. A decision to repeat is asked again
+     * right away.
+     *
+     * @param keys the keys, sorted in ascending order
+     * @param values the values
+     * @param decisionMakers the decision maker for each key, or null to put
+     *            the non-null values and remove the entries with null values
+     * @return the old values, in the order of the keys
+     * @throws IllegalArgumentException if the keys are not sorted
+     * @throws UnsupportedOperationException if this is not a plain map
+     */
+    public final List<V> operateBatch(K[] keys, V[] values,
+            DecisionMaker<? super V>[] decisionMakers) {
+        if (getType() != null) {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Batch updates are not supported for " + getType() + " maps");
+        }
+        for (int i = 1; i < keys.length; i++) {
+            if (keyType.compare(keys[i - 1], keys[i]) > 0) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The keys are not sorted: {0} > {1}", keys[i - 1], keys[i]);
+            }
+        }
+        beforeWrite();
+        BatchUpdate batch = new BatchUpdate(keys, values, decisionMakers);
+        RootReference rootReference = lockRoot(flushAndGetRoot(), 1);
+        Page rootPage = null;
+        try {
+            while (rootReference.getAppendCounter() > 0) {
+                rootReference = flushAppendBuffer(rootReference, true);
+            }
+            rootPage = batch.apply(rootReference.root);
+        } finally {
+            unlockRoot(rootPage);
+        }
+        for (Page p : batch.removedPages) {
+            p.removePage();
+        }
+        if (store.getFileStore() != null) {
+            store.registerUnsavedPage(batch.unsavedMemory);
+        }
+        return batch.oldValues;
+    }
+
+    /**
+     * Copy all of the mappings from the specified map to this map. The entries
+     * are sorted and added with a single update of the root.
+     *
+     * @param m the mappings
+     * @see #operateBatch(Object[], Object[], DecisionMaker[])
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void putAll(Map<? extends K, ? extends V> m) {
+        ArrayList<Map.Entry<? extends K, ? extends V>> entries = new ArrayList<>(m.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<? extends K, ? extends V>>() {
+            @Override
+            public int compare(Map.Entry<? extends K, ? extends V> a, Map.Entry<? extends K, ? extends V> b) {
+                return keyType.compare(a.getKey(), b.getKey());
+            }
+        });
+        int size = entries.size();
+        K[] keys = (K[]) new Object[size];
+        V[] values = (V[]) new Object[size];
+        for (int i = 0; i < size; i++) {
+            Map.Entry<? extends K, ? extends V> e = entries.get(i);
+            keys[i] = e.getKey();
+            values[i] = e.getValue();
+            DataUtils.checkArgument(values[i] != null, "The value may not be null");
+        }
+        operateBatch(keys, values, null);
+    }
+
+    /**
+     * Applies a sorted list of changes to the tree. Each changed page is
+     * copied once; pages that become too large are split, and pages that
+     * become empty are removed.
+     */
+    private final class BatchUpdate {
+
+        private final K[] keys;
+        private final V[] values;
+        private final DecisionMaker<? super V>[] decisionMakers;
+
+        /**
+         * The old values.
+         */
+        final List<V> oldValues;
+
+        /**
+         * The pages that were replaced or removed.
+         */
+        final ArrayList<Page> removedPages = new ArrayList<>();
+
+        /**
+         * The memory of the new pages.
+         */
+        int unsavedMemory;
+
+        /**
+         * Whether keys were added after the last key of the right-most leaf.
+         */
+        private boolean ascending;
+
+        BatchUpdate(K[] keys, V[] values, DecisionMaker<? super V>[] decisionMakers) {
+            this.keys = keys;
+            this.values = values;
+            this.decisionMakers = decisionMakers;
+            oldValues = new ArrayList<>(keys.length);
+        }
+
+        /**
+         * Apply the changes.
+         *
+         * @param root the old root page
+         * @return the new root page
+         */
+        Page apply(Page root) {
+            ArrayList<Page> pages = new ArrayList<>();
+            ArrayList<Object> splitKeys = new ArrayList<>();
+            apply(root, 0, keys.length, true, pages, splitKeys);
+            while (pages.size() > 1) {
+                int size = pages.size();
+                Page.PageReference[] children = new Page.PageReference[size];
+                long totalCount = 0;
+                for (int i = 0; i < size; i++) {
+                    Page p = pages.get(i);
+                    children[i] = new Page.PageReference(p);
+                    totalCount += p.getTotalCount();
+                }
+                Page node = Page.createNode(MVMap.this, splitKeys.toArray(), children, totalCount, 0);
+                pages.clear();
+                splitKeys.clear();
+                add(node, true, pages, splitKeys);
+            }
+            return pages.isEmpty() ? createEmptyLeaf() : pages.get(0);
+        }
+
+        /**
+         * Apply the changes for the given range of keys to a subtree. The
+         * resulting pages (none if the subtree is now empty) are added to the
+         * list, and the keys that separate them to the list of split keys.
+         *
+         * @param p the root of the subtree
+         * @param from the index of the first key
+         * @param to the index after the last key
+         * @param rightMost whether this is the right-most subtree of the map
+         * @param pages the resulting pages
+         * @param splitKeys the keys that separate the resulting pages
+         */
+        private void apply(Page p, int from, int to, boolean rightMost, List<Page> pages,
+                List<Object> splitKeys) {
+            if (p.isLeaf()) {
+                applyToLeaf(p, from, to, rightMost, pages, splitKeys);
+                return;
+            }
+            int keyCount = p.getKeyCount();
+            ArrayList<Page.PageReference> children = new ArrayList<>(keyCount + 1);
+            // the key before each child; the first one is not used
+            ArrayList<Object> childKeys = new ArrayList<>(keyCount + 1);
+            ArrayList<Page> childPages = new ArrayList<>();
+            ArrayList<Object> childSplitKeys = new ArrayList<>();
+            boolean changed = false;
+            int i = from;
+            for (int j = 0; j <= keyCount; j++) {
+                int end = to;
+                if (j < keyCount) {
+                    Object limit = p.getKey(j);
+                    end = i;
+                    while (end < to && keyType.compare(keys[end], limit) < 0) {
+                        end++;
+                    }
+                }
+                Object keyBefore = j == 0 ? null : p.getKey(j - 1);
+                if (end == i) {
+                    children.add(getChildReference(p, j));
+                    childKeys.add(keyBefore);
+                    continue;
+                }
+                Page child = p.getChildPage(j);
+                childPages.clear();
+                childSplitKeys.clear();
+                apply(child, i, end, rightMost && j == keyCount, childPages, childSplitKeys);
+                i = end;
+                if (childPages.size() != 1 || childPages.get(0) != child) {
+                    changed = true;
+                }
+                for (int k = 0; k < childPages.size(); k++) {
+                    children.add(new Page.PageReference(childPages.get(k)));
+                    childKeys.add(k == 0 ? keyBefore : childSplitKeys.get(k - 1));
+                }
+            }
+            if (!changed) {
+                pages.add(p);
+                return;
+            }
+            removedPages.add(p);
+            int size = children.size();
+            if (size == 0) {
+                return;
+            } else if (size == 1) {
+                // no need for a node with just one child
+                Page.PageReference ref = children.get(0);
+                Page child = ref.getPage();
+                pages.add(child != null ? child : readPage(ref.getPos()));
+                return;
+            }
+            long totalCount = 0;
+            for (Page.PageReference ref : children) {
+                totalCount += ref.count;
+            }
+            Object[] nodeKeys = childKeys.subList(1, size).toArray();
+            Page node = Page.createNode(MVMap.this, nodeKeys,
+                    children.toArray(new Page.PageReference[size]), totalCount, 0);
+            add(node, rightMost, pages, splitKeys);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void applyToLeaf(Page p, int from, int to, boolean rightMost, List<Page> pages,
+                List<Object> splitKeys) {
+            Page c = null;
+            for (int i = from; i < to; i++) {
+                K key = keys[i];
+                int index = (c == null ? p : c).binarySearch(key);
+                V existing = index < 0 ? null : (V) (c == null ? p : c).getValue(index);
+                oldValues.add(existing);
+                V value = values[i];
+                DecisionMaker<? super V> decisionMaker = decisionMakers == null ?
+                        DecisionMaker.DEFAULT : decisionMakers[i];
+                Decision decision;
+                while ((decision = decisionMaker.decide(existing, value)) == Decision.REPEAT) {
+                    decisionMaker.reset();
+                }
+                if (decision == Decision.PUT) {
+                    value = decisionMaker.selectValue(existing, value);
+                    if (c == null) {
+                        c = p.copy();
+                    }
+                    if (index < 0) {
+                        if (rightMost && -index - 1 == c.getKeyCount()) {
+                            // adding the highest key of the map
+                            ascending = true;
+                        }
+                        c.insertLeaf(-index - 1, key, value);
+                    } else {
+                        c.setValue(index, value);
+                    }
+                } else if (decision == Decision.REMOVE && index >= 0) {
+                    if (c == null) {
+                        c = p.copy();
+                    }
+                    c.remove(index);
+                }
+            }
+            if (c == null) {
+                pages.add(p);
+                return;
+            }
+            removedPages.add(p);
+            if (c.getKeyCount() > 0) {
+                add(c, rightMost, pages, splitKeys);
+            }
+        }
+
+        /**
+         * Add a new page to the list, after splitting it if it is too large.
+         * The right-most page is split according to the fill factor if keys
+         * were added at the end of the map, in the same way as by
+         * {@link MVMap#operate(Object, Object, DecisionMaker)}.
+         *
+         * @param p the page
+         * @param rightMost whether this is the right-most page of its level
+         * @param pages the list of pages
+         * @param splitKeys the keys that separate the pages
+         */
+        private void add(Page p, boolean rightMost, List<Page> pages, List<Object> splitKeys) {
+            int keyCount = p.getKeyCount();
+            if (keyCount <= store.getKeysPerPage() && (p.getMemory() <= store.getMaxPageSize()
+                    || keyCount <= (p.isLeaf() ? 1 : 2))) {
+                unsavedMemory += p.getMemory();
+                pages.add(p);
+                return;
+            }
+            int at = rightMost && ascending ? getAscendingSplitIndex(p, keyCount) : keyCount >> 1;
+            Object k = p.getKey(at);
+            Page split = p.split(at);
+            add(p, false, pages, splitKeys);
+            splitKeys.add(k);
+            add(split, rightMost, pages, splitKeys);
+        }
+
+        /**
+         * Get the index at which to split the right-most page. The page is
+         * split as if the keys had been added one at a time, that is, at the
+         * fill factor of the number of keys at which it first became too
+         * large. The right part is split again if required.
+         *
+         * @param p the page
+         * @param keyCount the number of keys
+         * @return the split index
+         */
+        private int getAscendingSplitIndex(Page p, int keyCount) {
+            int limit = Math.min(keyCount, store.getKeysPerPage() + 1);
+            long memory = p.getMemory();
+            long maxPageSize = store.getMaxPageSize();
+            if (memory > maxPageSize) {
+                limit = (int) Math.min(limit, keyCount * maxPageSize / memory + 1);
+            }
+            return getSplitIndex(p, Math.max(limit, p.isLeaf() ? 2 : 3));
+        }
+    }
+
+    private static Page.PageReference getChildReference(Page p, int index) {
+        Page child = p.getChildPageIfLoaded(index);
+        return child != null ? new Page.PageReference(child) :
+                new Page.PageReference(p.getChildPagePos(index), p.getCounts(index));
+    }
+
+    private static boolean isRightMost(CursorPos pos) {
+        for (; pos != null; pos = pos.parent) {
+            if (pos.index != pos.page.getKeyCount()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the index at which to split the right-most page, according to the
+     * fill factor. The right page gets at least one key (leaf), or one key
+     * and two children (node).
+     *
+     * @param p the page
+     * @param keyCount the number of keys
+     * @return the split index
+     */
+    private int getSplitIndex(Page p, int keyCount) {
+        int at = (int) ((long) keyCount * fillFactor / 100);
+        return Math.max(keyCount >> 1, Math.min(at, keyCount - (p.isLeaf() ? 1 : 2)));
+    }
+
     private RootReference lockRoot(RootReference rootReference, int attempt) {
         while(true) {
             RootReference lockedRootReference = tryLock(rootReference, attempt++);
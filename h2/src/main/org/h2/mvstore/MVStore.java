@@ -6,6 +6,8 @@
 package org.h2.mvstore;
 
 import static org.h2.mvstore.MVMap.INITIAL_VERSION;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -16,14 +18,23 @@ import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -31,10 +42,12 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import org.h2.compress.CompressDeflate;
+import org.h2.compress.CompressLZ4;
 import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
 import org.h2.mvstore.cache.CacheLongKeyLIRS;
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
 import org.h2.util.MathUtils;
 import org.h2.util.Utils;
 
@@ -139,8 +152,20 @@ public class MVStore implements AutoCloseable {
      */
     static final int BLOCK_SIZE = 4 * 1024;
 
-    private static final int FORMAT_WRITE = 1;
-    private static final int FORMAT_READ = 1;
+    /**
+     * The format of new files. Files in this format can be read by older
+     * versions.
+     */
+    private static final int FORMAT_DEFAULT = 1;
+
+    /**
+     * The newest format. It is needed for pages compressed with LZ4, and for
+     * index keys with a common prefix, which older versions can not read. A
+     * file is upgraded to this format before such data is written, see
+     * {@link #upgradeFormat()}.
+     */
+    private static final int FORMAT_WRITE = 2;
+    private static final int FORMAT_READ = 2;
 
     /**
      * Used to mark a chunk as free, when it was detected that live bookkeeping
@@ -148,6 +173,44 @@ public class MVStore implements AutoCloseable {
      */
     private static final int MARKED_FREE = 10_000_000;
 
+    /**
+     * The minimum number of pages serialized by one task when preparing pages
+     * in parallel.
+     */
+    private static final int MIN_PAGES_PER_WRITE_TASK = 8;
+
+    /**
+     * The minimum number of chunks verified by one task when opening a file.
+     */
+    private static final int MIN_CHUNKS_PER_RECOVERY_TASK = 16;
+
+    /**
+     * The maximum number of bytes between two pages that are read ahead using
+     * one read operation.
+     */
+    private static final int READ_AHEAD_MAX_GAP = 4 * 1024;
+
+    /**
+     * The maximum number of bytes read in one read-ahead operation.
+     */
+    private static final int READ_AHEAD_MAX_LENGTH = 1024 * 1024;
+
+    /**
+     * The maximum number of queued read-ahead requests.
+     */
+    private static final int READ_AHEAD_MAX_TASKS = 16;
+
+    /**
+     * The maximum number of pages that were read ahead and not used yet.
+     */
+    private static final int READ_AHEAD_MAX_PENDING = 4 * 1024;
+
+    /**
+     * The commit latency in nanoseconds below which compaction is never
+     * postponed.
+     */
+    private static final long COMMIT_LATENCY_MIN_BACKOFF = TimeUnit.MILLISECONDS.toNanos(1);
+
     /**
      * Store is open.
      */
@@ -185,6 +248,13 @@ public class MVStore implements AutoCloseable {
 
     private volatile boolean reuseSpace = true;
 
+    /**
+     * The number of backups that are running, and the setting to re-use space
+     * before the first of them started.
+     */
+    private int backupCount;
+    private boolean reuseSpaceBeforeBackup;
+
     private volatile int state;
 
     private final FileStore fileStore;
@@ -209,6 +279,12 @@ public class MVStore implements AutoCloseable {
      */
     final CacheLongKeyLIRS<int[]> cacheChunkRef;
 
+    /**
+     * The second level page cache, which keeps the serialized form of pages
+     * outside of the heap, or null if not used.
+     */
+    private final CacheLongKeyOffHeap offHeapCache;
+
     /**
      * The newest chunk. If nothing was stored yet, this field is not set.
      */
@@ -239,6 +315,17 @@ public class MVStore implements AutoCloseable {
 
     private final HashMap<String, Object> storeHeader = new HashMap<>();
 
+    /**
+     * Whether the store header in the file contains the checksum of the chunk
+     * index, which is only valid until the next chunk is written.
+     */
+    private boolean chunkIndexInHeader;
+
+    /**
+     * Whether a chunk was written since the store was opened.
+     */
+    private boolean chunkWritten;
+
     private WriteBuffer writeBuffer;
 
     private final AtomicInteger lastMapId = new AtomicInteger();
@@ -255,6 +342,55 @@ public class MVStore implements AutoCloseable {
 
     private Compressor compressorHigh;
 
+    private Compressor compressorLZ4;
+
+    /**
+     * The number of threads used to serialize and compress pages when
+     * storing a chunk (1 means pages are serialized while writing).
+     */
+    private final int pageWriteThreads;
+
+    /**
+     * The executor for parallel page serialization, created when first needed.
+     * Access needs to be done under storeLock.
+     */
+    private ThreadPoolExecutor pageWriteExecutor;
+
+    /**
+     * The number of threads used to read and verify the chunk headers and
+     * footers when opening a file.
+     */
+    private final int recoveryThreads;
+
+    /**
+     * The maximum number of leaf pages a cursor reads ahead, or 0 if
+     * read-ahead is disabled.
+     */
+    private final int readAheadPages;
+
+    /**
+     * The executor that reads pages ahead, created when first needed.
+     */
+    private volatile ThreadPoolExecutor readAheadExecutor;
+
+    /**
+     * The positions of the pages that were read ahead, but not used yet.
+     */
+    private final ConcurrentHashMap<Long, Boolean> readAheadPending = new ConcurrentHashMap<>();
+
+    private final AtomicLong readAheadCount = new AtomicLong();
+    private final AtomicLong readAheadReadCount = new AtomicLong();
+    private final AtomicLong readAheadHitCount = new AtomicLong();
+    private final AtomicLong readAheadWasteCount = new AtomicLong();
+
+    /**
+     * The pages that are currently read from the file, so that concurrent
+     * readers of the same page can wait instead of reading it again.
+     */
+    private final ConcurrentHashMap<Long, FutureTask<Page>> pagesLoading = new ConcurrentHashMap<>();
+
+    private final AtomicLong pageLoadWaitCount = new AtomicLong();
+
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
     private volatile long currentVersion;
@@ -311,14 +447,96 @@ public class MVStore implements AutoCloseable {
 
     private volatile boolean metaChanged;
 
+    /**
+     * The task to run before the changes are stored, or null.
+     */
+    private volatile Runnable beforeStoreTask;
+
+    /**
+     * The task to run in the background writer thread, or null.
+     */
+    private volatile Runnable backgroundTask;
+
     /**
      * The delay in milliseconds to automatically commit and write changes.
      */
     private int autoCommitDelay;
 
+    /**
+     * The maximum time in milliseconds a durable commit waits for other
+     * commits to join the same store and sync operation, or -1 if durable
+     * commits from the transaction store are disabled.
+     */
+    private final int groupCommitDelay;
+
+    /**
+     * The number of waiting commits after which a batch is stored without
+     * waiting for the rest of the delay.
+     */
+    private final int groupCommitSize;
+
+    /**
+     * The lock for the group commit state below.
+     */
+    private final Object groupCommitSync = new Object();
+
+    /**
+     * Whether a thread is currently storing and syncing a batch.
+     */
+    private boolean groupCommitLeader;
+
+    /**
+     * The id of the batch new commits are added to.
+     */
+    private long groupCommitOpenBatch = 1;
+
+    /**
+     * The id of the last batch that was stored and synced.
+     */
+    private long groupCommitDoneBatch;
+
+    /**
+     * The number of commits waiting in the open batch.
+     */
+    private int groupCommitPending;
+
+    private long groupCommitBatchCount;
+    private int groupCommitMaxBatchSize;
+    private long groupCommitRequestCount;
+    private long groupCommitWaitNanos;
+    private long groupCommitSyncNanos;
+
     private final int autoCompactFillRate;
     private long autoCompactLastFileOpCount;
 
+    /**
+     * The maximum number of bytes per second the background writer may
+     * rewrite to compact the store, or 0 for no limit.
+     */
+    private volatile int compactBytesPerSecond;
+
+    /**
+     * The number of bytes that may be rewritten now. Negative if the last
+     * compaction rewrote more than was available (the debt is paid back
+     * before compacting again).
+     */
+    private long compactBudget;
+
+    /**
+     * The time (System.nanoTime) the budget was last updated.
+     */
+    private long compactBudgetTime;
+
+    /**
+     * The recent and the long-term average foreground commit latency, in
+     * nanoseconds. Not synchronized: concurrent updates may lose a sample.
+     */
+    private volatile long commitLatencyRecent, commitLatencyAverage;
+
+    private volatile long compactRewriteBytes;
+    private volatile long compactRunCount;
+    private volatile long compactBackoffCount;
+
     private volatile IllegalStateException panicException;
 
     private long lastTimeAbsolute;
@@ -365,6 +583,10 @@ public class MVStore implements AutoCloseable {
             cache = null;
             cacheChunkRef = null;
         }
+        int offHeapMb = this.fileStore == null ? 0 :
+                DataUtils.getConfigParam(config, "offHeapCacheSize", 0);
+        offHeapCache = offHeapMb > 0 ?
+                new CacheLongKeyOffHeap(offHeapMb * 1024L * 1024L, 16) : null;
 
         pgSplitSize = DataUtils.getConfigParam(config, "pageSplitSize", pgSplitSize);
         // Make sure pages will fit into cache
@@ -373,6 +595,13 @@ public class MVStore implements AutoCloseable {
         }
         pageSplitSize = pgSplitSize;
         keysPerPage = DataUtils.getConfigParam(config, "keysPerPage", 48);
+        pageWriteThreads = Math.max(1, DataUtils.getConfigParam(config, "pageWriteThreads", 1));
+        recoveryThreads = Math.max(1, DataUtils.getConfigParam(config, "recoveryThreads",
+                Math.min(8, Runtime.getRuntime().availableProcessors())));
+        groupCommitDelay = Math.max(-1, DataUtils.getConfigParam(config, "groupCommitDelay", -1));
+        groupCommitSize = Math.max(1, DataUtils.getConfigParam(config, "groupCommitSize", 64));
+        readAheadPages = Math.max(0, DataUtils.getConfigParam(config, "readAheadPages", 0));
+        compactBytesPerSecond = Math.max(0, DataUtils.getConfigParam(config, "compactBytesPerSecond", 0));
         backgroundExceptionHandler =
                 (UncaughtExceptionHandler)config.get("backgroundExceptionHandler");
         meta = new MVMap<>(this);
@@ -389,12 +618,15 @@ public class MVStore implements AutoCloseable {
                     boolean readOnly = config.containsKey("readOnly");
                     this.fileStore.open(fileName, readOnly, encryptionKey);
                 }
+                if (config.containsKey("mappedReads")) {
+                    this.fileStore.setMappedReads(true);
+                }
                 if (this.fileStore.size() == 0) {
                     creationTime = getTimeAbsolute();
                     lastCommitTime = creationTime;
                     storeHeader.put("H", 2);
                     storeHeader.put("blockSize", BLOCK_SIZE);
-                    storeHeader.put("format", FORMAT_WRITE);
+                    storeHeader.put("format", (long) FORMAT_DEFAULT);
                     storeHeader.put("created", creationTime);
                     writeStoreHeader();
                 } else {
@@ -661,6 +893,8 @@ public class MVStore implements AutoCloseable {
     private void readStoreHeader() {
         Chunk newest = null;
         boolean validStoreHeader = false;
+        // the checksum of the chunk index, if the file was closed normally
+        String chunkIndex = null;
         // find out which chunk and version are the newest
         // read the first two blocks
         ByteBuffer fileHeaderBlocks = fileStore.readFully(0, 2 * BLOCK_SIZE);
@@ -689,8 +923,10 @@ public class MVStore implements AutoCloseable {
                     int chunkId = DataUtils.readHexInt(m, "chunk", 0);
                     long block = DataUtils.readHexLong(m, "block", 0);
                     Chunk test = readChunkHeaderAndFooter(block);
+                    chunkIndex = null;
                     if (test != null && test.id == chunkId) {
                         newest = test;
+                        chunkIndex = m.get("chunkIndex");
                     }
                 }
             } catch (Exception ignore) {/**/}
@@ -700,6 +936,7 @@ public class MVStore implements AutoCloseable {
                     DataUtils.ERROR_FILE_CORRUPT,
                     "Store header is corrupt: {0}", fileStore);
         }
+        chunkIndexInHeader = storeHeader.remove("chunkIndex") != null;
         long format = DataUtils.readHexLong(storeHeader, "format", 1);
         if (format > FORMAT_WRITE && !fileStore.isReadOnly()) {
             throw DataUtils.newIllegalStateException(
@@ -789,6 +1026,7 @@ public class MVStore implements AutoCloseable {
             verified = true;
             // load the chunk metadata: although meta's root page resides in the lastChunk,
             // traversing meta map might recursively load another chunk(s)
+            ArrayList<Chunk> metaChunks = new ArrayList<>();
             Cursor<String, String> cursor = meta.cursor("chunk.");
             while (cursor.hasNext() && cursor.next().startsWith("chunk.")) {
                 Chunk c = Chunk.fromString(cursor.getValue());
@@ -796,10 +1034,27 @@ public class MVStore implements AutoCloseable {
                 // might be there already, due to meta traversal
                 // see readPage() ... getChunkIfFound()
                 chunks.putIfAbsent(c.id, c);
+                metaChunks.add(c);
+            }
+            if (chunkIndex != null && chunkIndex.equals(getChunkIndexChecksum())) {
+                // the chunks are the same as when the file was closed,
+                // and were all verified then
+                break;
+            }
+            // only the newest candidate can match
+            chunkIndex = null;
+            ArrayList<Long> blocks = new ArrayList<>();
+            for (Chunk c : metaChunks) {
+                if (!validChunkCacheByLocation.containsKey(c.block)) {
+                    blocks.add(c.block);
+                }
+            }
+            Map<Long, Chunk> read = readChunkHeadersAndFooters(blocks);
+            for (Chunk c : metaChunks) {
                 long block = c.block;
                 test = validChunkCacheByLocation.get(block);
                 if (test == null) {
-                    test = readChunkHeaderAndFooter(block);
+                    test = read.get(block);
                     if (test != null && test.id == c.id) { // chunk is valid
                         validChunkCacheByLocation.put(block, test);
                         lastChunkCandidates.offer(test);
@@ -878,6 +1133,92 @@ public class MVStore implements AutoCloseable {
         return header;
     }
 
+    /**
+     * Read the headers and footers of the chunks at the given blocks. If there
+     * are many, they are read in parallel, and the current thread waits until
+     * all are read.
+     *
+     * @param blocks the blocks
+     * @return the valid chunks, by block
+     */
+    private Map<Long, Chunk> readChunkHeadersAndFooters(ArrayList<Long> blocks) {
+        HashMap<Long, Chunk> result = new HashMap<>();
+        int taskCount = Math.min(recoveryThreads, blocks.size() / MIN_CHUNKS_PER_RECOVERY_TASK);
+        if (taskCount < 2) {
+            for (long block : blocks) {
+                Chunk c = readChunkHeaderAndFooter(block);
+                if (c != null) {
+                    result.put(block, c);
+                }
+            }
+            return result;
+        }
+        // each task reads a range of the file
+        Collections.sort(blocks);
+        final String name = "MVStore recovery " + fileStore;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(taskCount - 1, taskCount - 1, 10L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            ArrayList<Future<Chunk[]>> futures = new ArrayList<>(taskCount);
+            for (int i = 1; i < taskCount; i++) {
+                final List<Long> list = blocks.subList(
+                        (int) ((long) blocks.size() * i / taskCount),
+                        (int) ((long) blocks.size() * (i + 1) / taskCount));
+                futures.add(executor.submit(new Callable<Chunk[]>() {
+                    @Override
+                    public Chunk[] call() {
+                        return readChunkRange(list);
+                    }
+                }));
+            }
+            // the first range is read by the current thread
+            List<Long> list = blocks.subList(0, blocks.size() / taskCount);
+            Chunk[] range = readChunkRange(list);
+            int index = 0;
+            for (int i = 0; i < taskCount; i++) {
+                if (i > 0) {
+                    try {
+                        range = futures.get(i - 1).get();
+                    } catch (InterruptedException e) {
+                        throw DataUtils.newIllegalStateException(
+                                DataUtils.ERROR_INTERNAL, "Interrupted while reading chunks", e);
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        }
+                        throw DataUtils.newIllegalStateException(
+                                DataUtils.ERROR_INTERNAL, cause.toString(), cause);
+                    }
+                }
+                for (Chunk c : range) {
+                    long block = blocks.get(index++);
+                    if (c != null) {
+                        result.put(block, c);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private Chunk[] readChunkRange(List<Long> blocks) {
+        Chunk[] range = new Chunk[blocks.size()];
+        for (int i = 0; i < range.length; i++) {
+            range[i] = readChunkHeaderAndFooter(blocks.get(i));
+        }
+        return range;
+    }
+
     /**
      * Try to read a chunk footer.
      *
@@ -910,12 +1251,68 @@ public class MVStore implements AutoCloseable {
     }
 
     private void writeStoreHeader() {
-        StringBuilder buff = new StringBuilder(112);
+        write(0, getStoreHeaderBytes());
+        chunkIndexInHeader = false;
+    }
+
+    /**
+     * Write the store header, including the checksum of the chunk index. This
+     * allows to open the file without reading the header and footer of each
+     * chunk, as long as no other chunk was written in the meantime. If no chunk
+     * was written since the store was opened, the file is not changed.
+     */
+    private void writeChunkIndex() {
+        if (lastChunk != null && chunkWritten) {
+            // all chunks need to be written before the header
+            fileStore.sync();
+            HashMap<String, Object> header = new HashMap<>(storeHeader);
+            Chunk c = chunks.get(DataUtils.readHexInt(header, "chunk", 0));
+            if (c == null || c.block != DataUtils.readHexLong(header, "block", 0)) {
+                header.put("block", lastChunk.block);
+                header.put("chunk", lastChunk.id);
+                header.put("version", lastChunk.version);
+            }
+            // otherwise the header still points to an older chunk, which is
+            // used if the chunks after it are corrupt
+            header.put("chunkIndex", getChunkIndexChecksum());
+            write(0, getStoreHeaderBytes(header));
+            chunkIndexInHeader = true;
+        }
+    }
+
+    /**
+     * Calculate the checksum of the id, position, length and version of all
+     * chunks.
+     *
+     * @return the checksum, as a hex string
+     */
+    private String getChunkIndexChecksum() {
+        ArrayList<Chunk> list = new ArrayList<>(chunks.values());
+        Collections.sort(list, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk one, Chunk two) {
+                return Integer.compare(one.id, two.id);
+            }
+        });
+        ByteBuffer buff = ByteBuffer.allocate(4 + 24 * list.size());
+        buff.putInt(list.size());
+        for (Chunk c : list) {
+            buff.putInt(c.id).putInt(c.len).putLong(c.block).putLong(c.version);
+        }
+        return Integer.toHexString(DataUtils.getFletcher32(buff.array(), 0, buff.capacity()));
+    }
+
+    private ByteBuffer getStoreHeaderBytes() {
         if (lastChunk != null) {
             storeHeader.put("block", lastChunk.block);
             storeHeader.put("chunk", lastChunk.id);
             storeHeader.put("version", lastChunk.version);
         }
+        return getStoreHeaderBytes(storeHeader);
+    }
+
+    private static ByteBuffer getStoreHeaderBytes(HashMap<String, Object> storeHeader) {
+        StringBuilder buff = new StringBuilder(112);
         DataUtils.appendMap(buff, storeHeader);
         byte[] bytes = buff.toString().getBytes(StandardCharsets.ISO_8859_1);
         int checksum = DataUtils.getFletcher32(bytes, 0, bytes.length);
@@ -927,7 +1324,7 @@ public class MVStore implements AutoCloseable {
         header.position(BLOCK_SIZE);
         header.put(bytes);
         header.rewind();
-        write(0, header);
+        return header;
     }
 
     private void write(long pos, ByteBuffer buffer) {
@@ -965,6 +1362,9 @@ public class MVStore implements AutoCloseable {
         // This is a subtle difference between !isClosed() and isOpen().
         while (!isClosed()) {
             stopBackgroundThread(normalShutdown);
+            if (normalShutdown && isOpen()) {
+                runBackgroundTask();
+            }
             storeLock.lock();
             try {
                 if (state == STATE_OPEN) {
@@ -982,6 +1382,7 @@ public class MVStore implements AutoCloseable {
                                 commit();
 
                                 shrinkFileIfPossible(0);
+                                writeChunkIndex();
                             }
 
                             state = STATE_CLOSING;
@@ -994,12 +1395,23 @@ public class MVStore implements AutoCloseable {
                             if (cacheChunkRef != null) {
                                 cacheChunkRef.clear();
                             }
+                            if (offHeapCache != null) {
+                                offHeapCache.clear();
+                            }
                             for (MVMap<?, ?> m : new ArrayList<>(maps.values())) {
                                 m.close();
                             }
                             chunks.clear();
                             maps.clear();
                         } finally {
+                            if (pageWriteExecutor != null) {
+                                pageWriteExecutor.shutdown();
+                                pageWriteExecutor = null;
+                            }
+                            if (readAheadExecutor != null) {
+                                readAheadExecutor.shutdown();
+                                readAheadExecutor = null;
+                            }
                             if (fileStore != null && !fileStoreIsProvided) {
                                 fileStore.close();
                             }
@@ -1035,7 +1447,7 @@ public class MVStore implements AutoCloseable {
         ByteBuffer buff;
         int maxLength = DataUtils.getPageMaxLength(pos);
         if (maxLength == DataUtils.PAGE_LARGE) {
-            buff = fileStore.readFully(filePos, 128);
+            buff = fileStore.readView(filePos, 128);
             maxLength = buff.getInt();
             // read the first bytes again
         }
@@ -1045,7 +1457,59 @@ public class MVStore implements AutoCloseable {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1}; max pos {2} ", length, filePos, maxPos);
         }
-        buff = fileStore.readFully(filePos, length);
+        buff = fileStore.readView(filePos, length);
+        return checkPageBuffer(buff, pos, expectedMapId);
+    }
+
+    /**
+     * Get the buffer for the given page position, from the second level cache
+     * if possible, otherwise from the file. Pages read from the file are added
+     * to the second level cache.
+     *
+     * @param pos page position
+     * @param expectedMapId expected map id for the page
+     * @return the buffer, positioned after the page header
+     */
+    private ByteBuffer readPageBuffer(long pos, int expectedMapId) {
+        CacheLongKeyOffHeap c = offHeapCache;
+        if (c == null) {
+            return readBufferForPage(pos, expectedMapId);
+        }
+        byte[] data = c.get(pos);
+        if (data != null) {
+            return checkPageBuffer(ByteBuffer.wrap(data), pos, expectedMapId);
+        }
+        ByteBuffer buff = readBufferForPage(pos, expectedMapId);
+        offHeapCachePut(c, pos, buff, expectedMapId);
+        return buff;
+    }
+
+    /**
+     * Add a page to the second level cache.
+     *
+     * @param c the cache
+     * @param pos page position
+     * @param buff the buffer, positioned after the page header and limited to
+     *            the page
+     * @param mapId the map id
+     */
+    private static void offHeapCachePut(CacheLongKeyOffHeap c, long pos, ByteBuffer buff, int mapId) {
+        // page length (int), check value (short), map id
+        int headerLength = 4 + 2 + DataUtils.getVarIntLen(mapId);
+        ByteBuffer page = buff.duplicate();
+        page.position(buff.position() - headerLength);
+        c.put(pos, page);
+    }
+
+    /**
+     * Check the header of a page and limit the buffer to the page.
+     *
+     * @param buff the buffer, positioned at the start of the page
+     * @param pos page pos
+     * @param expectedMapId expected map id for the page
+     * @return the buffer, positioned after the header
+     */
+    private static ByteBuffer checkPageBuffer(ByteBuffer buff, long pos, int expectedMapId) {
         int chunkId = DataUtils.getPageChunkId(pos);
         int offset = DataUtils.getPageOffset(pos);
         int start = buff.position();
@@ -1157,13 +1621,31 @@ public class MVStore implements AutoCloseable {
      * @return the new version (incremented if there were changes)
      */
     public long commit() {
+        return commit(true);
+    }
+
+    /**
+     * Commit the changes.
+     *
+     * @param measure whether to record the latency of the commit, unless
+     *            it is done while compacting
+     * @return the new version
+     */
+    private long commit(boolean measure) {
         // we need to prevent re-entrance, which may be possible,
         // because meta map is modified within storeNow() and that
         // causes beforeWrite() call with possibility of going back here
         if(!storeLock.isHeldByCurrentThread() || currentStoreVersion < 0) {
+            // only commits of other threads are measured, not the commits
+            // done while compacting
+            measure = measure && compactBytesPerSecond > 0 && !storeLock.isHeldByCurrentThread();
+            long start = measure ? System.nanoTime() : 0;
             storeLock.lock();
             try {
                 store();
+                if (measure) {
+                    recordCommitLatency(System.nanoTime() - start);
+                }
             } finally {
                 storeLock.unlock();
             }
@@ -1171,6 +1653,123 @@ public class MVStore implements AutoCloseable {
         return currentVersion;
     }
 
+    /**
+     * Record the latency of a foreground commit. Background compaction is
+     * postponed while the recent latency is much higher than the long-term
+     * average. This is called by explicit commits of the store, and by the
+     * transaction store for each transaction that is committed.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void recordCommitLatency(long nanos) {
+        long average = commitLatencyAverage;
+        if (average == 0) {
+            commitLatencyRecent = commitLatencyAverage = nanos;
+        } else {
+            long recent = commitLatencyRecent;
+            commitLatencyRecent = recent + (nanos - recent) / 8;
+            commitLatencyAverage = average + (nanos - average) / 128;
+        }
+    }
+
+    /**
+     * Commit the changes and wait until they are synced to the storage.
+     * <p>
+     * Concurrent calls are combined: the first caller waits up to the group
+     * commit delay (or until the group commit size or the auto-commit memory
+     * is reached) for other callers to arrive, then stores the changes and
+     * syncs the file once for all of them. Each caller returns as soon as a
+     * store and sync operation that started after its call has completed.
+     *
+     * @return the current version
+     */
+    public long commitAndSync() {
+        FileStore f = fileStore;
+        if (f == null || f.isReadOnly()) {
+            // the latency is measured by the caller
+            return commit(false);
+        }
+        long start = System.nanoTime();
+        long batch;
+        synchronized (groupCommitSync) {
+            batch = groupCommitOpenBatch;
+            groupCommitRequestCount++;
+            groupCommitPending++;
+            groupCommitSync.notifyAll();
+        }
+        // the interrupt is restored only when returning, as an interrupt
+        // would let each further wait fail at once, and close the file
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long storeBatch;
+                synchronized (groupCommitSync) {
+                    while (groupCommitLeader && groupCommitDoneBatch < batch) {
+                        interrupted |= waitForGroupCommit(0);
+                    }
+                    if (groupCommitDoneBatch >= batch) {
+                        groupCommitWaitNanos += System.nanoTime() - start;
+                        return currentVersion;
+                    }
+                    // the batch of this caller was not stored yet
+                    // (or storing it failed), so this thread stores the open batch
+                    groupCommitLeader = true;
+                    if (groupCommitDelay > 0) {
+                        long deadline = start + TimeUnit.MILLISECONDS.toNanos(groupCommitDelay);
+                        while (groupCommitPending < groupCommitSize &&
+                                (autoCommitMemory <= 0 || unsavedMemory < autoCommitMemory)) {
+                            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            interrupted |= waitForGroupCommit(remaining);
+                        }
+                    }
+                    // callers arriving from now on join the next batch
+                    storeBatch = groupCommitOpenBatch++;
+                    groupCommitMaxBatchSize = Math.max(groupCommitMaxBatchSize, groupCommitPending);
+                    groupCommitPending = 0;
+                }
+                boolean success = false;
+                long syncStart = System.nanoTime();
+                try {
+                    commit(false);
+                    sync();
+                    success = true;
+                } finally {
+                    synchronized (groupCommitSync) {
+                        if (success) {
+                            groupCommitDoneBatch = storeBatch;
+                            groupCommitBatchCount++;
+                            groupCommitSyncNanos += System.nanoTime() - syncStart;
+                        }
+                        groupCommitLeader = false;
+                        groupCommitSync.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait for a notification of the group commit.
+     *
+     * @param millis the maximum time to wait, or 0 to wait without a limit
+     * @return true if the thread was interrupted
+     */
+    private boolean waitForGroupCommit(long millis) {
+        try {
+            groupCommitSync.wait(millis);
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
     private void store() {
         try {
             if (isOpenOrStopping() && hasUnsavedChangesInternal()) {
@@ -1187,6 +1786,10 @@ public class MVStore implements AutoCloseable {
                                 DataUtils.ERROR_WRITING_FAILED, "This store is read-only");
                     }
                     try {
+                        Runnable task = beforeStoreTask;
+                        if (task != null) {
+                            task.run();
+                        }
                         storeNow();
                     } catch (IllegalStateException e) {
                         panic(e);
@@ -1274,6 +1877,7 @@ public class MVStore implements AutoCloseable {
                 }
             }
         }
+        Map<Page, Page.PreparedPayload> prepared = preparePages(changed);
         WriteBuffer buff = getWriteBuffer();
         // need to patch the header later
         c.writeChunkHeader(buff, 0);
@@ -1287,7 +1891,7 @@ public class MVStore implements AutoCloseable {
             if (p.getTotalCount() == 0) {
                 meta.remove(key);
             } else {
-                p.writeUnsavedRecursive(c, buff);
+                p.writeUnsavedRecursive(c, buff, prepared);
                 long root = p.getPos();
                 meta.put(key, Long.toHexString(root));
             }
@@ -1300,7 +1904,7 @@ public class MVStore implements AutoCloseable {
         onVersionChange(version);
 
         Page metaRoot = metaRootReference.root;
-        metaRoot.writeUnsavedRecursive(c, buff);
+        metaRoot.writeUnsavedRecursive(c, buff, null);
 
         int chunkLength = buff.position();
 
@@ -1367,6 +1971,11 @@ public class MVStore implements AutoCloseable {
             }
         }
 
+        if (chunkIndexInHeader) {
+            // the chunk index of the last close is no longer valid
+            writeStoreHeader = true;
+        }
+        chunkWritten = true;
         lastChunk = c;
         if (writeStoreHeader) {
             writeStoreHeader();
@@ -1389,27 +1998,118 @@ public class MVStore implements AutoCloseable {
     }
 
     /**
-     * Try to free unused chunks. This method doesn't directly write, but can
-     * change the metadata, and therefore cause a background write.
+     * Serialize and compress the unsaved pages of the changed maps in
+     * parallel, if more than one page write thread is configured. The
+     * prepared data is then copied into the chunk while writing the pages in
+     * the usual order, so that the file format does not change.
+     *
+     * @param changed the root pages of the changed maps
+     * @return the prepared payloads, or null if the pages should be
+     *         serialized while writing
      */
-    private void freeUnusedIfNeeded(long time) {
-        int freeDelay = retentionTime / 5;
-        if (time - lastFreeUnusedChunks >= freeDelay) {
-            // set early in case it fails (out of memory or so)
-            lastFreeUnusedChunks = time;
-            freeUnusedChunks(true);
+    private Map<Page, Page.PreparedPayload> preparePages(List<Page> changed) {
+        if (pageWriteThreads <= 1) {
+            return null;
         }
-    }
-
-    private void freeUnusedChunks(boolean fast) {
-        assert storeLock.isHeldByCurrentThread();
-        if (lastChunk != null && reuseSpace) {
-            Set<Integer> referenced = collectReferencedChunks(fast);
-            long time = getTimeSinceCreation();
-
-            for (Iterator<Chunk> iterator = chunks.values().iterator(); iterator.hasNext(); ) {
-                Chunk c = iterator.next();
-                if (c.block != Long.MAX_VALUE && !referenced.contains(c.id)) {
+        final ArrayList<Page> pages = new ArrayList<>();
+        for (Page p : changed) {
+            if (p.getTotalCount() != 0) {
+                p.collectUnsaved(pages);
+            }
+        }
+        int pageCount = pages.size();
+        // use more tasks than threads, as page sizes differ
+        int taskCount = Math.min(pageWriteThreads * 4, pageCount / MIN_PAGES_PER_WRITE_TASK);
+        if (taskCount < 2) {
+            return null;
+        }
+        ThreadPoolExecutor executor = getPageWriteExecutor();
+        ArrayList<Future<Page.PreparedPayload[]>> futures = new ArrayList<>(taskCount);
+        for (int i = 1; i < taskCount; i++) {
+            final List<Page> list = pages.subList(
+                    (int) ((long) pageCount * i / taskCount),
+                    (int) ((long) pageCount * (i + 1) / taskCount));
+            futures.add(executor.submit(new Callable<Page.PreparedPayload[]>() {
+                @Override
+                public Page.PreparedPayload[] call() {
+                    return preparePayloads(list);
+                }
+            }));
+        }
+        // the first range is processed by the current thread
+        Page.PreparedPayload[] result = preparePayloads(pages.subList(0, pageCount / taskCount));
+        Map<Page, Page.PreparedPayload> prepared = new IdentityHashMap<>(pageCount);
+        int index = 0;
+        for (int i = 0; i < taskCount; i++) {
+            if (i > 0) {
+                try {
+                    result = futures.get(i - 1).get();
+                } catch (InterruptedException e) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_INTERNAL, "Interrupted while preparing pages", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_INTERNAL, cause.toString(), cause);
+                }
+            }
+            for (Page.PreparedPayload payload : result) {
+                prepared.put(pages.get(index++), payload);
+            }
+        }
+        return prepared;
+    }
+
+    private static Page.PreparedPayload[] preparePayloads(List<Page> pages) {
+        return Page.preparePayloads(pages, new WriteBuffer());
+    }
+
+    private ThreadPoolExecutor getPageWriteExecutor() {
+        ThreadPoolExecutor executor = pageWriteExecutor;
+        if (executor == null) {
+            final String name = "MVStore page writer " + fileStore;
+            // the current thread also prepares pages
+            int threads = pageWriteThreads - 1;
+            executor = new ThreadPoolExecutor(threads, threads, 10L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            pageWriteExecutor = executor;
+        }
+        return executor;
+    }
+
+    /**
+     * Try to free unused chunks. This method doesn't directly write, but can
+     * change the metadata, and therefore cause a background write.
+     */
+    private void freeUnusedIfNeeded(long time) {
+        int freeDelay = retentionTime / 5;
+        if (time - lastFreeUnusedChunks >= freeDelay) {
+            // set early in case it fails (out of memory or so)
+            lastFreeUnusedChunks = time;
+            freeUnusedChunks(true);
+        }
+    }
+
+    private void freeUnusedChunks(boolean fast) {
+        assert storeLock.isHeldByCurrentThread();
+        if (lastChunk != null && reuseSpace) {
+            Set<Integer> referenced = collectReferencedChunks(fast);
+            long time = getTimeSinceCreation();
+
+            for (Iterator<Chunk> iterator = chunks.values().iterator(); iterator.hasNext(); ) {
+                Chunk c = iterator.next();
+                if (c.block != Long.MAX_VALUE && !referenced.contains(c.id)) {
                     if (canOverwriteChunk(c, time)) {
                         iterator.remove();
                         if (meta.remove(Chunk.getMetaKey(c.id)) != null) {
@@ -1603,7 +2303,7 @@ public class MVStore implements AutoCloseable {
                     childCollector.visit(page, executorService, executingThreadCounter);
                 } else {
                     // page was not cached: read the data
-                    ByteBuffer buff = readBufferForPage(pos, getMapId());
+                    ByteBuffer buff = readPageBuffer(pos, getMapId());
                     Page.readChildrenPositions(buff, pos, childCollector, executorService, executingThreadCounter);
                 }
                 cacheCollectedChunkIds(pos, childCollector);
@@ -2177,19 +2877,287 @@ public class MVStore implements AutoCloseable {
      * @return the page
      */
     Page readPage(MVMap<?, ?> map, long pos) {
+        return readPage(map, pos, false);
+    }
+
+    /**
+     * Read a page.
+     *
+     * @param map the map
+     * @param pos the page position
+     * @param scan whether the page is read by a scan, in which case it is
+     *            added to the cache as a cold entry if it was not cached
+     * @return the page
+     */
+    Page readPage(MVMap<?, ?> map, long pos, boolean scan) {
         if (!DataUtils.isPageSaved(pos)) {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_FILE_CORRUPT, "Position 0");
         }
         Page p = cache == null ? null : cache.get(pos);
         if (p == null) {
-            ByteBuffer buff = readBufferForPage(pos, map.getId());
-            p = Page.read(buff, pos, map);
-            cachePage(p);
+            p = loadPage(map, pos, scan);
+        } else if (readAheadPages > 0 && readAheadPending.remove(pos) != null) {
+            readAheadHitCount.incrementAndGet();
         }
         return p;
     }
 
+    /**
+     * Read a page that is not in the cache. If the same page is already being
+     * read by another thread, wait for that thread instead of reading it
+     * again.
+     *
+     * @param map the map
+     * @param pos the page position
+     * @param scan whether the page is read by a scan
+     * @return the page
+     */
+    private Page loadPage(final MVMap<?, ?> map, final long pos, final boolean scan) {
+        FutureTask<Page> task = new FutureTask<>(new Callable<Page>() {
+            @Override
+            public Page call() {
+                // the previous load could have completed just now
+                Page p = cache == null ? null : cache.peek(pos);
+                if (p == null) {
+                    ByteBuffer buff = readPageBuffer(pos, map.getId());
+                    p = Page.read(buff, pos, map);
+                    cachePage(p, scan);
+                    if (readAheadPages > 0 && readAheadPending.remove(pos) != null) {
+                        // read ahead, but removed from the cache before it was used
+                        readAheadWasteCount.incrementAndGet();
+                    }
+                }
+                return p;
+            }
+        });
+        FutureTask<Page> loading = pagesLoading.putIfAbsent(pos, task);
+        if (loading == null) {
+            try {
+                task.run();
+            } finally {
+                pagesLoading.remove(pos, task);
+            }
+            loading = task;
+        } else {
+            pageLoadWaitCount.incrementAndGet();
+        }
+        // reading a page is not interruptible, and neither is waiting for it
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return loading.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_INTERNAL, cause.toString(), cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read the given child pages of a non-leaf page in the background and put
+     * them in the cache, if they are not cached yet. Only leaf pages are read.
+     * Pages of the same chunk that are close to each other are read using one
+     * read operation.
+     *
+     * @param parent the parent page
+     * @param from the index of the first child page
+     * @param to the index after the last child page
+     * @param scan whether the pages are read by a scan
+     */
+    void readAhead(Page parent, int from, int to, final boolean scan) {
+        CacheLongKeyLIRS<Page> c = cache;
+        if (readAheadPages == 0 || c == null || fileStore == null || !isOpen()) {
+            return;
+        }
+        final MVMap<?, ?> map = parent.map;
+        to = Math.min(to, map.getChildPageCount(parent));
+        if (from >= to) {
+            return;
+        }
+        long[] positions = new long[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            long pos = parent.getChildPagePos(i);
+            if (DataUtils.isPageSaved(pos) &&
+                    DataUtils.getPageType(pos) == DataUtils.PAGE_TYPE_LEAF &&
+                    DataUtils.getPageMaxLength(pos) != DataUtils.PAGE_LARGE &&
+                    !c.containsKey(pos)) {
+                positions[count++] = pos;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        final long[] toRead = Arrays.copyOf(positions, count);
+        try {
+            getReadAheadExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    readPagesAhead(map, toRead, scan);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // enough read-ahead is pending, or the store is closed
+        }
+    }
+
+    private void readPagesAhead(MVMap<?, ?> map, long[] positions, boolean scan) {
+        // sorted by chunk, then by offset
+        Arrays.sort(positions);
+        try {
+            for (int i = 0; i < positions.length && isOpen();) {
+                long pos = positions[i];
+                Chunk c = getChunk(pos);
+                long chunkStart = c.block * BLOCK_SIZE;
+                long maxPos = (c.block + c.len) * BLOCK_SIZE;
+                long start = chunkStart + DataUtils.getPageOffset(pos);
+                long end = Math.min(maxPos, start + DataUtils.getPageMaxLength(pos));
+                int j = i + 1;
+                for (; j < positions.length; j++) {
+                    long next = positions[j];
+                    if (DataUtils.getPageChunkId(next) != c.id) {
+                        break;
+                    }
+                    long nextStart = chunkStart + DataUtils.getPageOffset(next);
+                    long nextEnd = Math.min(maxPos, nextStart + DataUtils.getPageMaxLength(next));
+                    if (nextStart > end + READ_AHEAD_MAX_GAP || nextEnd - start > READ_AHEAD_MAX_LENGTH) {
+                        break;
+                    }
+                    end = Math.max(end, nextEnd);
+                }
+                ByteBuffer buff = fileStore.readView(start, (int) (end - start));
+                readAheadReadCount.incrementAndGet();
+                int base = buff.position();
+                for (; i < j; i++) {
+                    pos = positions[i];
+                    long filePos = chunkStart + DataUtils.getPageOffset(pos);
+                    long pageEnd = Math.min(end, filePos + DataUtils.getPageMaxLength(pos));
+                    ByteBuffer pageBuff = buff.duplicate();
+                    pageBuff.limit(base + (int) (pageEnd - start));
+                    pageBuff.position(base + (int) (filePos - start));
+                    if (!cache.containsKey(pos)) {
+                        pageBuff = checkPageBuffer(pageBuff.slice(), pos, map.getId());
+                        if (offHeapCache != null) {
+                            offHeapCachePut(offHeapCache, pos, pageBuff, map.getId());
+                        }
+                        cachePage(Page.read(pageBuff, pos, map), scan);
+                        addReadAheadPending(pos);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // read-ahead is only a hint: for example the chunk was moved or
+            // the store was closed; errors are reported when the page is read
+        }
+    }
+
+    private void addReadAheadPending(long pos) {
+        readAheadCount.incrementAndGet();
+        if (readAheadPending.size() >= READ_AHEAD_MAX_PENDING) {
+            // the pages were not used in time
+            readAheadWasteCount.addAndGet(readAheadPending.size());
+            readAheadPending.clear();
+        }
+        readAheadPending.put(pos, Boolean.TRUE);
+    }
+
+    private ThreadPoolExecutor getReadAheadExecutor() {
+        ThreadPoolExecutor executor = readAheadExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = readAheadExecutor;
+                if (executor == null) {
+                    final String name = "MVStore read-ahead " + fileStore;
+                    executor = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(READ_AHEAD_MAX_TASKS), new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread t = new Thread(r, name);
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    readAheadExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Get the maximum number of leaf pages a cursor reads ahead.
+     *
+     * @return the number of pages, or 0 if read-ahead is disabled
+     */
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+    /**
+     * Get the number of pages that were read ahead and put in the cache.
+     *
+     * @return the number of pages
+     */
+    public long getReadAheadCount() {
+        return readAheadCount.get();
+    }
+
+    /**
+     * Get the number of read operations used to read pages ahead. Pages next
+     * to each other are read using one operation.
+     *
+     * @return the number of read operations
+     */
+    public long getReadAheadReadCount() {
+        return readAheadReadCount.get();
+    }
+
+    /**
+     * Get the number of pages that were read ahead and later used.
+     *
+     * @return the number of pages
+     */
+    public long getReadAheadHitCount() {
+        return readAheadHitCount.get();
+    }
+
+    /**
+     * Get the number of pages that were read ahead, but were removed from the
+     * cache or not used in time.
+     *
+     * @return the number of pages
+     */
+    public long getReadAheadWasteCount() {
+        return readAheadWasteCount.get();
+    }
+
+    /**
+     * Get the number of times a page was not in the cache, but was already
+     * being read by another thread, so that this thread waited for it instead
+     * of reading it again.
+     *
+     * @return the number of waits
+     */
+    public long getPageLoadWaitCount() {
+        return pageLoadWaitCount.get();
+    }
+
     /**
      * Remove a page.
      *
@@ -2221,22 +3189,66 @@ public class MVStore implements AutoCloseable {
         }
     }
 
-    Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
+    /**
+     * Get the compressor for the given algorithm. The same instance is
+     * returned each time, so it may only be used to compress while holding
+     * the store lock; expanding is possible concurrently.
+     *
+     * @param algorithm the compression algorithm
+     * @return the compressor, or null for Compressor.NO
+     */
+    Compressor getCompressor(int algorithm) {
+        switch (algorithm) {
+        case Compressor.NO:
+            return null;
+        case Compressor.LZF:
+            if (compressorFast == null) {
+                compressorFast = createCompressor(algorithm);
+            }
+            return compressorFast;
+        case Compressor.DEFLATE:
+            if (compressorHigh == null) {
+                compressorHigh = createCompressor(algorithm);
+            }
+            return compressorHigh;
+        default:
+            if (compressorLZ4 == null) {
+                compressorLZ4 = createCompressor(algorithm);
+            }
+            return compressorLZ4;
         }
-        return compressorFast;
     }
 
-    Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
+    /**
+     * Create a new compressor for the given algorithm.
+     *
+     * @param algorithm the compression algorithm
+     * @return the compressor, or null for Compressor.NO
+     */
+    static Compressor createCompressor(int algorithm) {
+        switch (algorithm) {
+        case Compressor.NO:
+            return null;
+        case Compressor.LZF:
+            return new CompressLZF();
+        case Compressor.DEFLATE:
+            return new CompressDeflate();
+        case Compressor.LZ4:
+            return new CompressLZ4();
+        default:
+            throw DataUtils.newIllegalArgumentException(
+                    "Unsupported compression algorithm {0}", algorithm);
         }
-        return compressorHigh;
     }
 
-    int getCompressionLevel() {
-        return compressionLevel;
+    /**
+     * Get the compression algorithm used for maps that don't set their own.
+     *
+     * @return the compression algorithm
+     */
+    int getCompressionAlgorithm() {
+        return compressionLevel == 0 ? Compressor.NO :
+                compressionLevel == 1 ? Compressor.LZF : Compressor.DEFLATE;
     }
 
     public int getPageSplitSize() {
@@ -2255,6 +3267,93 @@ public class MVStore implements AutoCloseable {
         return reuseSpace;
     }
 
+    /**
+     * Write a backup of the store to the given stream. The store can be used
+     * while the backup is running. The backup contains the store header, the
+     * list of chunks, and the data of the chunks that were written after the
+     * given version, so that an incremental backup only needs to read and
+     * write the changes. Unsaved changes are stored first. While the backup is
+     * running, empty space in the file is not re-used.
+     * <p>
+     * A backup is restored using MVStoreTool.restore, by first restoring a
+     * full backup, and then applying the incremental backups in order.
+     *
+     * @param out the target stream (it is not closed)
+     * @param sinceVersion the version of the previous backup, or -1 for a
+     *            full backup
+     * @return the version of this backup
+     */
+    public long backup(OutputStream out, long sinceVersion) {
+        ArrayList<Chunk> list = new ArrayList<>();
+        ByteBuffer header;
+        long version;
+        storeLock.lock();
+        try {
+            checkOpen();
+            if (fileStore == null) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED, "This is an in-memory store");
+            }
+            commit();
+            if (lastChunk == null) {
+                // nothing was stored yet
+                version = -1;
+            } else {
+                version = lastChunk.version;
+                // the chunks that are referenced by the stored metadata (as
+                // they are verified when opening the store), and the last chunk
+                long metaRootPos = readChunkHeader(lastChunk.block).metaRootPos;
+                MVMap<String, String> lastMeta = meta.openReadOnly(metaRootPos, version);
+                Cursor<String, String> cursor = lastMeta.cursor("chunk.");
+                while (cursor.hasNext() && cursor.next().startsWith("chunk.")) {
+                    list.add(Chunk.fromString(cursor.getValue()));
+                }
+                list.add(Chunk.fromString(lastChunk.asString()));
+            }
+            DataUtils.checkArgument(sinceVersion <= version,
+                    "The version {0} is newer than the current version {1}", sinceVersion, version);
+            header = getStoreHeaderBytes();
+            if (backupCount++ == 0) {
+                reuseSpaceBeforeBackup = reuseSpace;
+                reuseSpace = false;
+            }
+        } finally {
+            storeLock.unlock();
+        }
+        try {
+            StringBuilder buff = new StringBuilder();
+            DataUtils.appendMap(buff, "backup", 1);
+            DataUtils.appendMap(buff, "base", sinceVersion);
+            DataUtils.appendMap(buff, "version", version);
+            DataUtils.appendMap(buff, "chunks", list.size());
+            buff.append('\n');
+            for (Chunk c : list) {
+                buff.append(c.asString()).append('\n');
+            }
+            out.write(buff.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(header.array(), 0, header.limit());
+            for (Chunk c : list) {
+                if (c.version > sinceVersion) {
+                    ByteBuffer data = fileStore.readFully(c.block * BLOCK_SIZE, c.len * BLOCK_SIZE);
+                    out.write(data.array(), data.arrayOffset(), data.limit());
+                }
+            }
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED, "Writing the backup failed", e);
+        } finally {
+            storeLock.lock();
+            try {
+                if (--backupCount == 0) {
+                    reuseSpace = reuseSpaceBeforeBackup;
+                }
+            } finally {
+                storeLock.unlock();
+            }
+        }
+        return version;
+    }
+
     /**
      * Whether empty space in the file should be re-used. If enabled, old data
      * is overwritten (default). If disabled, writes are appended at the end of
@@ -2272,6 +3371,32 @@ public class MVStore implements AutoCloseable {
         this.reuseSpace = reuseSpace;
     }
 
+    /**
+     * Set the task to run before the changes are stored, while the store lock
+     * is held. The task may change maps, for example to add entries that are
+     * kept in memory otherwise, but need to be stored together with the
+     * current changes.
+     *
+     * @param task the task, or null
+     */
+    public void setBeforeStoreTask(Runnable task) {
+        this.beforeStoreTask = task;
+    }
+
+    /**
+     * Set the task to run in the background writer thread, each time it wakes
+     * up, and once more when the store is closed normally. The store lock is
+     * not held while the task runs. Exceptions are passed to the background
+     * exception handler, and do not close the store. The task does not run in
+     * the meantime if there is no background writer thread, that is, if the
+     * auto-commit delay is 0.
+     *
+     * @param task the task, or null
+     */
+    public void setBackgroundTask(Runnable task) {
+        this.backgroundTask = task;
+    }
+
     public int getRetentionTime() {
         return retentionTime;
     }
@@ -2629,6 +3754,28 @@ public class MVStore implements AutoCloseable {
         return storeHeader;
     }
 
+    /**
+     * Upgrade the file to the newest format, so that older versions refuse to
+     * open it. This is required before writing data that older versions can
+     * not read. The store header is written immediately.
+     */
+    public void upgradeFormat() {
+        storeLock.lock();
+        try {
+            if (DataUtils.readHexLong(storeHeader, "format", FORMAT_DEFAULT) >= FORMAT_WRITE) {
+                return;
+            }
+            checkOpen();
+            storeHeader.put("format", (long) FORMAT_WRITE);
+            storeHeader.put("formatRead", (long) FORMAT_READ);
+            if (fileStore != null && !fileStore.isReadOnly()) {
+                writeStoreHeader();
+            }
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
     private void checkOpen() {
         if (!isOpenOrStopping()) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED,
@@ -2753,6 +3900,8 @@ public class MVStore implements AutoCloseable {
                 return;
             }
 
+            runBackgroundTask();
+
             // could also commit when there are many unsaved pages,
             // but according to a test it doesn't really help
 
@@ -2761,7 +3910,9 @@ public class MVStore implements AutoCloseable {
                 return;
             }
             tryCommit();
-            if (autoCompactFillRate > 0) {
+            if (autoCompactFillRate > 0 && compactBytesPerSecond > 0) {
+                compactWithinBudget();
+            } else if (autoCompactFillRate > 0) {
                 // whether there were file read or write operations since
                 // the last time
                 boolean fileOps;
@@ -2781,6 +3932,55 @@ public class MVStore implements AutoCloseable {
         }
     }
 
+    private void runBackgroundTask() {
+        Runnable task = backgroundTask;
+        if (task != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                // the changes are still written
+                handleException(e);
+            }
+        }
+    }
+
+    /**
+     * Compact the store if enough of the IO budget is available, and if the
+     * latency of foreground commits is not rising. Chunks are selected in the
+     * order of their collect priority (fill rate and age), and at least one
+     * chunk is rewritten; if this was more than the budget, compaction is
+     * paused until the budget is positive again.
+     */
+    private void compactWithinBudget() {
+        long now = System.nanoTime();
+        long rate = compactBytesPerSecond;
+        long elapsed = Math.min(now - compactBudgetTime, TimeUnit.SECONDS.toNanos(1));
+        compactBudgetTime = now;
+        // allow bursts of at most one second
+        long budget = Math.min(rate, compactBudget + elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+        compactBudget = budget;
+        if (budget <= 0) {
+            return;
+        }
+        if (isCommitLatencyRising()) {
+            compactBackoffCount++;
+            return;
+        }
+        long written = fileStore.getWriteBytes();
+        if (compact(autoCompactFillRate, (int) Math.min(budget, Integer.MAX_VALUE))) {
+            written = fileStore.getWriteBytes() - written;
+            compactBudget -= written;
+            compactRewriteBytes += written;
+            compactRunCount++;
+        }
+    }
+
+    private boolean isCommitLatencyRising() {
+        // not locked: a slightly outdated value does no harm
+        long recent = commitLatencyRecent, average = commitLatencyAverage;
+        return recent > COMMIT_LATENCY_MIN_BACKOFF && recent > 2 * average;
+    }
+
     private void handleException(Throwable ex) {
         if (backgroundExceptionHandler != null) {
             try {
@@ -2906,6 +4106,141 @@ public class MVStore implements AutoCloseable {
         return autoCommitDelay;
     }
 
+    /**
+     * Set the maximum number of bytes per second the background writer may
+     * rewrite to compact the store.
+     *
+     * @param bytes the number of bytes per second, or 0 for no limit
+     */
+    public void setCompactBytesPerSecond(int bytes) {
+        compactBytesPerSecond = Math.max(0, bytes);
+    }
+
+    /**
+     * Get the maximum number of bytes per second the background writer may
+     * rewrite to compact the store.
+     *
+     * @return the number of bytes per second, or 0 for no limit
+     */
+    public int getCompactBytesPerSecond() {
+        return compactBytesPerSecond;
+    }
+
+    /**
+     * Get the number of bytes written by the background writer to compact
+     * the store, if the compaction IO budget is set.
+     *
+     * @return the number of bytes
+     */
+    public long getCompactRewriteBytes() {
+        return compactRewriteBytes;
+    }
+
+    /**
+     * Get the number of times the background writer compacted the store, if
+     * the compaction IO budget is set.
+     *
+     * @return the number of compactions
+     */
+    public long getCompactRunCount() {
+        return compactRunCount;
+    }
+
+    /**
+     * Get the number of times the background writer did not compact the
+     * store because the latency of commits was rising.
+     *
+     * @return the number of times compaction was postponed
+     */
+    public long getCompactBackoffCount() {
+        return compactBackoffCount;
+    }
+
+    /**
+     * Get the amount of live data in chunks that should be rewritten, that is
+     * chunks older than the retention time with a fill rate below the
+     * auto-compact fill rate.
+     *
+     * @return the number of bytes
+     */
+    public long getCompactDebt() {
+        long debt = 0;
+        long time = getTimeSinceCreation();
+        for (Chunk c : chunks.values()) {
+            if (c.time + retentionTime <= time && c.getFillRate() < autoCompactFillRate) {
+                debt += c.maxLenLive;
+            }
+        }
+        return debt;
+    }
+
+    /**
+     * Get the group commit delay.
+     *
+     * @return the delay in milliseconds, or -1 if transactions are not
+     *         synced when committing
+     */
+    public int getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Get the number of store and sync operations done by commitAndSync.
+     *
+     * @return the number of batches
+     */
+    public long getGroupCommitBatchCount() {
+        synchronized (groupCommitSync) {
+            return groupCommitBatchCount;
+        }
+    }
+
+    /**
+     * Get the number of calls to commitAndSync. Divided by the number of
+     * batches, this is the average batch size.
+     *
+     * @return the number of requests
+     */
+    public long getGroupCommitRequestCount() {
+        synchronized (groupCommitSync) {
+            return groupCommitRequestCount;
+        }
+    }
+
+    /**
+     * Get the largest number of commits that were stored and synced at once.
+     *
+     * @return the maximum batch size
+     */
+    public int getGroupCommitMaxBatchSize() {
+        synchronized (groupCommitSync) {
+            return groupCommitMaxBatchSize;
+        }
+    }
+
+    /**
+     * Get the total time callers of commitAndSync spent waiting, including
+     * the time to store and sync.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getGroupCommitWaitTime() {
+        synchronized (groupCommitSync) {
+            return groupCommitWaitNanos;
+        }
+    }
+
+    /**
+     * Get the total time spent storing and syncing batches in commitAndSync.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getGroupCommitSyncTime() {
+        synchronized (groupCommitSync) {
+            return groupCommitSyncNanos;
+        }
+    }
+
     /**
      * Get the maximum memory (in bytes) used for unsaved pages. If this number
      * is exceeded, unsaved changes are stored to disk.
@@ -2938,6 +4273,16 @@ public class MVStore implements AutoCloseable {
         }
     }
 
+    private void cachePage(Page page, boolean scan) {
+        if (scan) {
+            if (cache != null) {
+                cache.putCold(page.getPos(), page, page.getMemory());
+            }
+        } else {
+            cachePage(page);
+        }
+    }
+
     /**
      * Get the amount of memory used for caching, in MB.
      * Note that this does not include the page chunk references cache, which is
@@ -2975,6 +4320,16 @@ public class MVStore implements AutoCloseable {
         return cache;
     }
 
+    /**
+     * Get the second level cache, which keeps the serialized form of pages
+     * outside of the heap.
+     *
+     * @return the cache, or null if not used
+     */
+    public CacheLongKeyOffHeap getOffHeapCache() {
+        return offHeapCache;
+    }
+
     /**
      * Whether the store is read-only.
      *
@@ -3198,6 +4553,22 @@ public class MVStore implements AutoCloseable {
             return set("autoCompactFillRate", percent);
         }
 
+        /**
+         * Set the maximum number of bytes per second the background writer
+         * may rewrite to compact the store. If set, chunks are compacted up to
+         * the auto-compact fill rate whenever enough of the budget is
+         * available, independent of other file operations, and compaction is
+         * postponed while the latency of commits is rising. The default is 0,
+         * meaning there is no limit, but only up to a third of the fill rate
+         * is used if there were other file operations since the last time.
+         *
+         * @param bytes the number of bytes per second
+         * @return this
+         */
+        public Builder compactBytesPerSecond(int bytes) {
+            return set("compactBytesPerSecond", bytes);
+        }
+
         /**
          * Use the following file name. If the file does not exist, it is
          * automatically created. The parent directory already must exist.
@@ -3250,6 +4621,21 @@ public class MVStore implements AutoCloseable {
             return set("cacheSize", mb);
         }
 
+        /**
+         * Set the size of the second level page cache in MB. Pages read from
+         * the file are kept there in serialized (and, if enabled, compressed)
+         * form, outside of the heap, so that pages evicted from the read cache
+         * can be decoded again without reading the file. The default is 0,
+         * meaning there is no second level cache. Note that the maximum
+         * amount of direct memory of the JVM may need to be increased.
+         *
+         * @param mb the cache size in megabytes
+         * @return this
+         */
+        public Builder offHeapCacheSize(int mb) {
+            return set("offHeapCacheSize", mb);
+        }
+
         /**
          * Set the read cache concurrency. The default is 16, meaning 16
          * segments are used.
@@ -3261,6 +4647,91 @@ public class MVStore implements AutoCloseable {
             return set("cacheConcurrency", concurrency);
         }
 
+        /**
+         * Set the number of threads used to serialize and compress pages when
+         * changes are stored. The default is 1, meaning pages are serialized
+         * by the thread that stores the changes. Higher values help if many
+         * pages are changed at once, specially if compression is enabled. The
+         * file format is the same in all cases.
+         * <p>
+         * The key and value data types of all maps need to support writing
+         * from multiple threads concurrently.
+         *
+         * @param threads the number of threads
+         * @return this
+         */
+        public Builder pageWriteThreads(int threads) {
+            return set("pageWriteThreads", threads);
+        }
+
+        /**
+         * Set the number of threads used to read and verify the chunks when a
+         * file is opened that was not closed normally. The default is the
+         * number of processors, but at most 8. The threads are only used while
+         * opening the file.
+         *
+         * @param threads the number of threads
+         * @return this
+         */
+        public Builder recoveryThreads(int threads) {
+            return set("recoveryThreads", threads);
+        }
+
+        /**
+         * Set the maximum delay in milliseconds a durable commit waits for
+         * other commits, so that they are stored and synced together (see
+         * commitAndSync). The default is -1, meaning the transaction store
+         * does not sync the file when a transaction is committed. With 0,
+         * transactions are synced when committed, and commits arriving while
+         * a sync is in progress are combined.
+         *
+         * @param millis the delay, or -1
+         * @return this
+         */
+        public Builder groupCommitDelay(int millis) {
+            return set("groupCommitDelay", millis);
+        }
+
+        /**
+         * Set the number of waiting commits after which they are stored and
+         * synced without waiting for the rest of the group commit delay. The
+         * default is 64.
+         *
+         * @param size the number of commits
+         * @return this
+         */
+        public Builder groupCommitSize(int size) {
+            return set("groupCommitSize", size);
+        }
+
+        /**
+         * Read pages from memory mapped regions of the file, instead of
+         * copying them to the heap first. This avoids a system call and a copy
+         * per page read, which helps when reading many pages that are not in
+         * the cache. Only file systems that support memory mapping use this
+         * (not for example encrypted files); otherwise regular reads are used.
+         *
+         * @return this
+         */
+        public Builder mappedReads() {
+            return set("mappedReads", 1);
+        }
+
+        /**
+         * Set the maximum number of leaf pages a cursor reads ahead when it
+         * iterates over the entries of a map. The pages are read in the
+         * background and put in the cache, so that scans over data that is
+         * not cached wait less for reads. The number of pages read ahead
+         * starts small and grows while the cursor keeps scanning. The default
+         * is 0, meaning pages are not read ahead.
+         *
+         * @param pages the maximum number of pages
+         * @return this
+         */
+        public Builder readAheadPages(int pages) {
+            return set("readAheadPages", pages);
+        }
+
         /**
          * Compress data before writing using the LZF algorithm. This will save
          * about 50% of the disk space, but will slow down read and write
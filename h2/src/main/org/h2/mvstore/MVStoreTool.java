@@ -5,7 +5,9 @@
  */
 package org.h2.mvstore;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -13,12 +15,11 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
-import org.h2.compress.CompressDeflate;
-import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
 import org.h2.message.DbException;
@@ -26,6 +27,7 @@ import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.StringDataType;
 import org.h2.store.fs.FilePath;
 import org.h2.store.fs.FileUtils;
+import org.h2.util.IOUtils;
 import org.h2.util.Utils;
 
 /**
@@ -222,8 +224,7 @@ public class MVStoreTool {
                     if (mapId == 0 && details) {
                         ByteBuffer data;
                         if (compressed) {
-                            boolean fast = (type & DataUtils.PAGE_COMPRESSED_HIGH) != DataUtils.PAGE_COMPRESSED_HIGH;
-                            Compressor compressor = getCompressor(fast);
+                            Compressor compressor = MVStore.createCompressor(DataUtils.getPageCompression(type));
                             int lenAdd = DataUtils.readVarInt(chunk);
                             int compLen = pageSize + start - chunk.position();
                             byte[] comp = Utils.newBytes(compLen);
@@ -325,10 +326,6 @@ public class MVStoreTool {
         pw.flush();
     }
 
-    private static Compressor getCompressor(boolean fast) {
-        return fast ? new CompressLZF() : new CompressDeflate();
-    }
-
     /**
      * Read the summary information of the file and write them to system out.
      *
@@ -540,6 +537,195 @@ public class MVStoreTool {
         target.setAutoCommitDelay(autoCommitDelay);
     }
 
+    /**
+     * Restore a store from backups that were created using MVStore.backup.
+     * The first backup is applied to the existing file (if it is an
+     * incremental backup), or replaces the file (if it is a full backup). The
+     * following backups need to be incremental backups, each based on the
+     * version of the previous one. Temporarily, a file with the suffix
+     * ".tempFile" is created, which is then renamed as in compact.
+     *
+     * @param fileName the file name
+     * @param backups the backups, oldest first (the streams are not closed)
+     */
+    public static void restore(String fileName, InputStream... backups) {
+        String tempName = fileName + Constants.SUFFIX_MV_STORE_TEMP_FILE;
+        for (InputStream in : backups) {
+            FileUtils.delete(tempName);
+            try {
+                restore(fileName, tempName, in);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED, "Restoring {0} failed", fileName, e);
+            }
+            try {
+                FileUtils.moveAtomicReplace(tempName, fileName);
+            } catch (DbException e) {
+                String newName = fileName + Constants.SUFFIX_MV_STORE_NEW_FILE;
+                FileUtils.delete(newName);
+                FileUtils.move(tempName, newName);
+                FileUtils.delete(fileName);
+                FileUtils.move(newName, fileName);
+            }
+        }
+    }
+
+    private static void restore(String baseFileName, String targetFileName,
+            InputStream in) throws IOException {
+        int blockSize = MVStore.BLOCK_SIZE;
+        Map<String, String> backup = DataUtils.parseMap(readLine(in));
+        long base = DataUtils.readHexLong(backup, "base", -1);
+        int chunkCount = DataUtils.readHexInt(backup, "chunks", 0);
+        if (DataUtils.readHexInt(backup, "backup", 0) != 1) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT, "Not a backup: {0}", backup);
+        }
+        Chunk[] list = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            list[i] = Chunk.fromString(readLine(in));
+        }
+        ByteBuffer header = ByteBuffer.allocate(2 * blockSize);
+        readFully(in, header);
+        FileChannel file = null;
+        FileChannel target = null;
+        try {
+            HashMap<Integer, Chunk> baseChunks = new HashMap<>();
+            if (base >= 0) {
+                if (!FilePath.get(baseFileName).exists()) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_FILE_CORRUPT,
+                            "The backup is incremental, but the file {0} does not exist", baseFileName);
+                }
+                file = FilePath.get(baseFileName).open("r");
+                long baseVersion = readChunks(file, baseChunks);
+                if (baseVersion != base) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_FILE_CORRUPT,
+                            "The backup is based on version {0}, but the file is at version {1}",
+                            base, baseVersion);
+                }
+            }
+            target = FilePath.get(targetFileName).open("rw");
+            for (Chunk c : list) {
+                int length = c.len * blockSize;
+                ByteBuffer chunk = ByteBuffer.allocate(length);
+                if (c.version > base) {
+                    readFully(in, chunk);
+                } else {
+                    Chunk old = baseChunks.get(c.id);
+                    if (old == null || old.version != c.version) {
+                        throw DataUtils.newIllegalStateException(
+                                DataUtils.ERROR_FILE_CORRUPT,
+                                "Chunk {0} not found in {1}", c.id, baseFileName);
+                    }
+                    DataUtils.readFully(file, old.block * blockSize, chunk);
+                    if (old.block != c.block) {
+                        // the chunk was moved since the last backup
+                        chunk = moveChunk(c, chunk);
+                    }
+                }
+                chunk.rewind();
+                DataUtils.writeFully(target, c.block * blockSize, chunk);
+            }
+            header.rewind();
+            DataUtils.writeFully(target, 0, header);
+            target.force(true);
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+            if (target != null) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Read the headers of all chunks in the file.
+     *
+     * @param file the file
+     * @param chunks the map to add the chunks to (by id)
+     * @return the newest version, or -1 if there are no chunks
+     */
+    private static long readChunks(FileChannel file, Map<Integer, Chunk> chunks)
+            throws IOException {
+        long newestVersion = -1;
+        long fileSize = file.size();
+        ByteBuffer block = ByteBuffer.allocate(MVStore.BLOCK_SIZE);
+        for (long pos = 0; pos < fileSize;) {
+            block.rewind();
+            DataUtils.readFully(file, pos, block);
+            block.rewind();
+            if (block.get(0) != 'c') {
+                pos += MVStore.BLOCK_SIZE;
+                continue;
+            }
+            Chunk c;
+            try {
+                c = Chunk.readChunkHeader(block, pos);
+            } catch (IllegalStateException e) {
+                pos += MVStore.BLOCK_SIZE;
+                continue;
+            }
+            if (c.len <= 0) {
+                // not a chunk
+                pos += MVStore.BLOCK_SIZE;
+                continue;
+            }
+            c.block = pos / MVStore.BLOCK_SIZE;
+            chunks.put(c.id, c);
+            newestVersion = Math.max(newestVersion, c.version);
+            pos += c.len * MVStore.BLOCK_SIZE;
+        }
+        return newestVersion;
+    }
+
+    /**
+     * Update the header and footer of a chunk with the new position.
+     *
+     * @param c the chunk (with the new position)
+     * @param data the data of the chunk
+     * @return the updated data
+     */
+    private static ByteBuffer moveChunk(Chunk c, ByteBuffer data) {
+        int length = data.capacity();
+        data.rewind();
+        Chunk.readChunkHeader(data, c.block * MVStore.BLOCK_SIZE);
+        int chunkHeaderLen = data.position();
+        WriteBuffer buff = new WriteBuffer(length);
+        buff.limit(length);
+        buff.position(chunkHeaderLen);
+        buff.put(data);
+        c.next = 0;
+        buff.position(0);
+        c.writeChunkHeader(buff, chunkHeaderLen);
+        buff.position(length - Chunk.FOOTER_LENGTH);
+        buff.put(c.getFooterBytes());
+        buff.position(0);
+        return buff.getBuffer();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder buff = new StringBuilder();
+        while (true) {
+            int x = in.read();
+            if (x < 0) {
+                throw new EOFException();
+            } else if (x == '\n') {
+                return buff.toString();
+            }
+            buff.append((char) x);
+        }
+    }
+
+    private static void readFully(InputStream in, ByteBuffer buff) throws IOException {
+        byte[] data = buff.array();
+        int len = buff.capacity();
+        if (IOUtils.readFully(in, data, len) != len) {
+            throw new EOFException();
+        }
+    }
+
     /**
      * Repair a store by rolling back to the newest good version.
      *
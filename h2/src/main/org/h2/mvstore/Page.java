@@ -13,6 +13,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -672,15 +673,9 @@ public abstract class Page implements Cloneable
         if (!isLeaf()) {
             readPayLoad(buff);
         }
-        boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
-        if (compressed) {
-            Compressor compressor;
-            if ((type & DataUtils.PAGE_COMPRESSED_HIGH) ==
-                    DataUtils.PAGE_COMPRESSED_HIGH) {
-                compressor = map.getStore().getCompressorHigh();
-            } else {
-                compressor = map.getStore().getCompressorFast();
-            }
+        int compression = DataUtils.getPageCompression(type);
+        if (compression != Compressor.NO) {
+            Compressor compressor = map.getStore().getCompressor(compression);
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = buff.remaining();
             byte[] comp = Utils.newBytes(compLen);
@@ -714,9 +709,11 @@ public abstract class Page implements Cloneable
      *
      * @param chunk the chunk
      * @param buff the target buffer
+     * @param prepared the payloads prepared in advance, or null
      * @return the position of the buffer just after the type
      */
-    protected final int write(Chunk chunk, WriteBuffer buff) {
+    protected final int write(Chunk chunk, WriteBuffer buff,
+            Map<Page, PreparedPayload> prepared) {
         int start = buff.position();
         int len = getKeyCount();
         int type = isLeaf() ? PAGE_TYPE_LEAF : DataUtils.PAGE_TYPE_NODE;
@@ -727,36 +724,21 @@ public abstract class Page implements Cloneable
         int typePos = buff.position();
         buff.put((byte) type);
         writeChildren(buff, true);
-        int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, len, true);
-        writeValues(buff);
         MVStore store = map.getStore();
-        int expLen = buff.position() - compressStart;
-        if (expLen > 16) {
-            int compressionLevel = store.getCompressionLevel();
-            if (compressionLevel > 0) {
-                Compressor compressor;
-                int compressType;
-                if (compressionLevel == 1) {
-                    compressor = map.getStore().getCompressorFast();
-                    compressType = DataUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = map.getStore().getCompressorHigh();
-                    compressType = DataUtils.PAGE_COMPRESSED_HIGH;
-                }
-                byte[] exp = new byte[expLen];
-                buff.position(compressStart).get(exp);
-                byte[] comp = new byte[expLen * 2];
-                int compLen = compressor.compress(exp, expLen, comp, 0);
-                int plus = DataUtils.getVarIntLen(compLen - expLen);
-                if (compLen + plus < expLen) {
-                    buff.position(typePos).
-                        put((byte) (type + compressType));
-                    buff.position(compressStart).
-                        putVarInt(expLen - compLen).
-                        put(comp, 0, compLen);
-                }
-            }
+        PreparedPayload payload = prepared == null ? null : prepared.get(this);
+        int compressType;
+        if (payload != null) {
+            compressType = payload.compressType;
+            buff.put(payload.buff.getBuffer().array(), payload.start, payload.length);
+        } else {
+            int compression = map.getCompressionAlgorithm();
+            compressType = writePayload(buff, store.getCompressor(compression), compression);
+        }
+        if (compressType != 0) {
+            int end = buff.position();
+            buff.position(typePos).
+                put((byte) (type + compressType)).
+                position(end);
         }
         int pageLength = buff.position() - start;
         int chunkId = chunk.id;
@@ -791,6 +773,76 @@ public abstract class Page implements Cloneable
         return typePos + 1;
     }
 
+    /**
+     * Write the keys and values of this page, and compress them if
+     * compression is enabled. Unlike the page header and the child
+     * positions, this part of the page does not depend on where the page is
+     * stored, so it can be prepared in advance by another thread.
+     *
+     * @param buff the target buffer
+     * @param compressor the compressor to use, or null if compression is
+     *            disabled
+     * @param compression the compression algorithm
+     * @return the compression flags to add to the page type, or 0 if the data
+     *         was not compressed
+     */
+    private int writePayload(WriteBuffer buff, Compressor compressor, int compression) {
+        int compressStart = buff.position();
+        map.getKeyType().write(buff, keys, getKeyCount(), true);
+        writeValues(buff);
+        int expLen = buff.position() - compressStart;
+        if (expLen > 16 && compressor != null) {
+            int compressType = DataUtils.getPageCompressType(compression);
+            byte[] exp = new byte[expLen];
+            buff.position(compressStart).get(exp);
+            byte[] comp = new byte[expLen * 2];
+            int compLen = compressor.compress(exp, expLen, comp, 0);
+            int plus = DataUtils.getVarIntLen(compLen - expLen);
+            if (compLen + plus < expLen) {
+                buff.position(compressStart).
+                    putVarInt(expLen - compLen).
+                    put(comp, 0, compLen);
+                return compressType;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Prepare the payload (keys and values, possibly compressed) of the given
+     * pages. Each call should use its own buffer, so that multiple calls can
+     * run in parallel.
+     *
+     * @param pages the pages
+     * @param buff the buffer to write the payloads to
+     * @return the prepared payloads, in the same order as the pages
+     */
+    static PreparedPayload[] preparePayloads(List<Page> pages, WriteBuffer buff) {
+        // compressors keep internal state, so each call uses new instances
+        Compressor[] compressors = new Compressor[Compressor.LZ4 + 1];
+        PreparedPayload[] result = new PreparedPayload[pages.size()];
+        for (int i = 0; i < result.length; i++) {
+            Page page = pages.get(i);
+            int compression = page.map.getCompressionAlgorithm();
+            Compressor compressor = compressors[compression];
+            if (compressor == null && compression != Compressor.NO) {
+                compressor = compressors[compression] = MVStore.createCompressor(compression);
+            }
+            int start = buff.position();
+            int compressType = page.writePayload(buff, compressor, compression);
+            result[i] = new PreparedPayload(buff, start, buff.position() - start, compressType);
+        }
+        return result;
+    }
+
+    /**
+     * Add this page and all its unsaved descendants to the list of pages that
+     * will be written by writeUnsavedRecursive.
+     *
+     * @param target the list to add the pages to
+     */
+    abstract void collectUnsaved(List<Page> target);
+
     /**
      * Write values that the buffer contains to the buff.
      *
@@ -812,8 +864,10 @@ public abstract class Page implements Cloneable
      *
      * @param chunk the chunk
      * @param buff the target buffer
+     * @param prepared the payloads prepared in advance, or null
      */
-    abstract void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff);
+    abstract void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff,
+            Map<Page, PreparedPayload> prepared);
 
     /**
      * Unlink the children recursively after all data is written.
@@ -1040,6 +1094,41 @@ public abstract class Page implements Cloneable
     }
 
 
+    /**
+     * The serialized (and possibly compressed) keys and values of a page,
+     * prepared before the page is written to a chunk.
+     */
+    static final class PreparedPayload {
+
+        /**
+         * The buffer that contains the data.
+         */
+        final WriteBuffer buff;
+
+        /**
+         * The start position within the buffer.
+         */
+        final int start;
+
+        /**
+         * The length in bytes.
+         */
+        final int length;
+
+        /**
+         * The compression flags to add to the page type.
+         */
+        final int compressType;
+
+        PreparedPayload(WriteBuffer buff, int start, int length, int compressType) {
+            this.buff = buff;
+            this.start = start;
+            this.length = length;
+            this.compressType = compressType;
+        }
+    }
+
+
     private static class NonLeaf extends Page
     {
         /**
@@ -1278,10 +1367,11 @@ public abstract class Page implements Cloneable
         }
 
         @Override
-        void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff) {
+        void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff,
+                Map<Page, PreparedPayload> prepared) {
             if (!isSaved()) {
-                int patch = write(chunk, buff);
-                writeChildrenRecursive(chunk, buff);
+                int patch = write(chunk, buff, prepared);
+                writeChildrenRecursive(chunk, buff, prepared);
                 int old = buff.position();
                 buff.position(patch);
                 writeChildren(buff, false);
@@ -1289,18 +1379,37 @@ public abstract class Page implements Cloneable
             }
         }
 
-        void writeChildrenRecursive(Chunk chunk, WriteBuffer buff) {
+        void writeChildrenRecursive(Chunk chunk, WriteBuffer buff,
+                Map<Page, PreparedPayload> prepared) {
             int len = getRawChildPageCount();
             for (int i = 0; i < len; i++) {
                 PageReference ref = children[i];
                 Page p = ref.getPage();
                 if (p != null) {
-                    p.writeUnsavedRecursive(chunk, buff);
+                    p.writeUnsavedRecursive(chunk, buff, prepared);
                     ref.resetPos();
                 }
             }
         }
 
+        @Override
+        void collectUnsaved(List<Page> target) {
+            if (!isSaved()) {
+                target.add(this);
+                collectUnsavedChildren(target);
+            }
+        }
+
+        void collectUnsavedChildren(List<Page> target) {
+            int len = getRawChildPageCount();
+            for (int i = 0; i < len; i++) {
+                Page p = children[i].getPage();
+                if (p != null) {
+                    p.collectUnsaved(target);
+                }
+            }
+        }
+
         @Override
         void writeEnd() {
             int len = getRawChildPageCount();
@@ -1353,11 +1462,21 @@ public abstract class Page implements Cloneable
         }
 
         @Override
-        void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff) {
+        void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff,
+                Map<Page, PreparedPayload> prepared) {
+            if (complete) {
+                super.writeUnsavedRecursive(chunk, buff, prepared);
+            } else if (!isSaved()) {
+                writeChildrenRecursive(chunk, buff, prepared);
+            }
+        }
+
+        @Override
+        void collectUnsaved(List<Page> target) {
             if (complete) {
-                super.writeUnsavedRecursive(chunk, buff);
+                super.collectUnsaved(target);
             } else if (!isSaved()) {
-                writeChildrenRecursive(chunk, buff);
+                collectUnsavedChildren(target);
             }
         }
 
@@ -1560,9 +1679,17 @@ public abstract class Page implements Cloneable
         protected void writeChildren(WriteBuffer buff, boolean withCounts) {}
 
         @Override
-        void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff) {
+        void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff,
+                Map<Page, PreparedPayload> prepared) {
+            if (!isSaved()) {
+                write(chunk, buff, prepared);
+            }
+        }
+
+        @Override
+        void collectUnsaved(List<Page> target) {
             if (!isSaved()) {
-                write(chunk, buff);
+                target.add(this);
             }
         }
 
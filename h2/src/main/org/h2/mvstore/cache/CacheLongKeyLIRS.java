@@ -12,6 +12,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.h2.mvstore.DataUtils;
 
 /**
@@ -39,6 +42,15 @@ import org.h2.mvstore.DataUtils;
  * of other entries have been moved to the front (8 per segment by default).
  * Write access and moving entries to the top of the stack is synchronized per
  * segment.
+ * <p>
+ * Reading does not lock: a hit on a hot entry that does not need to be moved
+ * only updates the statistics, and other hits are recorded in a small read
+ * buffer per segment. The buffered accesses are applied in a batch when the
+ * buffer is full, before the segment is modified, and before its state is
+ * read. If the buffer is full while another thread applies it, accesses may
+ * get lost, which only affects the replacement decisions. The hit and miss
+ * counts are updated without synchronization, and may be slightly inaccurate
+ * with concurrent access.
  *
  * @author Thomas Mueller
  * @param <V> the value type
@@ -58,6 +70,7 @@ public class CacheLongKeyLIRS<V> {
     private final int stackMoveDistance;
     private final int nonResidentQueueSize;
     private final int nonResidentQueueSizeHigh;
+    private final int readBufferSize;
 
     /**
      * Create a new cache with the given memory size.
@@ -75,6 +88,10 @@ public class CacheLongKeyLIRS<V> {
         this.segmentCount = config.segmentCount;
         this.segmentMask = segmentCount - 1;
         this.stackMoveDistance = config.stackMoveDistance;
+        DataUtils.checkArgument(
+                config.readBufferSize == 0 || Integer.bitCount(config.readBufferSize) == 1,
+                "The read buffer size must be 0 or a power of 2, is {0}", config.readBufferSize);
+        this.readBufferSize = config.readBufferSize;
         segments = new Segment[segmentCount];
         clear();
         // use the high bits for the segment
@@ -88,7 +105,7 @@ public class CacheLongKeyLIRS<V> {
         long max = getMaxItemSize();
         for (int i = 0; i < segmentCount; i++) {
             segments[i] = new Segment<>(max, stackMoveDistance, 8, nonResidentQueueSize,
-                                        nonResidentQueueSizeHigh);
+                                        nonResidentQueueSizeHigh, readBufferSize);
         }
     }
 
@@ -167,6 +184,33 @@ public class CacheLongKeyLIRS<V> {
         }
     }
 
+    /**
+     * Add an entry that is not expected to be used again soon, for example
+     * because it was read by a table scan. The entry is added as a cold entry
+     * that is not on the stack. Such entries are evicted before all other
+     * entries (oldest first), so that a scan does not affect the hot entries.
+     * If there already is a resident entry for this key, or if there are no
+     * hot entries yet, this method behaves like put.
+     *
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return the old value, or null if there was no resident entry
+     */
+    public V putCold(long key, V value, int memory) {
+        if (value == null) {
+            throw DataUtils.newIllegalArgumentException(
+                    "The value may not be null");
+        }
+        int hash = getHash(key);
+        int segmentIndex = getSegmentIndex(hash);
+        Segment<V> s = segments[segmentIndex];
+        synchronized (s) {
+            s = resizeIfNeeded(s, segmentIndex);
+            return s.putCold(key, hash, value, memory);
+        }
+    }
+
     private Segment<V> resizeIfNeeded(Segment<V> s, int segmentIndex) {
         int newLen = s.getNewMapLen();
         if (newLen == 0) {
@@ -237,7 +281,7 @@ public class CacheLongKeyLIRS<V> {
         int hash = getHash(key);
         Segment<V> s = getSegment(hash);
         Entry<V> e = s.find(key, hash);
-        return s.get(e);
+        return s.readBuffer == null ? s.get(e) : s.getUnlocked(e);
     }
 
     private Segment<V> getSegment(int hash) {
@@ -273,6 +317,7 @@ public class CacheLongKeyLIRS<V> {
     public long getUsedMemory() {
         long x = 0;
         for (Segment<V> s : segments) {
+            s.drainReadBufferIfNeeded();
             x += s.usedMemory;
         }
         return x;
@@ -344,6 +389,7 @@ public class CacheLongKeyLIRS<V> {
     public int sizeNonResident() {
         int x = 0;
         for (Segment<V> s : segments) {
+            s.drainReadBufferIfNeeded();
             x += s.queue2Size;
         }
         return x;
@@ -370,6 +416,7 @@ public class CacheLongKeyLIRS<V> {
     public int sizeHot() {
         int x = 0;
         for (Segment<V> s : segments) {
+            s.drainReadBufferIfNeeded();
             x += s.mapSize - s.queueSize - s.queue2Size;
         }
         return x;
@@ -409,6 +456,7 @@ public class CacheLongKeyLIRS<V> {
     public int size() {
         int x = 0;
         for (Segment<V> s : segments) {
+            s.drainReadBufferIfNeeded();
             x += s.mapSize - s.queue2Size;
         }
         return x;
@@ -499,6 +547,7 @@ public class CacheLongKeyLIRS<V> {
     public void trimNonResidentQueue() {
         for (Segment<V> s : segments) {
             synchronized (s) {
+                s.drainReadBuffer();
                 s.trimNonResidentQueue();
             }
         }
@@ -517,7 +566,8 @@ public class CacheLongKeyLIRS<V> {
         int mapSize;
 
         /**
-         * The size of the LIRS queue for resident cold entries.
+         * The size of the LIRS queue for resident cold entries, including the
+         * entries that were added by a scan.
          */
         int queueSize;
 
@@ -604,11 +654,35 @@ public class CacheLongKeyLIRS<V> {
          */
         private final Entry<V> queue2;
 
+        /**
+         * The queue of resident cold entries that were added by a scan. These
+         * entries are evicted first, and are not kept as non-resident entries.
+         * <p>
+         * There is always at least one entry: the head entry.
+         */
+        private final Entry<V> queueScan;
+
         /**
          * The number of times any item was moved to the top of the stack.
          */
         private int stackMoveCounter;
 
+        /**
+         * The entries that were read, but the access was not applied yet, or
+         * null if each access is applied immediately.
+         */
+        final AtomicReferenceArray<Entry<V>> readBuffer;
+
+        /**
+         * The number of accesses added to the read buffer.
+         */
+        private final AtomicInteger readBufferCount;
+
+        /**
+         * Whether a thread is applying the buffered accesses.
+         */
+        private final AtomicBoolean readBufferDraining;
+
         /**
          * Create a new cache segment.
          *  @param maxMemory the maximum memory to use
@@ -617,10 +691,21 @@ public class CacheLongKeyLIRS<V> {
          * @param len the number of hash table buckets (must be a power of 2)
          * @param nonResidentQueueSize the non-resident queue size low watermark factor
          * @param nonResidentQueueSizeHigh  the non-resident queue size high watermark factor
+         * @param readBufferSize the number of buffered read accesses (0 or a
+         *        power of 2)
          */
         Segment(long maxMemory, int stackMoveDistance, int len,
-                int nonResidentQueueSize, int nonResidentQueueSizeHigh) {
+                int nonResidentQueueSize, int nonResidentQueueSizeHigh, int readBufferSize) {
             setMaxMemory(maxMemory);
+            if (readBufferSize > 0) {
+                readBuffer = new AtomicReferenceArray<>(readBufferSize);
+                readBufferCount = new AtomicInteger();
+                readBufferDraining = new AtomicBoolean();
+            } else {
+                readBuffer = null;
+                readBufferCount = null;
+                readBufferDraining = null;
+            }
             this.stackMoveDistance = stackMoveDistance;
             this.nonResidentQueueSize = nonResidentQueueSize;
             this.nonResidentQueueSizeHigh = nonResidentQueueSizeHigh;
@@ -635,6 +720,8 @@ public class CacheLongKeyLIRS<V> {
             queue.queuePrev = queue.queueNext = queue;
             queue2 = new Entry<>();
             queue2.queuePrev = queue2.queueNext = queue2;
+            queueScan = new Entry<>();
+            queueScan.queuePrev = queueScan.queueNext = queueScan;
 
             @SuppressWarnings("unchecked")
             Entry<V>[] e = new Entry[len];
@@ -651,7 +738,8 @@ public class CacheLongKeyLIRS<V> {
          */
         Segment(Segment<V> old, int len) {
             this(old.maxMemory, old.stackMoveDistance, len,
-                    old.nonResidentQueueSize, old.nonResidentQueueSizeHigh);
+                    old.nonResidentQueueSize, old.nonResidentQueueSizeHigh,
+                    old.readBuffer == null ? 0 : old.readBuffer.length());
             hits = old.hits;
             misses = old.misses;
             Entry<V> s = old.stack.stackPrev;
@@ -681,6 +769,13 @@ public class CacheLongKeyLIRS<V> {
                 addToQueue(queue2, e);
                 s = s.queuePrev;
             }
+            s = old.queueScan.queuePrev;
+            while (s != old.queueScan) {
+                Entry<V> e = new Entry<>(s);
+                addToMap(e);
+                addToQueue(queueScan, e);
+                s = s.queuePrev;
+            }
         }
 
         /**
@@ -730,6 +825,71 @@ public class CacheLongKeyLIRS<V> {
             return value;
         }
 
+        /**
+         * Get the value from the given entry without locking. Accesses that
+         * may change the internal state of the cache are recorded in the read
+         * buffer.
+         *
+         * @param e the entry
+         * @return the value, or null if there is no resident entry
+         */
+        V getUnlocked(Entry<V> e) {
+            V value = e == null ? null : e.getValueUnlocked();
+            if (value == null) {
+                // the entry was not found
+                // or it was a non-resident entry
+                misses++;
+                return null;
+            }
+            hits++;
+            if (!e.isHot() || (e != stack.stackNext && e.stackNext != null &&
+                    stackMoveCounter - e.topMove > stackMoveDistance)) {
+                // access would change the state
+                int i = readBufferCount.getAndIncrement();
+                int mask = readBuffer.length() - 1;
+                readBuffer.lazySet(i & mask, e);
+                if ((i & mask) == mask && readBufferDraining.compareAndSet(false, true)) {
+                    try {
+                        synchronized (this) {
+                            drainReadBuffer();
+                        }
+                    } finally {
+                        readBufferDraining.set(false);
+                    }
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Apply the buffered accesses, if there are any.
+         */
+        void drainReadBufferIfNeeded() {
+            if (readBuffer != null && readBufferCount.get() != 0) {
+                synchronized (this) {
+                    drainReadBuffer();
+                }
+            }
+        }
+
+        /**
+         * Apply the buffered accesses. The caller must synchronize on this
+         * segment.
+         */
+        void drainReadBuffer() {
+            if (readBuffer == null) {
+                return;
+            }
+            readBufferCount.set(0);
+            for (int i = 0, len = readBuffer.length(); i < len; i++) {
+                Entry<V> e = readBuffer.getAndSet(i, null);
+                // the entry may have been removed in the meantime
+                if (e != null && find(e.key, getHash(e.key)) == e) {
+                    access(e);
+                }
+            }
+        }
+
         /**
          * Access an item, moving the entry to the top of the stack or front of
          * the queue if found.
@@ -795,6 +955,7 @@ public class CacheLongKeyLIRS<V> {
          * @return the old value, or null if there was no resident entry
          */
         synchronized V put(long key, int hash, V value, int memory) {
+            drainReadBuffer();
             Entry<V> e = find(key, hash);
             boolean existed = e != null;
             V old = null;
@@ -831,6 +992,49 @@ public class CacheLongKeyLIRS<V> {
             return old;
         }
 
+        /**
+         * Add an entry to the queue of entries that were added by a scan.
+         *
+         * @param key the key (may not be null)
+         * @param hash the hash
+         * @param value the value (may not be null)
+         * @param memory the memory used for the given entry
+         * @return the old value, or null if there was no resident entry
+         */
+        synchronized V putCold(long key, int hash, V value, int memory) {
+            drainReadBuffer();
+            Entry<V> e = find(key, hash);
+            if (e != null && e.value != null) {
+                return put(key, hash, value, memory);
+            }
+            if (e != null) {
+                // non-resident: the scan does not count as a re-use
+                remove(key, hash);
+            }
+            if (memory > maxMemory) {
+                return null;
+            }
+            e = new Entry<>(key, value, memory);
+            int index = hash & mask;
+            e.mapNext = entries[index];
+            entries[index] = e;
+            usedMemory += memory;
+            mapSize++;
+            if (usedMemory > maxMemory) {
+                evict();
+            }
+            if (stackSize > 0) {
+                // if it is used again, it is moved to the stack, but it
+                // only becomes hot if it is used once more while it is
+                // still on the stack
+                addToQueue(queueScan, e);
+            } else {
+                // there are no hot entries
+                addToStack(e);
+            }
+            return null;
+        }
+
         /**
          * Remove an entry. Both resident and non-resident entries can be
          * removed.
@@ -840,6 +1044,7 @@ public class CacheLongKeyLIRS<V> {
          * @return the old value, or null if there was no resident entry
          */
         synchronized V remove(long key, int hash) {
+            drainReadBuffer();
             int index = hash & mask;
             Entry<V> e = entries[index];
             if (e == null) {
@@ -901,7 +1106,13 @@ public class CacheLongKeyLIRS<V> {
             }
             // the oldest resident cold entries become non-resident
             while (usedMemory > maxMemory && queueSize > 0) {
-                Entry<V> e = queue.queuePrev;
+                Entry<V> e = queueScan.queuePrev;
+                if (e != queueScan) {
+                    // entries added by a scan are removed first
+                    remove(e.key, getHash(e.key));
+                    continue;
+                }
+                e = queue.queuePrev;
                 usedMemory -= e.memory;
                 removeFromQueue(e);
                 e.reference = new WeakReference<>(e.value);
@@ -1039,6 +1250,7 @@ public class CacheLongKeyLIRS<V> {
          * @return the key list
          */
         synchronized List<Long> keys(boolean cold, boolean nonResident) {
+            drainReadBuffer();
             ArrayList<Long> keys = new ArrayList<>();
             if (cold) {
                 Entry<V> start = nonResident ? queue2 : queue;
@@ -1046,6 +1258,12 @@ public class CacheLongKeyLIRS<V> {
                         e = e.queueNext) {
                     keys.add(e.key);
                 }
+                if (!nonResident) {
+                    for (Entry<V> e = queueScan.queueNext; e != queueScan;
+                            e = e.queueNext) {
+                        keys.add(e.key);
+                    }
+                }
             } else {
                 for (Entry<V> e = stack.stackNext; e != stack;
                         e = e.stackNext) {
@@ -1061,6 +1279,7 @@ public class CacheLongKeyLIRS<V> {
          * @return the set of keys
          */
         synchronized Set<Long> keySet() {
+            drainReadBuffer();
             HashSet<Long> set = new HashSet<>();
             for (Entry<V> e = stack.stackNext; e != stack; e = e.stackNext) {
                 set.add(e.key);
@@ -1068,6 +1287,9 @@ public class CacheLongKeyLIRS<V> {
             for (Entry<V> e = queue.queueNext; e != queue; e = e.queueNext) {
                 set.add(e.key);
             }
+            for (Entry<V> e = queueScan.queueNext; e != queueScan; e = e.queueNext) {
+                set.add(e.key);
+            }
             return set;
         }
 
@@ -1176,6 +1398,22 @@ public class CacheLongKeyLIRS<V> {
             return value == null ? reference.get() : value;
         }
 
+        /**
+         * Get the value without holding the lock of the segment. The value
+         * and the reference may be changed concurrently, so null is returned
+         * if neither is set.
+         *
+         * @return the value, or null
+         */
+        V getValueUnlocked() {
+            V v = value;
+            if (v == null) {
+                WeakReference<V> r = reference;
+                v = r == null ? null : r.get();
+            }
+            return v;
+        }
+
         int getMemory() {
             return value == null ? 0 : memory;
         }
@@ -1202,6 +1440,13 @@ public class CacheLongKeyLIRS<V> {
          */
         public int stackMoveDistance = 32;
 
+        /**
+         * The number of read accesses buffered per segment before they are
+         * applied (0 or a power of 2). If 0, reading synchronizes on the
+         * segment and each access is applied immediately.
+         */
+        public int readBufferSize = 32;
+
         /**
          * Low water mark for the number of entries in the non-resident queue,
          * as a factor of the number of all other entries in the map.
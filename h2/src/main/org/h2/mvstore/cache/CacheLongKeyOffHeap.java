@@ -0,0 +1,312 @@
+/*
+ * Copyright 2004-2019 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import org.h2.mvstore.DataUtils;
+
+/**
+ * A cache for byte arrays that uses keys of type long, and keeps the data
+ * outside of the heap, in direct byte buffers. It is meant as a second level
+ * cache for serialized data, for example pages that were read from a file.
+ * <p>
+ * This implementation is multi-threading safe and supports concurrent access.
+ * Internally, the cache is split into a number of segments. Each segment is a
+ * ring buffer, and data is appended at the end; when the buffer is full, the
+ * oldest entries are evicted (first in, first out). The direct buffer of a
+ * segment is allocated when the first entry is added.
+ * <p>
+ * Entries can not be replaced: adding an entry with a key that already exists
+ * is ignored. Entries larger than a quarter of a segment are not cached.
+ */
+public class CacheLongKeyOffHeap {
+
+    private final long maxMemory;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+    private final int segmentMask;
+
+    /**
+     * Create a new cache with the given memory size.
+     *
+     * @param maxMemory the maximum memory to use, in bytes
+     * @param segmentCount the number of segments (must be a power of 2)
+     */
+    public CacheLongKeyOffHeap(long maxMemory, int segmentCount) {
+        DataUtils.checkArgument(
+                Integer.bitCount(segmentCount) == 1,
+                "The segment count must be a power of 2, is {0}", segmentCount);
+        DataUtils.checkArgument(
+                maxMemory > 0,
+                "Max memory must be larger than 0, is {0}", maxMemory);
+        int segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxMemory / segmentCount));
+        this.maxMemory = (long) segmentSize * segmentCount;
+        segmentMask = segmentCount - 1;
+        segmentShift = 32 - Integer.bitCount(segmentMask);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Get a copy of the data for the given key.
+     *
+     * @param key the key
+     * @return the data, or null if there is no entry
+     */
+    public byte[] get(long key) {
+        return getSegment(key).get(key);
+    }
+
+    /**
+     * Add an entry, if there is no entry for this key yet. The remaining bytes
+     * of the buffer are copied; the position of the buffer is not changed.
+     *
+     * @param key the key
+     * @param data the data
+     */
+    public void put(long key, ByteBuffer data) {
+        getSegment(key).put(key, data);
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    private Segment getSegment(long key) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    /**
+     * Get the maximum memory to use.
+     *
+     * @return the maximum memory
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Get the currently used memory.
+     *
+     * @return the used memory
+     */
+    public long getUsedMemory() {
+        long x = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                x += s.usedMemory;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return the cache hits
+     */
+    public long getHits() {
+        long x = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                x += s.hits;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return the cache misses
+     */
+    public long getMisses() {
+        long x = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                x += s.misses;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of entries that were evicted to make space.
+     *
+     * @return the number of evicted entries
+     */
+    public long getEvictions() {
+        long x = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                x += s.evictions;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int x = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                x += s.map.size();
+            }
+        }
+        return x;
+    }
+
+    /**
+     * A cache entry.
+     */
+    private static final class Entry {
+
+        /**
+         * The key.
+         */
+        final long key;
+
+        /**
+         * The logical start position (not wrapped around).
+         */
+        final long start;
+
+        /**
+         * The length in bytes.
+         */
+        final int length;
+
+        Entry(long key, long start, int length) {
+            this.key = key;
+            this.start = start;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * A cache segment.
+     */
+    private static final class Segment {
+
+        /**
+         * The entries by key.
+         */
+        final HashMap<Long, Entry> map = new HashMap<>();
+
+        /**
+         * The entries, oldest first.
+         */
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+        private final int capacity;
+
+        /**
+         * The buffer, or null if not allocated yet.
+         */
+        private ByteBuffer data;
+
+        /**
+         * The logical position where the next entry is written.
+         */
+        private long writePos;
+
+        /**
+         * The number of bytes used by the entries.
+         */
+        long usedMemory;
+
+        /**
+         * The number of cache hits.
+         */
+        long hits;
+
+        /**
+         * The number of cache misses.
+         */
+        long misses;
+
+        /**
+         * The number of evicted entries.
+         */
+        long evictions;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(long key) {
+            Entry e = map.get(key);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            byte[] result = new byte[e.length];
+            ByteBuffer buff = data.duplicate();
+            buff.position((int) (e.start % capacity));
+            buff.get(result);
+            return result;
+        }
+
+        synchronized void put(long key, ByteBuffer src) {
+            int len = src.remaining();
+            if (len > capacity / 4 || map.containsKey(key)) {
+                return;
+            }
+            if (data == null) {
+                data = ByteBuffer.allocateDirect(capacity);
+            }
+            long start = writePos;
+            int offset = (int) (start % capacity);
+            if (offset + len > capacity) {
+                // entries are not split: continue at the beginning
+                start += capacity - offset;
+                offset = 0;
+            }
+            long end = start + len;
+            while (!queue.isEmpty() && queue.peekFirst().start < end - capacity) {
+                Entry old = queue.pollFirst();
+                map.remove(old.key);
+                usedMemory -= old.length;
+                evictions++;
+            }
+            ByteBuffer buff = data.duplicate();
+            buff.position(offset);
+            buff.put(src.duplicate());
+            Entry e = new Entry(key, start, len);
+            map.put(key, e);
+            queue.addLast(e);
+            usedMemory += len;
+            writePos = end;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            queue.clear();
+            usedMemory = 0;
+            writePos = 0;
+        }
+
+    }
+
+}
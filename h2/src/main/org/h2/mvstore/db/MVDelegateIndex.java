@@ -83,6 +83,25 @@ public class MVDelegateIndex extends BaseIndex implements MVIndex {
         return mainIndex.find(session, min, max);
     }
 
+    @Override
+    public boolean canFindByPosition() {
+        return true;
+    }
+
+    @Override
+    public long getRowCount(Session session, SearchRow first, SearchRow last) {
+        ValueLong min = mainIndex.getKey(first, ValueLong.MIN, ValueLong.MIN);
+        ValueLong max = mainIndex.getKey(last, ValueLong.MAX, ValueLong.MIN);
+        return mainIndex.getRowCount(session, min, max);
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last, long offset) {
+        ValueLong min = mainIndex.getKey(first, ValueLong.MIN, ValueLong.MIN);
+        ValueLong max = mainIndex.getKey(last, ValueLong.MAX, ValueLong.MIN);
+        return mainIndex.find(session, min, max, offset);
+    }
+
     @Override
     public Cursor findFirstOrLast(Session session, boolean first) {
         return mainIndex.findFirstOrLast(session, first);
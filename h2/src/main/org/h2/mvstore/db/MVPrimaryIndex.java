@@ -13,6 +13,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicLong;
 import org.h2.api.ErrorCode;
 import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.compress.Compressor;
 import org.h2.engine.Database;
 import org.h2.engine.Session;
 import org.h2.index.BaseIndex;
@@ -27,6 +28,7 @@ import org.h2.result.SortOrder;
 import org.h2.table.Column;
 import org.h2.table.IndexColumn;
 import org.h2.table.TableFilter;
+import org.h2.value.TypeInfo;
 import org.h2.value.Value;
 import org.h2.value.ValueArray;
 import org.h2.value.ValueLong;
@@ -37,6 +39,11 @@ import org.h2.value.ValueNull;
  */
 public class MVPrimaryIndex extends BaseIndex {
 
+    /**
+     * Columns with a larger precision are considered to contain large values.
+     */
+    private static final long LARGE_COLUMN_PRECISION = 255;
+
     private final MVTable mvTable;
     private final String mapName;
     private final TransactionMap<Value, Value> dataMap;
@@ -56,13 +63,46 @@ public class MVPrimaryIndex extends BaseIndex {
         mapName = "table." + getId();
         assert db.isStarting() || !db.getStore().getMvStore().getMetaMap().containsKey("name." + mapName);
         Transaction t = mvTable.getTransactionBegin();
-        dataMap = t.openMap(mapName, keyType, valueType);
+        // the row keys are usually increasing, and appended
+        dataMap = t.openMap(mapName, keyType, valueType, true);
         dataMap.map.setVolatile(!table.isPersistData() || !indexType.isPersistent());
+        if (db.getSettings().compressData && hasLargeColumns(table)) {
+            dataMap.map.setCompression(Compressor.DEFLATE);
+        }
         t.commit();
         Value k = dataMap.map.lastKey();    // include uncommitted keys as well
         lastKey.set(k == null ? 0 : k.getLong());
     }
 
+    /**
+     * Check whether the table has columns that may contain large text or
+     * binary values. Rows of such tables compress well with a higher-ratio
+     * algorithm.
+     *
+     * @param table the table
+     * @return true if there are large columns
+     */
+    private static boolean hasLargeColumns(MVTable table) {
+        for (Column column : table.getColumns()) {
+            TypeInfo type = column.getType();
+            switch (type.getValueType()) {
+            case Value.BLOB:
+            case Value.CLOB:
+                return true;
+            case Value.BYTES:
+            case Value.STRING:
+            case Value.STRING_IGNORECASE:
+            case Value.STRING_FIXED:
+                if (type.getPrecision() > LARGE_COLUMN_PRECISION) {
+                    return true;
+                }
+                break;
+            default:
+            }
+        }
+        return false;
+    }
+
     @Override
     public String getCreateSQL() {
         return null;
@@ -88,13 +128,18 @@ public class MVPrimaryIndex extends BaseIndex {
 
     @Override
     public void add(Session session, Row row) {
+        // generated keys and increasing identity values are higher than all
+        // existing keys, so the row can be appended to the last leaf
+        boolean append;
         if (mainIndexColumn == SearchRow.ROWID_INDEX) {
-            if (row.getKey() == 0) {
+            append = row.getKey() == 0;
+            if (append) {
                 row.setKey(lastKey.incrementAndGet());
             }
         } else {
             long c = row.getValue(mainIndexColumn).getLong();
             row.setKey(c);
+            append = c > lastKey.get();
         }
 
         if (mvTable.getContainsLargeObject()) {
@@ -114,7 +159,8 @@ public class MVPrimaryIndex extends BaseIndex {
         long rowKey = row.getKey();
         Value key = ValueLong.get(rowKey);
         try {
-            Value oldValue = map.putIfAbsent(key, ValueArray.get(row.getValueList()));
+            Value value = ValueArray.get(row.getValueList());
+            Value oldValue = append ? map.appendIfAbsent(key, value) : map.putIfAbsent(key, value);
             if (oldValue != null) {
                 StringBuilder builder = new StringBuilder("PRIMARY KEY ON ");
                 table.getSQL(builder, false);
@@ -241,7 +287,28 @@ public class MVPrimaryIndex extends BaseIndex {
         ValueLong min = extractPKFromRow(first, ValueLong.MIN);
         ValueLong max = extractPKFromRow(last, ValueLong.MAX);
         TransactionMap<Value, Value> map = getMap(session);
-        return new MVStoreCursor(session, map.entryIterator(min, max));
+        // a scan without bounds should not evict the frequently used pages
+        boolean scan = first == null && last == null;
+        return new MVStoreCursor(session, map.entryIterator(min, max, scan));
+    }
+
+    @Override
+    public boolean canFindByPosition() {
+        return true;
+    }
+
+    @Override
+    public long getRowCount(Session session, SearchRow first, SearchRow last) {
+        ValueLong min = extractPKFromRow(first, ValueLong.MIN);
+        ValueLong max = extractPKFromRow(last, ValueLong.MAX);
+        return getRowCount(session, min, max);
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last, long offset) {
+        ValueLong min = extractPKFromRow(first, ValueLong.MIN);
+        ValueLong max = extractPKFromRow(last, ValueLong.MAX);
+        return find(session, min, max, offset);
     }
 
     private ValueLong extractPKFromRow(SearchRow row, ValueLong defaultValue) {
@@ -418,6 +485,42 @@ public class MVPrimaryIndex extends BaseIndex {
         return new MVStoreCursor(session, map.entryIterator(first, last));
     }
 
+    /**
+     * Search for a set of rows, skipping the given number of rows without
+     * reading them.
+     *
+     * @param session the session
+     * @param first the key of the first row
+     * @param last the key of the last row
+     * @param offset the number of rows to skip
+     * @return the cursor
+     */
+    Cursor find(Session session, ValueLong first, ValueLong last, long offset) {
+        TransactionMap<Value, Value> map = getMap(session);
+        Value min = first;
+        if (offset > 0) {
+            min = map.getKey(first, offset);
+            if (min == null) {
+                return new MVStoreCursor(session,
+                        Collections.<Entry<Value, Value>>emptyIterator());
+            }
+        }
+        return new MVStoreCursor(session, map.entryIterator(min, last));
+    }
+
+    /**
+     * Get the number of rows in the given range, without reading them.
+     *
+     * @param session the session
+     * @param first the key of the first row
+     * @param last the key of the last row
+     * @return the number of rows
+     */
+    long getRowCount(Session session, ValueLong first, ValueLong last) {
+        TransactionMap<Value, Value> map = getMap(session);
+        return map.sizeAsLong(first, last);
+    }
+
     @Override
     public boolean isRowIdIndex() {
         return true;
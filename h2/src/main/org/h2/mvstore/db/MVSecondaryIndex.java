@@ -5,13 +5,16 @@
  */
 package org.h2.mvstore.db;
 
+import java.util.AbstractMap;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import org.h2.api.ErrorCode;
 import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.compress.Compressor;
 import org.h2.engine.Database;
 import org.h2.engine.Mode;
 import org.h2.engine.Session;
@@ -40,6 +43,12 @@ import org.h2.value.ValueNull;
  */
 public final class MVSecondaryIndex extends BaseIndex implements MVIndex {
 
+    /**
+     * The fill rate of the pages when creating an index, in percent. Some
+     * space is left for later changes.
+     */
+    private static final int BULK_LOAD_FILL_RATE = 90;
+
     /**
      * The multi-value table.
      */
@@ -65,10 +74,16 @@ public final class MVSecondaryIndex extends BaseIndex implements MVIndex {
         }
         sortTypes[keyColumns - 1] = SortOrder.ASCENDING;
         ValueDataType keyType = new ValueDataType(db, sortTypes);
+        keyType.setPrefixKeys(db.getSettings().indexKeyPrefixes);
         ValueDataType valueType = new ValueDataType();
         Transaction t = mvTable.getTransactionBegin();
         dataMap = t.openMap(mapName, keyType, valueType);
         dataMap.map.setVolatile(!table.isPersistData() || !indexType.isPersistent());
+        if (indexType.getFillFactor() != 0) {
+            dataMap.map.setFillFactor(indexType.getFillFactor());
+        }
+        // index entries are small and don't compress well
+        dataMap.map.setCompression(Compressor.NO);
         t.commit();
         if (!keyType.equals(dataMap.getKeyType())) {
             throw DbException.throwInternalError(
@@ -137,6 +152,11 @@ public final class MVSecondaryIndex extends BaseIndex implements MVIndex {
         }
 
         try {
+            if (dataMap.map.isEmpty()) {
+                // build the pages bottom-up
+                loadBufferedRows(queue);
+                return;
+            }
             while (!queue.isEmpty()) {
                 Source s = queue.poll();
                 ValueArray rowData = s.next();
@@ -160,6 +180,41 @@ public final class MVSecondaryIndex extends BaseIndex implements MVIndex {
         }
     }
 
+    private void loadBufferedRows(final Queue<Source> queue) {
+        dataMap.loadCommitted(new Iterator<Map.Entry<Value, Value>>() {
+
+            private SearchRow last;
+
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<Value, Value> next() {
+                Source s = queue.poll();
+                ValueArray rowData = s.next();
+                if (indexType.isUnique()) {
+                    // duplicates are next to each other
+                    SearchRow row = convertToSearchRow(rowData);
+                    if (last != null && !mayHaveNullDuplicates(row) && compareRows(last, row) == 0) {
+                        throw getDuplicateKeyException(String.valueOf(last.getKey()));
+                    }
+                    last = row;
+                }
+                if (s.hasNext()) {
+                    queue.offer(s);
+                }
+                return new AbstractMap.SimpleImmutableEntry<Value, Value>(rowData, ValueNull.INSTANCE);
+            }
+
+            @Override
+            public void remove() {
+                throw DbException.getUnsupportedException("remove");
+            }
+        }, BULK_LOAD_FILL_RATE);
+    }
+
     private MVMap<ValueArray, Value> openMap(String mapName) {
         int[] sortTypes = new int[keyColumns];
         for (int i = 0; i < indexColumns.length; i++) {
@@ -167,6 +222,7 @@ public final class MVSecondaryIndex extends BaseIndex implements MVIndex {
         }
         sortTypes[keyColumns - 1] = SortOrder.ASCENDING;
         ValueDataType keyType = new ValueDataType(database, sortTypes);
+        keyType.setPrefixKeys(database.getSettings().indexKeyPrefixes);
         ValueDataType valueType = new ValueDataType();
         MVMap.Builder<ValueArray, Value> builder =
                 new MVMap.Builder<ValueArray, Value>()
@@ -413,6 +469,33 @@ public final class MVSecondaryIndex extends BaseIndex implements MVIndex {
         return find(session, higherThan, true, last);
     }
 
+    @Override
+    public boolean canFindByPosition() {
+        return true;
+    }
+
+    @Override
+    public long getRowCount(Session session, SearchRow first, SearchRow last) {
+        ValueArray min = convertToKey(first, ValueLong.MIN);
+        ValueArray max = convertToKey(last, ValueLong.MAX);
+        TransactionMap<Value, Value> map = getMap(session);
+        return map.sizeAsLong(min, max);
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last, long offset) {
+        Value min = convertToKey(first, ValueLong.MIN);
+        ValueArray max = convertToKey(last, ValueLong.MAX);
+        TransactionMap<Value, Value> map = getMap(session);
+        if (offset > 0) {
+            min = map.getKey(min, offset);
+            if (min == null) {
+                return new MVStoreCursor(session, Collections.<Value>emptyIterator());
+            }
+        }
+        return new MVStoreCursor(session, map.keyIterator(min, max, false));
+    }
+
     @Override
     public void checkRename() {
         // ok
@@ -14,6 +14,7 @@ import java.util.Iterator;
 import java.util.List;
 import org.h2.api.ErrorCode;
 import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.compress.Compressor;
 import org.h2.engine.Database;
 import org.h2.engine.Session;
 import org.h2.index.BaseIndex;
@@ -107,6 +108,8 @@ public class MVSpatialIndex extends BaseIndex implements SpatialIndex, MVIndex {
         Transaction t = mvTable.getTransactionBegin();
         dataMap = t.openMap(spatialMap);
         dataMap.map.setVolatile(!table.isPersistData() || !indexType.isPersistent());
+        // index entries are small and don't compress well
+        dataMap.map.setCompression(Compressor.NO);
         t.commit();
     }
 
@@ -83,6 +83,13 @@ public class MVTableEngine implements TableEngine {
                 // use a larger page split size to improve the compression ratio
                 builder.pageSplitSize(64 * 1024);
             }
+            builder.groupCommitDelay(db.getSettings().groupCommitDelay);
+            if (db.getSettings().mappedReads) {
+                builder.mappedReads();
+            }
+            builder.readAheadPages(db.getSettings().readAheadPages);
+            builder.compactBytesPerSecond(db.getSettings().compactBytesPerSecond);
+            builder.offHeapCacheSize(db.getSettings().offHeapCacheSize);
             builder.backgroundExceptionHandler(new UncaughtExceptionHandler() {
 
                 @Override
@@ -167,6 +174,10 @@ public class MVTableEngine implements TableEngine {
                 if (!db.getSettings().reuseSpace) {
                     mvStore.setReuseSpace(false);
                 }
+                if (db.getSettings().indexKeyPrefixes) {
+                    // older versions can not read the index pages
+                    mvStore.upgradeFormat();
+                }
                 this.transactionStore = new TransactionStore(mvStore,
                         new ValueDataType(db, null), db.getLockTimeout());
             } catch (IllegalStateException e) {
@@ -255,6 +266,7 @@ public class MVTableEngine implements TableEngine {
             if (s == null || s.isReadOnly()) {
                 return;
             }
+            transactionStore.finishCommits();
             if (!mvStore.compact(50, 4 * 1024 * 1024)) {
                 mvStore.commit();
             }
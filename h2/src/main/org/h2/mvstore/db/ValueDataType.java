@@ -86,6 +86,7 @@ public class ValueDataType implements DataType {
     private static final byte ENUM = 25;
     private static final byte INTERVAL = 26;
     private static final byte ROW = 27;
+    private static final byte PREFIX_ARRAYS = 28;
     private static final byte INT_0_15 = 32;
     private static final byte LONG_0_7 = 48;
     private static final byte DECIMAL_0_1 = 56;
@@ -108,6 +109,12 @@ public class ValueDataType implements DataType {
     final int[] sortTypes;
     SpatialDataType spatialType;
 
+    /**
+     * Whether the common leading values of the keys of a page are written
+     * only once.
+     */
+    private boolean prefixKeys;
+
     public ValueDataType() {
         this(CompareMode.getInstance(null, 0), null, null, null);
     }
@@ -124,6 +131,17 @@ public class ValueDataType implements DataType {
         this.sortTypes = sortTypes;
     }
 
+    /**
+     * Write the leading values that all keys of a page have in common only
+     * once. Pages written this way can not be read by older versions, so the
+     * format of the store needs to be upgraded before.
+     *
+     * @param prefixKeys whether to write common prefixes once
+     */
+    public void setPrefixKeys(boolean prefixKeys) {
+        this.prefixKeys = prefixKeys;
+    }
+
     private SpatialDataType getSpatialDataType() {
         if (spatialType == null) {
             spatialType = new SpatialDataType(2);
@@ -196,6 +214,11 @@ public class ValueDataType implements DataType {
 
     @Override
     public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        if (len > 0 && buff.get(buff.position()) == PREFIX_ARRAYS) {
+            buff.get();
+            readPrefixArrays(buff, obj, len);
+            return;
+        }
         for (int i = 0; i < len; i++) {
             obj[i] = read(buff);
         }
@@ -203,11 +226,137 @@ public class ValueDataType implements DataType {
 
     @Override
     public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        if (key && prefixKeys && len > 1) {
+            int prefix = getCommonPrefix(obj, len);
+            if (prefix > 0) {
+                writePrefixArrays(buff, obj, len, prefix);
+                return;
+            }
+        }
         for (int i = 0; i < len; i++) {
             write(buff, obj[i]);
         }
     }
 
+    /**
+     * Get the number of leading elements that all keys have in common. This is
+     * only supported for arrays (index keys), and only for values where the
+     * serialized form is known to be the same.
+     *
+     * @param obj the keys
+     * @param len the number of keys
+     * @return the number of common leading elements, or 0
+     */
+    private static int getCommonPrefix(Object[] obj, int len) {
+        if (!(obj[0] instanceof ValueArray)) {
+            return 0;
+        }
+        Value[] first = ((ValueArray) obj[0]).getList();
+        int prefix = first.length;
+        for (int i = 1; i < len && prefix > 0; i++) {
+            if (!(obj[i] instanceof ValueArray)) {
+                return 0;
+            }
+            Value[] list = ((ValueArray) obj[i]).getList();
+            prefix = Math.min(prefix, list.length);
+            for (int j = 0; j < prefix; j++) {
+                if (!isSameValue(first[j], list[j])) {
+                    prefix = j;
+                    break;
+                }
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Check whether two values are identical, including the serialized form.
+     * Unlike Value.equals, this distinguishes for example strings that only
+     * differ in case, and it never considers large or custom values identical
+     * unless they are the same object.
+     *
+     * @param a the first value
+     * @param b the second value
+     * @return true if the values are identical
+     */
+    private static boolean isSameValue(Value a, Value b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getValueType() != b.getValueType()) {
+            return false;
+        }
+        switch (a.getValueType()) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.TIMESTAMP_TZ:
+        case Value.BYTES:
+        case Value.STRING:
+        case Value.STRING_FIXED:
+        case Value.UUID:
+            return a.equals(b);
+        case Value.STRING_IGNORECASE:
+            return a.getString().equals(b.getString());
+        case Value.DOUBLE:
+            return Double.doubleToRawLongBits(a.getDouble()) ==
+                    Double.doubleToRawLongBits(b.getDouble());
+        case Value.FLOAT:
+            return Float.floatToRawIntBits(a.getFloat()) ==
+                    Float.floatToRawIntBits(b.getFloat());
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Write arrays that have common leading elements. The common elements are
+     * stored once, followed by the remaining elements of each array.
+     * Format: PREFIX_ARRAYS, prefix length, prefix values; then for each
+     * array: number of remaining elements, remaining values.
+     */
+    private void writePrefixArrays(WriteBuffer buff, Object[] obj, int len, int prefix) {
+        Value[] first = ((ValueArray) obj[0]).getList();
+        buff.put(PREFIX_ARRAYS).putVarInt(prefix);
+        for (int j = 0; j < prefix; j++) {
+            writeValue(buff, first[j]);
+        }
+        for (int i = 0; i < len; i++) {
+            Value[] list = ((ValueArray) obj[i]).getList();
+            buff.putVarInt(list.length - prefix);
+            for (int j = prefix; j < list.length; j++) {
+                writeValue(buff, list[j]);
+            }
+        }
+    }
+
+    /**
+     * Read arrays written by writePrefixArrays. The arrays share the instances
+     * of the common leading values, which saves memory and speeds up
+     * comparisons between keys of the same page.
+     */
+    private void readPrefixArrays(ByteBuffer buff, Object[] obj, int len) {
+        int prefix = readVarInt(buff);
+        Value[] common = new Value[prefix];
+        for (int j = 0; j < prefix; j++) {
+            common[j] = (Value) readValue(buff);
+        }
+        for (int i = 0; i < len; i++) {
+            int suffix = readVarInt(buff);
+            Value[] list = Arrays.copyOf(common, prefix + suffix);
+            for (int j = prefix; j < list.length; j++) {
+                list[j] = (Value) readValue(buff);
+            }
+            obj[i] = ValueArray.get(list);
+        }
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         return readValue(buff);
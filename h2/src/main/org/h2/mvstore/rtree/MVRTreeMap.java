@@ -297,6 +297,14 @@ public final class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
         return operate(key, value, DecisionMaker.PUT);
     }
 
+    @Override
+    public void putAll(Map<? extends SpatialKey, ? extends V> m) {
+        // the keys are not ordered, so they are added one at a time
+        for (Map.Entry<? extends SpatialKey, ? extends V> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
     /**
      * Add a given key-value pair. The key should not exist (if it exists, the
      * result is undefined).
@@ -53,6 +53,10 @@ final class CommitDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
         return VersionedValueCommitted.getInstance(existingValue.getCurrentValue());
     }
 
+    MVMap.Decision getDecision() {
+        return decision;
+    }
+
     @Override
     public void reset() {
         decision = null;
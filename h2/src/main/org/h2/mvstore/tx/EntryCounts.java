@@ -0,0 +1,197 @@
+/*
+ * Copyright 2004-2019 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.tx;
+
+import java.util.Arrays;
+import org.h2.value.VersionedValue;
+
+/**
+ * Class EntryCounts holds the number of entries of a map, together with the
+ * number of uncommitted entries of each transaction that change the size of
+ * the map. Instances are immutable, so that the size can be calculated from
+ * one consistent snapshot, without waiting for concurrent changes.
+ */
+final class EntryCounts {
+
+    /**
+     * Entry kinds: no entry, an entry that is visible to all transactions,
+     * an uncommitted insert, an uncommitted removal, and an uncommitted insert
+     * that was removed again.
+     */
+    private static final int ABSENT = 0, VISIBLE = 1, INSERTED = 2, REMOVED = 3, INSERTED_REMOVED = 4;
+
+    /**
+     * The number of entries of each kind that are visible to a transaction
+     * that does not see the uncommitted change.
+     */
+    private static final int[] BASE = { 0, 1, 0, 1, 0 };
+
+    /**
+     * The number of entries of each kind that are visible to a transaction
+     * that sees the uncommitted change, minus the base.
+     */
+    private static final int[] DELTA = { 0, 0, 1, -1, 0 };
+
+    /**
+     * The flag in the transaction id slot of a transaction that is committing.
+     */
+    private static final long COMMITTING = 1L << 32;
+
+    private static final long[] NO_TRANSACTIONS = new long[0];
+
+    /**
+     * The number of entries that are visible to a transaction that does not
+     * see any of the uncommitted changes.
+     */
+    private final long base;
+
+    /**
+     * Three slots per transaction that has uncommitted entries that change the
+     * size: the transaction id (with the committing flag), the change of the
+     * size if the changes are visible, and the number of such entries.
+     */
+    private final long[] transactions;
+
+    private EntryCounts(long base, long[] transactions) {
+        this.base = base;
+        this.transactions = transactions;
+    }
+
+    /**
+     * Create the counts of a map that has no uncommitted entries.
+     *
+     * @param size the number of entries
+     * @return the counts
+     */
+    static EntryCounts create(long size) {
+        return new EntryCounts(size, NO_TRANSACTIONS);
+    }
+
+    /**
+     * Get the number of entries as seen by the given transaction. The
+     * uncommitted changes of this transaction and of the committing
+     * transactions are visible.
+     *
+     * @param transactionId the id of the transaction
+     * @return the number of entries
+     */
+    long getSize(int transactionId) {
+        long size = base;
+        for (int i = 0; i < transactions.length; i += 3) {
+            long id = transactions[i];
+            if (id == transactionId || (id & COMMITTING) != 0) {
+                size += transactions[i + 1];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Check whether there are uncommitted entries that are not visible to all
+     * transactions.
+     *
+     * @return true if there are
+     */
+    boolean hasUncommitted() {
+        return transactions.length > 0;
+    }
+
+    /**
+     * Get the counts after an entry was changed.
+     *
+     * @param oldValue the old value, or null
+     * @param newValue the new value, or null if the entry was removed
+     * @return the new counts
+     */
+    EntryCounts update(VersionedValue oldValue, VersionedValue newValue) {
+        int oldKind = getKind(oldValue);
+        int newKind = getKind(newValue);
+        long newBase = base + BASE[newKind] - BASE[oldKind];
+        long[] t = transactions;
+        int oldId = getTransactionId(oldValue, oldKind);
+        int newId = getTransactionId(newValue, newKind);
+        if (oldId == newId) {
+            t = add(t, oldId, DELTA[newKind] - DELTA[oldKind], 0);
+        } else {
+            t = add(t, oldId, -DELTA[oldKind], -1);
+            t = add(t, newId, DELTA[newKind], 1);
+        }
+        if (newBase == base && t == transactions) {
+            return this;
+        }
+        return new EntryCounts(newBase, t);
+    }
+
+    /**
+     * Get the counts after the given transaction started to commit. From now
+     * on, its changes are visible to all transactions.
+     *
+     * @param transactionId the id of the transaction
+     * @return the new counts
+     */
+    EntryCounts setCommitting(int transactionId) {
+        int index = indexOf(transactions, transactionId);
+        if (index < 0 || (transactions[index] & COMMITTING) != 0) {
+            return this;
+        }
+        long[] t = transactions.clone();
+        t[index] |= COMMITTING;
+        return new EntryCounts(base, t);
+    }
+
+    private static int getKind(VersionedValue value) {
+        if (value == null) {
+            return ABSENT;
+        } else if (value.getOperationId() == 0) {
+            return VISIBLE;
+        } else if (value.getCommittedValue() == null) {
+            return value.getCurrentValue() == null ? INSERTED_REMOVED : INSERTED;
+        }
+        return value.getCurrentValue() == null ? REMOVED : VISIBLE;
+    }
+
+    private static int getTransactionId(VersionedValue value, int kind) {
+        if (kind == ABSENT || kind == VISIBLE) {
+            return -1;
+        }
+        return TransactionStore.getTransactionId(value.getOperationId());
+    }
+
+    private static long[] add(long[] t, int transactionId, int delta, int count) {
+        if (transactionId < 0 || (delta == 0 && count == 0)) {
+            return t;
+        }
+        int index = indexOf(t, transactionId);
+        if (index < 0) {
+            assert count > 0;
+            t = Arrays.copyOf(t, t.length + 3);
+            index = t.length - 3;
+            t[index] = transactionId;
+        } else if (t[index + 2] + count == 0) {
+            // no more such entries
+            assert t[index + 1] + delta == 0;
+            long[] copy = new long[t.length - 3];
+            System.arraycopy(t, 0, copy, 0, index);
+            System.arraycopy(t, index + 3, copy, index, copy.length - index);
+            return copy;
+        } else {
+            t = t.clone();
+        }
+        t[index + 1] += delta;
+        t[index + 2] += count;
+        return t;
+    }
+
+    private static int indexOf(long[] t, int transactionId) {
+        for (int i = 0; i < t.length; i += 3) {
+            if ((int) t[i] == transactionId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -7,6 +7,7 @@ package org.h2.mvstore.tx;
 
 import org.h2.mvstore.MVMap;
 import org.h2.value.VersionedValue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class RollbackDecisionMaker process undo log record during transaction rollback.
@@ -46,7 +47,15 @@ final class RollbackDecisionMaker extends MVMap.DecisionMaker<Object[]> {
                 MVMap<Object, VersionedValue> map = store.openMap(mapId);
                 if (map != null && !map.isClosed()) {
                     Object key = existingValue[1];
-                    VersionedValue previousValue = map.operate(key, valueToRestore, MVMap.DecisionMaker.DEFAULT);
+                    VersionedValue previousValue;
+                    AtomicLong stamp = store.getChangeStamp(mapId);
+                    TransactionStore.beginChange(stamp);
+                    try {
+                        previousValue = map.operate(key, valueToRestore, MVMap.DecisionMaker.DEFAULT);
+                        store.updateCounts(mapId, previousValue, valueToRestore);
+                    } finally {
+                        TransactionStore.endChange(stamp);
+                    }
                     listener.onRollback(map, key, previousValue, valueToRestore);
                 }
             }
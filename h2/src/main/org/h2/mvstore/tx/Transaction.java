@@ -10,7 +10,11 @@ import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.type.DataType;
 import org.h2.value.VersionedValue;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -75,6 +79,22 @@ public class Transaction {
     private static final int STATUS_BITS = 4;
     private static final int STATUS_MASK = (1 << STATUS_BITS) - 1;
 
+    /**
+     * The maximum number of undo log records that are kept in memory. The
+     * records of larger transactions are stored in the undo log map.
+     */
+    static final int UNDO_BUFFER_SIZE = 64;
+
+    /**
+     * The undo buffer size while the records are moved to the undo log map.
+     */
+    private static final int UNDO_BUFFER_SPILLING = -2;
+
+    /**
+     * The undo buffer size after the records were moved to the undo log map.
+     */
+    private static final int UNDO_BUFFER_SPILLED = -1;
+
 
     /**
      * The transaction store.
@@ -154,6 +174,61 @@ public class Transaction {
      */
     private volatile boolean notificationRequested;
 
+    /**
+     * The queues of the transactions waiting for this transaction, or null.
+     * Guarded by this.
+     */
+    private ArrayList<WaitQueue> waitQueues;
+
+    /**
+     * Whether this transaction was woken up while waiting. Guarded by this.
+     */
+    private boolean wokenUp;
+
+    /**
+     * The queue that woke up this transaction, or null. Guarded by this.
+     */
+    private WaitQueue wokenBy;
+
+    /**
+     * The queue that woke up this transaction, if this transaction did not
+     * yet decide whether it modifies the entry. Only used by the thread of
+     * this transaction.
+     */
+    private WaitQueue wokenQueue;
+
+    /**
+     * The time when this transaction started to wait for another transaction,
+     * or 0.
+     */
+    private volatile long waitStart;
+
+    /**
+     * The ids of the maps where this transaction has uncommitted entries that
+     * are counted in the entry counts of the map.
+     */
+    private final ConcurrentHashMap<Integer, Boolean> countedMaps = new ConcurrentHashMap<>();
+
+    /**
+     * Whether this transaction was restored when opening the store. Its
+     * uncommitted entries are counted when a map is first used.
+     */
+    boolean restored;
+
+    /**
+     * The undo log records of this transaction that are not in the undo log
+     * map, by log id, or null. The records of small transactions are only kept
+     * here; they are moved to the undo log map if there are too many, if the
+     * transaction is prepared, or before the changes are stored.
+     */
+    private volatile Object[][] undoBuffer;
+
+    /**
+     * The number of records in the undo buffer, UNDO_BUFFER_SPILLING while
+     * they are moved to the undo log map, or UNDO_BUFFER_SPILLED afterwards.
+     */
+    private final AtomicInteger undoBufferSize;
+
 
     Transaction(TransactionStore store, int transactionId, long sequenceNum, int status,
                 String name, long logId, int timeoutMillis, int ownerId,
@@ -162,6 +237,8 @@ public class Transaction {
         this.transactionId = transactionId;
         this.sequenceNum = sequenceNum;
         this.statusAndLogId = new AtomicLong(composeState(status, logId, false));
+        // the records of a restored transaction are in the undo log map
+        this.undoBufferSize = new AtomicInteger(logId == 0 ? 0 : UNDO_BUFFER_SPILLED);
         this.name = name;
         this.timeoutMillis = timeoutMillis;
         this.ownerId = ownerId;
@@ -255,6 +332,16 @@ public class Transaction {
         return blocker == null ? 0 : blocker.ownerId;
     }
 
+    /**
+     * Get the time when this transaction started to wait for another
+     * transaction.
+     *
+     * @return the time in milliseconds, or 0 if it is not waiting
+     */
+    public long getWaitStart() {
+        return waitStart;
+    }
+
     /**
      * Create a new savepoint.
      *
@@ -303,7 +390,7 @@ public class Transaction {
         }
         int currentStatus = getStatus(currentState);
         checkOpen(currentStatus);
-        long undoKey = store.addUndoLogRecord(transactionId, logId, new Object[]{ mapId, key, oldValue });
+        long undoKey = store.addUndoLogRecord(this, logId, new Object[]{ mapId, key, oldValue });
         return undoKey;
     }
 
@@ -321,7 +408,132 @@ public class Transaction {
         }
         int currentStatus = getStatus(currentState);
         checkOpen(currentStatus);
-        store.removeUndoLogRecord(transactionId);
+        store.removeUndoLogRecord(this);
+    }
+
+    /**
+     * Add an undo log record to the undo buffer, unless the records were
+     * moved to the undo log map.
+     *
+     * @param logId the log id of the record
+     * @param undoLogRecord the record
+     * @return true if the record was added, false if it needs to be added to
+     *         the undo log map
+     */
+    boolean addToUndoBuffer(long logId, Object[] undoLogRecord) {
+        int size = undoBufferSize.get();
+        if (size != logId || size == UNDO_BUFFER_SIZE) {
+            // the buffer is full, or the records are in the undo log map
+            spillUndoBuffer(true);
+        } else {
+            Object[][] buffer = undoBuffer;
+            if (buffer == null) {
+                undoBuffer = buffer = new Object[UNDO_BUFFER_SIZE][];
+            }
+            buffer[size] = undoLogRecord;
+            if (undoBufferSize.compareAndSet(size, size + 1)) {
+                return true;
+            }
+        }
+        getUndoBufferSize();
+        return false;
+    }
+
+    /**
+     * Remove the last undo log record from the undo buffer, unless the records
+     * were moved to the undo log map.
+     *
+     * @return true if the record was removed, false if it needs to be removed
+     *         from the undo log map
+     */
+    boolean removeFromUndoBuffer() {
+        int size = undoBufferSize.get();
+        if (size > 0 && undoBufferSize.compareAndSet(size, size - 1)) {
+            return true;
+        }
+        getUndoBufferSize();
+        return false;
+    }
+
+    /**
+     * Move the records of the undo buffer to the undo log map, so that they
+     * are stored. This method does nothing if the buffer is empty, or if the
+     * records are already moved.
+     */
+    void spillUndoBuffer() {
+        spillUndoBuffer(false);
+    }
+
+    /**
+     * Move the records of the undo buffer to the undo log map.
+     *
+     * @param always whether to use the undo log map for the next records even
+     *            if the buffer is empty
+     */
+    private void spillUndoBuffer(boolean always) {
+        int size;
+        do {
+            size = undoBufferSize.get();
+            if (size < 0 || size == 0 && !always) {
+                return;
+            }
+        } while (!undoBufferSize.compareAndSet(size, UNDO_BUFFER_SPILLING));
+        try {
+            store.addUndoLogRecords(transactionId, undoBuffer, size);
+        } finally {
+            undoBufferSize.set(UNDO_BUFFER_SPILLED);
+        }
+    }
+
+    /**
+     * Get the number of records in the undo buffer. If the records are being
+     * moved to the undo log map, this method waits until this is done.
+     *
+     * @return the number of records, or -1 if the records are in the undo log
+     *         map
+     */
+    int getUndoBufferSize() {
+        int size;
+        while ((size = undoBufferSize.get()) == UNDO_BUFFER_SPILLING) {
+            Thread.yield();
+        }
+        return size;
+    }
+
+    /**
+     * Get the undo buffer. Only the first records are used, see
+     * {@link #getUndoBufferSize()}.
+     *
+     * @return the undo buffer, or null
+     */
+    Object[][] getUndoBuffer() {
+        return undoBuffer;
+    }
+
+    /**
+     * Get a copy of the records in the undo buffer.
+     *
+     * @param size the number of records
+     * @return the records
+     */
+    Object[][] copyUndoBuffer(int size) {
+        return size == 0 ? new Object[0][] : Arrays.copyOf(undoBuffer, size);
+    }
+
+    /**
+     * Remove the last records from the undo buffer, after they were processed.
+     *
+     * @param size the current number of records
+     * @param newSize the new number of records
+     * @return true if successful, false if the records were moved to the undo
+     *         log map in the meantime
+     */
+    boolean trimUndoBuffer(int size, int newSize) {
+        if (undoBufferSize.compareAndSet(size, newSize)) {
+            return true;
+        }
+        getUndoBufferSize();
+        return false;
     }
 
     /**
@@ -348,7 +560,24 @@ public class Transaction {
      */
     public <K, V> TransactionMap<K, V> openMap(String name,
                                                 DataType keyType, DataType valueType) {
-        MVMap<K, VersionedValue> map = store.openMap(name, keyType, valueType);
+        return openMap(name, keyType, valueType, false);
+    }
+
+    /**
+     * Open the map to store the data.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     * @param name the name of the map
+     * @param keyType the key data type
+     * @param valueType the value data type
+     * @param appendBuffer whether the map should have an append buffer, for
+     *            {@link TransactionMap#appendIfAbsent(Object, Object)}
+     * @return the transaction map
+     */
+    public <K, V> TransactionMap<K, V> openMap(String name,
+            DataType keyType, DataType valueType, boolean appendBuffer) {
+        MVMap<K, VersionedValue> map = store.openMap(name, keyType, valueType, appendBuffer);
         return openMap(map);
     }
 
@@ -371,6 +600,8 @@ public class Transaction {
      */
     public void prepare() {
         setStatus(STATUS_PREPARED);
+        // a prepared transaction needs to survive a restart
+        spillUndoBuffer(false);
         store.storeTransaction(this);
     }
 
@@ -379,6 +610,9 @@ public class Transaction {
      */
     public void commit() {
         assert store.openTransactions.get().get(transactionId);
+        MVStore mvStore = store.store;
+        // the latency of commits is used to postpone background compaction
+        long start = mvStore.getCompactBytesPerSecond() > 0 ? System.nanoTime() : 0;
         Throwable ex = null;
         boolean hasChanges = false;
         try {
@@ -402,6 +636,9 @@ public class Transaction {
                 }
             }
         }
+        if (start != 0 && hasChanges) {
+            mvStore.recordCommitLatency(System.nanoTime() - start);
+        }
     }
 
     /**
@@ -418,7 +655,7 @@ public class Transaction {
             store.rollbackTo(this, logId, savepointId);
         } finally {
             if (notificationRequested) {
-                notifyAllWaitingTransactions();
+                wakeUpWaitingTransactions();
             }
             long expectedState = composeState(STATUS_ROLLING_BACK, logId, hasRollback(lastState));
             long newState = composeState(STATUS_OPEN, savepointId, true);
@@ -507,17 +744,95 @@ public class Transaction {
         long lastState = setStatus(STATUS_CLOSED);
         store.store.deregisterVersionUsage(txCounter);
         if((hasChanges(lastState) || hasRollback(lastState)) && notificationRequested) {
-            notifyAllWaitingTransactions();
+            wakeUpWaitingTransactions();
+        }
+    }
+
+    /**
+     * Wake up the first transaction of each queue that waits for this
+     * transaction.
+     */
+    private void wakeUpWaitingTransactions() {
+        ArrayList<WaitQueue> queues;
+        synchronized (this) {
+            queues = waitQueues;
+            waitQueues = null;
         }
+        if (queues != null) {
+            for (WaitQueue queue : queues) {
+                queue.wakeUpNext();
+            }
+        }
+    }
+
+    /**
+     * Register a queue of transactions that wait for this transaction.
+     *
+     * @param queue the queue
+     * @return false if this transaction was already closed or rolled back, so
+     *         that the waiting transactions can proceed
+     */
+    synchronized boolean addWaitQueue(WaitQueue queue) {
+        // set before checking the status, see closeIt
+        notificationRequested = true;
+        long state = statusAndLogId.get();
+        int status = getStatus(state);
+        if (status == STATUS_CLOSED || status == STATUS_ROLLED_BACK || hasRollback(state)) {
+            return false;
+        }
+        if (waitQueues == null) {
+            waitQueues = new ArrayList<>();
+        } else if (waitQueues.contains(queue)) {
+            return true;
+        }
+        waitQueues.add(queue);
+        return true;
     }
 
-    private synchronized void notifyAllWaitingTransactions() {
+    /**
+     * Wake up this transaction.
+     *
+     * @param queue the queue whose entry this transaction may now modify, or
+     *            null if this transaction should only try again
+     */
+    synchronized void wakeUp(WaitQueue queue) {
+        wokenUp = true;
+        wokenBy = queue;
         notifyAll();
     }
 
+    /**
+     * Change the transaction this waiting transaction waits for.
+     *
+     * @param blocker the new blocking transaction
+     * @return true if this transaction is deadlocked now
+     */
+    boolean setBlockingTransaction(Transaction blocker) {
+        if (blockingTransaction == blocker) {
+            return false;
+        }
+        blockingTransaction = blocker;
+        return isDeadlocked(blocker);
+    }
+
+    /**
+     * Let the next waiting transaction try to modify the entry, if this
+     * transaction was woken up to modify it.
+     *
+     * @param modified whether this transaction modified the entry
+     */
+    void releaseWaitQueue(boolean modified) {
+        WaitQueue queue = wokenQueue;
+        if (queue != null) {
+            wokenQueue = null;
+            queue.release(this, modified);
+        }
+    }
+
     /**
      * Make this transaction to wait for the specified transaction to be closed,
-     * because both of them try to modify the same map entry.
+     * because both of them try to modify the same map entry. The waiting
+     * transactions are queued, and woken up one after the other.
      *
      * @param toWaitFor transaction to wait for
      * @param map containing blocking entry
@@ -548,15 +863,74 @@ public class Transaction {
             }
         }
 
+        waitStart = System.currentTimeMillis();
         try {
-            return toWaitFor.waitForThisToEnd(timeoutMillis);
+            return waitInQueue(toWaitFor, map, key);
         } finally {
+            waitStart = 0;
             blockingMap = null;
             blockingKey = null;
             blockingTransaction = null;
         }
     }
 
+    private boolean waitInQueue(Transaction toWaitFor, MVMap<?,VersionedValue> map, Object key) {
+        wokenQueue = null;
+        WaitQueue queue = WaitQueue.add(store.getWaitQueues(map.getId()), key, this, toWaitFor);
+        boolean wait = toWaitFor.addWaitQueue(queue);
+        boolean interrupted = false;
+        if (wait) {
+            long until = waitStart + timeoutMillis;
+            synchronized (this) {
+                while (!wokenUp) {
+                    long dur = until - System.currentTimeMillis();
+                    if (dur <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(dur);
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+        }
+        if (queue.remove(this)) {
+            // timed out, interrupted, or the other transaction was already closed
+            return !wait;
+        }
+        WaitQueue woken = awaitWakeUp();
+        if (interrupted) {
+            // give up, like after a timeout, and let the next one try
+            if (woken != null) {
+                woken.release(this, false);
+            }
+            return false;
+        }
+        wokenQueue = woken;
+        return true;
+    }
+
+    private synchronized WaitQueue awaitWakeUp() {
+        boolean interrupted = false;
+        while (!wokenUp) {
+            // the wake up is in progress
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        WaitQueue queue = wokenBy;
+        wokenUp = false;
+        wokenBy = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return queue;
+    }
+
     private boolean isDeadlocked(Transaction toWaitFor) {
         for(Transaction tx = toWaitFor, nextTx;
             (nextTx = tx.blockingTransaction) != null && tx.getStatus() == Transaction.STATUS_OPEN;
@@ -568,26 +942,6 @@ public class Transaction {
         return false;
     }
 
-    private synchronized boolean waitForThisToEnd(int millis) {
-        long until = System.currentTimeMillis() + millis;
-        notificationRequested = true;
-        long state;
-        int status;
-        while((status = getStatus(state = statusAndLogId.get())) != STATUS_CLOSED
-                && status != STATUS_ROLLED_BACK && !hasRollback(state)) {
-            long dur = until - System.currentTimeMillis();
-            if(dur <= 0) {
-                return false;
-            }
-            try {
-                wait(dur);
-            } catch (InterruptedException ex) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     /**
      * Remove the map.
      *
@@ -599,6 +953,28 @@ public class Transaction {
         store.removeMap(map);
     }
 
+    /**
+     * Remember that this transaction has uncommitted entries in the given map
+     * that are counted in the entry counts of the map.
+     *
+     * @param mapId the map id
+     */
+    void addCountedMap(int mapId) {
+        if (countedMaps.get(mapId) == null) {
+            countedMaps.put(mapId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Get the ids of the maps where this transaction has counted uncommitted
+     * entries.
+     *
+     * @return the map ids
+     */
+    Iterable<Integer> getCountedMaps() {
+        return countedMaps.keySet();
+    }
+
     @Override
     public String toString() {
         return transactionId + "(" + sequenceNum + ") " + stateToString();
@@ -15,11 +15,18 @@ import org.h2.value.VersionedValue;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A map that supports transactions.
@@ -36,6 +43,12 @@ import java.util.Set;
  */
 public class TransactionMap<K, V> extends AbstractMap<K, V> {
 
+    /**
+     * The maximum number of attempts to get the root of a map without
+     * uncommitted entries before the undo logs are read instead.
+     */
+    private static final int POSITION_ROOT_ATTEMPTS = 8;
+
     /**
      * The map used for writing (the latest version).
      * <p>
@@ -49,9 +62,21 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
      */
     private final Transaction transaction;
 
+    /**
+     * The change stamp of the map.
+     */
+    private final AtomicLong changeStamp;
+
+    /**
+     * The entry counts of the map.
+     */
+    private final AtomicReference<EntryCounts> counts;
+
     TransactionMap(Transaction transaction, MVMap<K, VersionedValue> map) {
         this.transaction = transaction;
         this.map = map;
+        changeStamp = transaction.store.getChangeStamp(map.getId());
+        counts = transaction.store.getEntryCounts(map);
     }
 
     /**
@@ -89,10 +114,25 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
 
     /**
      * Get the size of the map as seen by this transaction.
+     * <p>
+     * The size is calculated from the entry counts of the map, which are
+     * replaced atomically with each change, so this takes constant time and
+     * does not wait for concurrent changes. The uncommitted changes of other
+     * transactions are included once they start to commit.
      *
      * @return the size
      */
     public long sizeAsLong() {
+        return counts.get().getSize(transaction.transactionId);
+    }
+
+    /**
+     * Get a coherent picture of the state of the map, the undo logs, and the
+     * committing transactions.
+     *
+     * @return the snapshot
+     */
+    private Snapshot getSnapshot() {
         TransactionStore store = transaction.store;
 
         // The purpose of the following loop is to get a coherent picture
@@ -100,98 +140,228 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
         // which they had at some recent moment in time.
         // In order to get such a "snapshot", we wait for a moment of silence,
         // when none of the variables concurrently changes it's value.
-        BitSet committingTransactions;
-        RootReference mapRootReference;
-        RootReference[] undoLogRootReferences;
-        long undoLogSize;
+        Snapshot snapshot = new Snapshot();
         do {
-            committingTransactions = store.committingTransactions.get();
-            mapRootReference = map.flushAndGetRoot();
+            snapshot.committingTransactions = store.committingTransactions.get();
+            snapshot.mapRootReference = map.flushAndGetRoot();
             BitSet opentransactions = store.openTransactions.get();
-            undoLogRootReferences = new RootReference[opentransactions.length()];
-            undoLogSize = 0;
+            snapshot.undoLogRootReferences = new RootReference[opentransactions.length()];
+            snapshot.undoBuffers = new Object[opentransactions.length()][][];
+            snapshot.undoLogSize = 0;
             for (int i = opentransactions.nextSetBit(0); i >= 0; i = opentransactions.nextSetBit(i+1)) {
                 MVMap<Long, Object[]> undoLog = store.undoLogs[i];
                 if (undoLog != null) {
-                    RootReference rootReference = undoLog.flushAndGetRoot();
-                    undoLogRootReferences[i] = rootReference;
-                    undoLogSize += rootReference.getTotalCount();
+                    Transaction t = store.getTransaction(i);
+                    RootReference rootReference;
+                    Object[][] undoBuffer = null;
+                    if (t == null) {
+                        rootReference = undoLog.flushAndGetRoot();
+                    } else {
+                        // the records may be moved from the buffer
+                        // to the undo log concurrently
+                        int bufferSize;
+                        do {
+                            bufferSize = t.getUndoBufferSize();
+                            undoBuffer = bufferSize > 0 ? t.copyUndoBuffer(bufferSize) : null;
+                            rootReference = undoLog.flushAndGetRoot();
+                        } while (bufferSize != t.getUndoBufferSize());
+                    }
+                    snapshot.undoLogRootReferences[i] = rootReference;
+                    snapshot.undoLogSize += rootReference.getTotalCount();
+                    if (undoBuffer != null) {
+                        snapshot.undoBuffers[i] = undoBuffer;
+                        snapshot.undoLogSize += undoBuffer.length;
+                    }
                 }
             }
-        } while(committingTransactions != store.committingTransactions.get() ||
-                mapRootReference != map.getRoot());
-        // Now we have a snapshot, where mapRootReference points to state of the map,
-        // undoLogRootReference captures the state of undo log
-        // and committingTransactions mask tells us which of seemingly uncommitted changes
-        // should be considered as committed.
-        // Subsequent processing uses this snapshot info only.
-        Page mapRootPage = mapRootReference.root;
-        long size = mapRootReference.getTotalCount();
-        // if we are looking at the map without any uncommitted values
-        if (undoLogSize == 0) {
-            return size;
-        }
-
-        // Entries describing removals from the map by this transaction and all transactions,
-        // which are committed but not closed yet,
-        // and entries about additions to the map by other uncommitted transactions were counted,
-        // but they should not contribute into total count.
-        if (2 * undoLogSize > size) {
-            // the undo log is larger than half of the map - scan the entries of the map directly
-            Cursor<K, VersionedValue> cursor = new Cursor<>(mapRootPage, null);
-            while(cursor.hasNext()) {
-                cursor.next();
-                VersionedValue currentValue = cursor.getValue();
-                assert currentValue != null;
-                long operationId = currentValue.getOperationId();
-                if (operationId != 0) {  // skip committed entries
-                    int txId = TransactionStore.getTransactionId(operationId);
-                    boolean isVisible = txId == transaction.transactionId ||
-                                            committingTransactions.get(txId);
-                    Object v = isVisible ? currentValue.getCurrentValue() : currentValue.getCommittedValue();
-                    if (v == null) {
-                        --size;
-                    }
+        } while(snapshot.committingTransactions != store.committingTransactions.get() ||
+                snapshot.mapRootReference != map.getRoot());
+        return snapshot;
+    }
+
+    /**
+     * Check whether the map entry of the given undo log record is included in
+     * the map of the snapshot, but is not visible to this transaction.
+     *
+     * @param snapshot the snapshot
+     * @param op the undo log record
+     * @param operationId the operation id of the undo log record
+     * @return true if the entry is not visible
+     */
+    private boolean isInvisible(Snapshot snapshot, Object[] op, long operationId) {
+        if ((int) op[0] != map.getId()) {
+            return false;
+        }
+        VersionedValue currentValue = map.get(snapshot.mapRootReference.root, op[1]);
+        // If map entry is not there, then we never counted
+        // it, in the first place, so skip it.
+        // This is possible when undo entry exists because
+        // it belongs to a committed but not yet closed
+        // transaction, and it was later deleted by some
+        // other already committed and closed transaction.
+        // Also, only the last undo entry for any given map
+        // key should be considered.
+        if (currentValue == null || currentValue.getOperationId() != operationId) {
+            return false;
+        }
+        int txId = TransactionStore.getTransactionId(operationId);
+        boolean isVisible = txId == transaction.transactionId ||
+                snapshot.committingTransactions.get(txId);
+        Object v = isVisible ? currentValue.getCurrentValue() : currentValue.getCommittedValue();
+        return v == null;
+    }
+
+    /**
+     * Get the number of entries with a key in the given range, as seen by this
+     * transaction.
+     * <p>
+     * The entries are counted using the positions of the keys in the
+     * underlying map, which is a O(log(size)) operation, corrected by the
+     * number of uncommitted entries in the range that are not visible. If the
+     * undo logs are larger than the range, the entries are read instead.
+     *
+     * @param from the first key, or null to start with the first key
+     * @param to the last key, or null to count up to the last key
+     * @return the number of entries
+     */
+    public long sizeAsLong(K from, K to) {
+        ArrayList<K> invisibleKeys = new ArrayList<>();
+        Page root = getPositionRoot(from, to, invisibleKeys);
+        if (root == null) {
+            long count = 0;
+            for (Iterator<K> it = keyIterator(from, to, false); it.hasNext(); it.next()) {
+                count++;
+            }
+            return count;
+        }
+        long count = getPosition(root, to, true) - getPosition(root, from, false);
+        return count <= 0 ? 0 : count - invisibleKeys.size();
+    }
+
+    /**
+     * Get the key of the entry at the given position, counting from the first
+     * entry with a key larger or equal to the given key, as seen by this
+     * transaction. This allows to skip entries without reading them, see
+     * {@link #sizeAsLong(Object, Object)}.
+     *
+     * @param from the first key, or null to start with the first key
+     * @param offset the number of entries to skip
+     * @return the key, or null if there are not that many entries
+     */
+    public K getKey(K from, long offset) {
+        ArrayList<K> invisibleKeys = new ArrayList<>();
+        Page root = getPositionRoot(from, null, invisibleKeys);
+        if (root == null) {
+            Iterator<K> it = keyIterator(from, null, false);
+            for (; offset > 0 && it.hasNext(); offset--) {
+                it.next();
+            }
+            return it.hasNext() ? it.next() : null;
+        }
+        long index = getPosition(root, from, false) + offset;
+        // each entry that is not visible moves the position by one
+        for (K key : invisibleKeys) {
+            if (map.getKeyIndex(root, key) > index) {
+                break;
+            }
+            index++;
+        }
+        return map.getKey(root, index);
+    }
+
+    /**
+     * Get a coherent picture of the state of the map, together with the keys
+     * in the given range of the entries that are included in the map, but are
+     * not visible to this transaction.
+     *
+     * @param from the first key, or null
+     * @param to the last key, or null
+     * @param invisibleKeys the list to add the keys to, in ascending order
+     * @return the root page of the map, or null if the undo logs are larger
+     *         than the range, so that the entries should be read instead
+     */
+    private Page getPositionRoot(K from, K to, List<K> invisibleKeys) {
+        // usually there are no such entries at all
+        for (int i = 0; i < POSITION_ROOT_ATTEMPTS; i++) {
+            long stamp = changeStamp.get();
+            if ((int) stamp != 0) {
+                continue;
+            }
+            RootReference mapRootReference = map.flushAndGetRoot();
+            if (counts.get().hasUncommitted()) {
+                break;
+            }
+            if (stamp == changeStamp.get() && mapRootReference == map.getRoot()) {
+                return mapRootReference.root;
+            }
+        }
+        Snapshot snapshot = getSnapshot();
+        Page mapRootPage = snapshot.mapRootReference.root;
+        if (snapshot.undoLogSize > getPosition(mapRootPage, to, true) - getPosition(mapRootPage, from, false)) {
+            return null;
+        }
+        final DataType keyType = map.getKeyType();
+        RootReference[] undoLogRootReferences = snapshot.undoLogRootReferences;
+        for (int i = 0; i < undoLogRootReferences.length; i++) {
+            RootReference undoLogRootReference = undoLogRootReferences[i];
+            if (undoLogRootReference != null) {
+                Cursor<Long, Object[]> cursor = new Cursor<>(undoLogRootReference.root, null);
+                while (cursor.hasNext()) {
+                    long operationId = cursor.next();
+                    addInvisibleKey(snapshot, cursor.getValue(), operationId, from, to, invisibleKeys);
                 }
             }
-        } else {
-            // The undo logs are much smaller than the map - scan all undo logs,
-            // and then lookup relevant map entry.
-            for (RootReference undoLogRootReference : undoLogRootReferences) {
-                if (undoLogRootReference != null) {
-                    Cursor<Long, Object[]> cursor = new Cursor<>(undoLogRootReference.root, null);
-                    while (cursor.hasNext()) {
-                        cursor.next();
-                        Object op[] = cursor.getValue();
-                        if ((int) op[0] == map.getId()) {
-                            VersionedValue currentValue = map.get(mapRootPage, op[1]);
-                            // If map entry is not there, then we never counted
-                            // it, in the first place, so skip it.
-                            // This is possible when undo entry exists because
-                            // it belongs to a committed but not yet closed
-                            // transaction, and it was later deleted by some
-                            // other already committed and closed transaction.
-                            if (currentValue != null) {
-                                // only the last undo entry for any given map
-                                // key should be considered
-                                long operationId = cursor.getKey();
-                                if (currentValue.getOperationId() == operationId) {
-                                    int txId = TransactionStore.getTransactionId(operationId);
-                                    boolean isVisible = txId == transaction.transactionId ||
-                                            committingTransactions.get(txId);
-                                    Object v = isVisible ? currentValue.getCurrentValue()
-                                            : currentValue.getCommittedValue();
-                                    if (v == null) {
-                                        --size;
-                                    }
-                                }
-                            }
-                        }
-                    }
+            Object[][] undoBuffer = snapshot.undoBuffers[i];
+            if (undoBuffer != null) {
+                for (int j = 0; j < undoBuffer.length; j++) {
+                    addInvisibleKey(snapshot, undoBuffer[j], TransactionStore.getOperationId(i, j),
+                            from, to, invisibleKeys);
                 }
             }
         }
-        return size;
+        Collections.sort(invisibleKeys, new Comparator<K>() {
+            @Override
+            public int compare(K a, K b) {
+                return keyType.compare(a, b);
+            }
+        });
+        return mapRootPage;
+    }
+
+    private void addInvisibleKey(Snapshot snapshot, Object[] op, long operationId, K from, K to,
+            List<K> invisibleKeys) {
+        if ((int) op[0] != map.getId()) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        K key = (K) op[1];
+        DataType keyType = map.getKeyType();
+        if (from != null && keyType.compare(key, from) < 0 || to != null && keyType.compare(key, to) > 0) {
+            return;
+        }
+        if (isInvisible(snapshot, op, operationId)) {
+            invisibleKeys.add(key);
+        }
+    }
+
+    /**
+     * Get the number of entries in the given version of the map with a key
+     * smaller than the given key (or smaller or equal, if inclusive).
+     *
+     * @param root the root page
+     * @param key the key, or null for no limit
+     * @param inclusive whether to include the given key
+     * @return the number of entries
+     */
+    private long getPosition(Page root, K key, boolean inclusive) {
+        if (key == null) {
+            return inclusive ? root.getTotalCount() : 0;
+        }
+        long index = map.getKeyIndex(root, key);
+        if (index < 0) {
+            return -index - 1;
+        }
+        return inclusive ? index + 1 : index;
     }
 
     /**
@@ -243,6 +413,115 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
         return set(key, decisionMaker);
     }
 
+    /**
+     * Add a value for a key that is expected to be higher than all existing
+     * keys, for example a generated key. If the underlying map has an append
+     * buffer and the key is the highest one, the entry is appended without
+     * updating the tree for each key; otherwise this is the same as
+     * {@link #putIfAbsent(Object, Object)}. An undo log entry is added in
+     * both cases.
+     *
+     * @param key the key
+     * @param value the new value (not null)
+     * @return the old value
+     */
+    public V appendIfAbsent(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        TxDecisionMaker decisionMaker = new TxDecisionMaker.PutIfAbsentDecisionMaker(map.getId(), key, value,
+                transaction);
+        TransactionStore.beginChange(changeStamp);
+        try {
+            if (map.tryAppend(key, VersionedValue.DUMMY, decisionMaker)) {
+                updateCounts(null, decisionMaker.selectedValue);
+                return null;
+            }
+        } finally {
+            TransactionStore.endChange(changeStamp);
+        }
+        return set(key, decisionMaker);
+    }
+
+    /**
+     * Update the values for a number of keys. The changes are applied to the
+     * underlying map in key order, with a single update of its root, and an
+     * undo log entry is added for each key. Entries that are locked by another
+     * transaction are then updated one at a time, waiting for the other
+     * transaction as in {@link #put(Object, Object)}.
+     *
+     * @param m the keys and new values (not null)
+     * @throws IllegalStateException if a lock timeout occurs
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        ArrayList<Map.Entry<?, ?>> entries = new ArrayList<>(m.size());
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+            DataUtils.checkArgument(e.getValue() != null, "The value may not be null");
+            entries.add(e);
+        }
+        setAll(entries);
+    }
+
+    /**
+     * Remove the entries for a number of keys, in the same way as
+     * {@link #putAll(Map)}.
+     *
+     * @param keys the keys
+     * @throws IllegalStateException if a lock timeout occurs
+     */
+    public void removeAll(Collection<? extends K> keys) {
+        ArrayList<Map.Entry<?, ?>> entries = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(key, null));
+        }
+        setAll(entries);
+    }
+
+    private void setAll(ArrayList<Map.Entry<?, ?>> entries) {
+        final DataType keyType = map.getKeyType();
+        Collections.sort(entries, new Comparator<Map.Entry<?, ?>>() {
+            @Override
+            public int compare(Map.Entry<?, ?> a, Map.Entry<?, ?> b) {
+                return keyType.compare(a.getKey(), b.getKey());
+            }
+        });
+        int size = entries.size();
+        @SuppressWarnings("unchecked")
+        K[] keys = (K[]) new Object[size];
+        VersionedValue[] values = new VersionedValue[size];
+        TxDecisionMaker[] decisionMakers = new TxDecisionMaker[size];
+        for (int i = 0; i < size; i++) {
+            Map.Entry<?, ?> e = entries.get(i);
+            @SuppressWarnings("unchecked")
+            K key = (K) e.getKey();
+            keys[i] = key;
+            // the value is embedded in the decision maker
+            values[i] = VersionedValue.DUMMY;
+            decisionMakers[i] = new TxDecisionMaker.PutDecisionMaker(map.getId(), key, e.getValue(),
+                    transaction);
+        }
+        List<VersionedValue> oldValues;
+        TransactionStore.beginChange(changeStamp);
+        try {
+            oldValues = map.operateBatch(keys, values, decisionMakers);
+            for (int i = 0; i < size; i++) {
+                TxDecisionMaker decisionMaker = decisionMakers[i];
+                if (decisionMaker.getDecision() == MVMap.Decision.PUT) {
+                    updateCounts(oldValues.get(i), decisionMaker.selectedValue);
+                }
+            }
+        } finally {
+            TransactionStore.endChange(changeStamp);
+        }
+        for (int i = 0; i < size; i++) {
+            TxDecisionMaker decisionMaker = decisionMakers[i];
+            if (decisionMaker.getDecision() == MVMap.Decision.ABORT) {
+                // locked by another transaction
+                decisionMaker.reset();
+                set(keys[i], decisionMaker);
+            }
+        }
+    }
+
     /**
      * Appends entry to underlying map. This method may be used concurrently,
      * but latest appended values are not guaranteed to be visible.
@@ -250,7 +529,15 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
      * @param value to be appended
      */
     public void append(K key, V value) {
-        map.append(key, VersionedValueUncommitted.getInstance(transaction.log(map.getId(), key, null), value, null));
+        VersionedValue newValue = VersionedValueUncommitted.getInstance(transaction.log(map.getId(), key, null),
+                value, null);
+        TransactionStore.beginChange(changeStamp);
+        try {
+            map.append(key, newValue);
+            updateCounts(null, newValue);
+        } finally {
+            TransactionStore.endChange(changeStamp);
+        }
     }
 
     /**
@@ -278,12 +565,59 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
     public V putCommitted(K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
         VersionedValue newValue = VersionedValueCommitted.getInstance(value);
-        VersionedValue oldValue = map.put(key, newValue);
+        VersionedValue oldValue;
+        TransactionStore.beginChange(changeStamp);
+        try {
+            oldValue = map.put(key, newValue);
+            updateCounts(oldValue, newValue);
+        } finally {
+            TransactionStore.endChange(changeStamp);
+        }
         @SuppressWarnings("unchecked")
         V result = (V) (oldValue == null ? null : oldValue.getCurrentValue());
         return result;
     }
 
+    /**
+     * Load sorted entries into the empty map, without adding undo log entries.
+     *
+     * @param entries the entries, sorted by key
+     * @param fillRate the fill rate of the pages, in percent
+     * @return the number of entries that were loaded
+     * @see MVMap#bulkLoad(Iterator, int)
+     */
+    public long loadCommitted(final Iterator<? extends Map.Entry<K, V>> entries, int fillRate) {
+        TransactionStore.beginChange(changeStamp);
+        try {
+            long count = map.bulkLoad(new Iterator<Map.Entry<K, VersionedValue>>() {
+
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Map.Entry<K, VersionedValue> next() {
+                    Map.Entry<K, V> e = entries.next();
+                    V value = e.getValue();
+                    DataUtils.checkArgument(value != null, "The value may not be null");
+                    return new AbstractMap.SimpleImmutableEntry<>(e.getKey(),
+                            VersionedValueCommitted.getInstance(value));
+                }
+
+                @Override
+                public void remove() {
+                    throw DataUtils.newUnsupportedOperationException("Removal is not supported");
+                }
+            }, fillRate);
+            // the map was empty, so all entries are committed
+            counts.set(EntryCounts.create(map.sizeAsLong()));
+            return count;
+        } finally {
+            TransactionStore.endChange(changeStamp);
+        }
+    }
+
     private V set(Object key, V value) {
         TxDecisionMaker decisionMaker = new TxDecisionMaker.PutDecisionMaker(map.getId(), key, value, transaction);
         return set(key, decisionMaker);
@@ -294,35 +628,52 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
         Transaction blockingTransaction;
         long sequenceNumWhenStarted;
         VersionedValue result;
-        do {
-            sequenceNumWhenStarted = store.openTransactions.get().getVersion();
-            assert transaction.getBlockerId() == 0;
-            // although second parameter (value) is not really used,
-            // since TxDecisionMaker has it embedded,
-            // MVRTreeMap has weird traversal logic based on it,
-            // and any non-null value will do
-            @SuppressWarnings("unchecked")
-            K k = (K) key;
-            result = map.operate(k, VersionedValue.DUMMY, decisionMaker);
-
-            MVMap.Decision decision = decisionMaker.getDecision();
-            assert decision != null;
-            assert decision != MVMap.Decision.REPEAT;
-            blockingTransaction = decisionMaker.getBlockingTransaction();
-            if (decision != MVMap.Decision.ABORT || blockingTransaction == null) {
+        try {
+            do {
+                sequenceNumWhenStarted = store.openTransactions.get().getVersion();
+                assert transaction.getBlockerId() == 0;
+                // although second parameter (value) is not really used,
+                // since TxDecisionMaker has it embedded,
+                // MVRTreeMap has weird traversal logic based on it,
+                // and any non-null value will do
                 @SuppressWarnings("unchecked")
-                V res = result == null ? null : (V) result.getCurrentValue();
-                return res;
-            }
-            decisionMaker.reset();
-        } while (blockingTransaction.sequenceNum > sequenceNumWhenStarted
-                || transaction.waitFor(blockingTransaction, map, key));
+                K k = (K) key;
+                TransactionStore.beginChange(changeStamp);
+                try {
+                    result = map.operate(k, VersionedValue.DUMMY, decisionMaker);
+                    if (decisionMaker.getDecision() == MVMap.Decision.PUT) {
+                        updateCounts(result, decisionMaker.selectedValue);
+                    }
+                } finally {
+                    TransactionStore.endChange(changeStamp);
+                }
 
-        throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_LOCKED,
-                "Map entry <{0}> with key <{1}> and value {2} is locked by tx {3} and can not be updated by tx {4}"
-                        + " within allocated time interval {5} ms.",
-                map.getName(), key, result, blockingTransaction.transactionId, transaction.transactionId,
-                transaction.timeoutMillis);
+                MVMap.Decision decision = decisionMaker.getDecision();
+                assert decision != null;
+                assert decision != MVMap.Decision.REPEAT;
+                blockingTransaction = decisionMaker.getBlockingTransaction();
+                if (decision != MVMap.Decision.ABORT || blockingTransaction == null) {
+                    @SuppressWarnings("unchecked")
+                    V res = result == null ? null : (V) result.getCurrentValue();
+                    return res;
+                }
+                decisionMaker.reset();
+            } while (blockingTransaction.sequenceNum > sequenceNumWhenStarted
+                    || transaction.waitFor(blockingTransaction, map, key));
+
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_LOCKED,
+                    "Map entry <{0}> with key <{1}> and value {2} is locked by tx {3} and can not be updated by tx {4}"
+                            + " within allocated time interval {5} ms.",
+                    map.getName(), key, result, blockingTransaction.transactionId, transaction.transactionId,
+                    transaction.timeoutMillis);
+        } finally {
+            // let the next waiting transaction try, if this one was woken up
+            transaction.releaseWaitQueue(decisionMaker.getDecision() == MVMap.Decision.PUT);
+        }
+    }
+
+    private void updateCounts(VersionedValue oldValue, VersionedValue newValue) {
+        transaction.store.updateCounts(map.getId(), counts, oldValue, newValue);
     }
 
     /**
@@ -448,7 +799,13 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
     @Override
     public void clear() {
         // TODO truncate transactionally?
-        map.clear();
+        TransactionStore.beginChange(changeStamp);
+        try {
+            map.clear();
+            counts.set(EntryCounts.create(0));
+        } finally {
+            TransactionStore.endChange(changeStamp);
+        }
     }
 
     @Override
@@ -583,7 +940,20 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
      * @return the iterator
      */
     public Iterator<Map.Entry<K, V>> entryIterator(final K from, final K to) {
-        return new EntryIterator<>(this, from, to);
+        return entryIterator(from, to, false);
+    }
+
+    /**
+     * Iterate over entries.
+     *
+     * @param from the first key to return
+     * @param to the last key to return
+     * @param scan whether the iterator is used for a scan, in which case
+     *            pages that are read are added to the cache as cold entries
+     * @return the iterator
+     */
+    public Iterator<Map.Entry<K, V>> entryIterator(K from, K to, boolean scan) {
+        return new EntryIterator<>(this, from, to, scan);
     }
 
     /**
@@ -645,11 +1015,44 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
         return map.getKeyType();
     }
 
+    /**
+     * A coherent picture of the state of the map, the undo logs, and the
+     * committing transactions.
+     */
+    private static final class Snapshot {
+
+        /**
+         * The transactions that are being committed.
+         */
+        BitSet committingTransactions;
+
+        /**
+         * The root of the map.
+         */
+        RootReference mapRootReference;
+
+        /**
+         * The roots of the undo logs, by transaction id.
+         */
+        RootReference[] undoLogRootReferences;
+
+        /**
+         * The records of the undo buffers, by transaction id.
+         */
+        Object[][][] undoBuffers;
+
+        /**
+         * The total number of undo log entries.
+         */
+        long undoLogSize;
+
+    }
+
 
     private static final class KeyIterator<K> extends TMIterator<K,K> {
 
         public KeyIterator(TransactionMap<K, ?> transactionMap, K from, K to, boolean includeUncommitted) {
-            super(transactionMap, from, to, includeUncommitted);
+            super(transactionMap, from, to, includeUncommitted, false);
         }
 
         @Override
@@ -660,8 +1063,8 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
 
     private static final class EntryIterator<K,V> extends TMIterator<K,Map.Entry<K,V>> {
 
-        public EntryIterator(TransactionMap<K, ?> transactionMap, K from, K to) {
-            super(transactionMap, from, to, false);
+        public EntryIterator(TransactionMap<K, ?> transactionMap, K from, K to, boolean scan) {
+            super(transactionMap, from, to, false, scan);
         }
 
         @Override
@@ -678,7 +1081,8 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
         private final boolean includeAllUncommitted;
         private X current;
 
-        TMIterator(TransactionMap<K,?> transactionMap, K from, K to, boolean includeAllUncommitted) {
+        TMIterator(TransactionMap<K,?> transactionMap, K from, K to, boolean includeAllUncommitted,
+                boolean scan) {
             Transaction transaction = transactionMap.getTransaction();
             this.transactionId = transaction.transactionId;
             TransactionStore store = transaction.store;
@@ -698,7 +1102,7 @@ public class TransactionMap<K, V> extends AbstractMap<K, V> {
             // and committingTransactions mask tells us which of seemingly uncommitted changes
             // should be considered as committed.
             // Subsequent map traversal uses this snapshot info only.
-            this.cursor = new Cursor<>(mapRootReference.root, from, to);
+            this.cursor = new Cursor<>(mapRootReference.root, from, to, scan);
             this.committingTransactions = committingTransactions;
 
             this.includeAllUncommitted = includeAllUncommitted;
@@ -10,6 +10,10 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.h2.mvstore.Cursor;
@@ -91,6 +95,47 @@ public class TransactionStore {
     private final AtomicReferenceArray<Transaction> transactions =
                                                         new AtomicReferenceArray<>(MAX_OPEN_TRANSACTIONS + 1);
 
+    /**
+     * The change stamps of the maps, by map id. The upper 32 bits count the
+     * completed changes, and the lower 32 bits the changes in progress.
+     * A change of a map, together with the update of the entry counts, is
+     * enclosed in {@link #beginChange(AtomicLong)} and
+     * {@link #endChange(AtomicLong)}, so that readers can detect whether the
+     * root of the map and the counts they have read are consistent.
+     */
+    private final ConcurrentHashMap<Integer, AtomicLong> changeStamps = new ConcurrentHashMap<>();
+
+    /**
+     * The queues of the transactions waiting for a map entry, by map id and
+     * key.
+     */
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Object, WaitQueue>> waitQueues =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The entry counts of the maps, by map id. Each change of a map replaces
+     * the counts atomically, so that the size of a map as seen by a
+     * transaction can be read without waiting.
+     */
+    private final ConcurrentHashMap<Integer, AtomicReference<EntryCounts>> entryCounts =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The number of open transactions that were restored when opening the
+     * store. While there are such transactions, the entry counts of a map
+     * are created, and the changes of these transactions are committed or
+     * rolled back, while synchronized on this object.
+     */
+    private final AtomicInteger restoredTransactions = new AtomicInteger();
+
+    /**
+     * The committed transactions whose changes are not yet applied to the
+     * maps. Until then, the transaction id stays in use, and the bit in
+     * committingTransactions stays set, so that the uncommitted entries of
+     * the transaction are considered as committed.
+     */
+    private final ConcurrentLinkedQueue<Transaction> pendingCommits = new ConcurrentLinkedQueue<>();
+
     private static final String UNDO_LOG_NAME_PREFIX = "undoLog";
     private static final char UNDO_LOG_COMMITTED = '-'; // must come before open in lexicographical order
     private static final char UNDO_LOG_OPEN = '.';
@@ -150,6 +195,18 @@ public class TransactionStore {
         DataType vt = new VersionedValueType(dataType);
         mapBuilder = new MVMap.Builder<Object, VersionedValue>()
                             .keyType(dataType).valueType(vt);
+        store.setBeforeStoreTask(new Runnable() {
+            @Override
+            public void run() {
+                spillUndoBuffers();
+            }
+        });
+        store.setBackgroundTask(new Runnable() {
+            @Override
+            public void run() {
+                finishCommits();
+            }
+        });
     }
 
     /**
@@ -189,8 +246,15 @@ public class TransactionStore {
                                 assert committed || lastUndoKey != null;
                                 assert committed || getTransactionId(lastUndoKey) == transactionId;
                                 long logId = lastUndoKey == null ? 0 : getLogId(lastUndoKey) + 1;
-                                registerTransaction(transactionId, status, name, logId, timeoutMillis, 0,
-                                        ROLLBACK_LISTENER_NONE);
+                                Transaction t = registerTransaction(transactionId, status, name, logId,
+                                        timeoutMillis, 0, ROLLBACK_LISTENER_NONE);
+                                t.restored = true;
+                                restoredTransactions.incrementAndGet();
+                                if (committed) {
+                                    // the changes may not be applied yet,
+                                    // but they are visible
+                                    flipCommittingTransactionsBit(transactionId, true);
+                                }
                                 continue;
                             }
                         }
@@ -343,6 +407,11 @@ public class TransactionStore {
         int transactionId;
         long sequenceNo;
         boolean success;
+        if (txId == 0 && openTransactions.get().nextClearBit(1) > maxTransactionId) {
+            // the ids of committed transactions are
+            // released when their changes are applied
+            finishCommits();
+        }
         do {
             VersionedBitSet original = openTransactions.get();
             if (txId == 0) {
@@ -393,14 +462,16 @@ public class TransactionStore {
     }
 
     /**
-     * Add an undo log entry.
+     * Add an undo log entry. It is kept in the undo buffer of the transaction
+     * if possible.
      *
-     * @param transactionId id of the transaction
+     * @param t the transaction
      * @param logId sequential number of the log record within transaction
      * @param undoLogRecord Object[mapId, key, previousValue]
      * @return undo key
      */
-    long addUndoLogRecord(int transactionId, long logId, Object[] undoLogRecord) {
+    long addUndoLogRecord(Transaction t, long logId, Object[] undoLogRecord) {
+        int transactionId = t.transactionId;
         MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
         long undoKey = getOperationId(transactionId, logId);
         if (logId == 0 && !undoLog.isEmpty()) {
@@ -410,16 +481,54 @@ public class TransactionStore {
                     "is still open: {0}",
                     transactionId);
         }
-        undoLog.append(undoKey, undoLogRecord);
+        if (!t.addToUndoBuffer(logId, undoLogRecord)) {
+            undoLog.append(undoKey, undoLogRecord);
+        }
         return undoKey;
     }
 
     /**
-     * Remove an undo log entry.
+     * Add the records of an undo buffer to the undo log map.
+     *
      * @param transactionId id of the transaction
+     * @param undoLogRecords the records, by log id
+     * @param count the number of records
      */
-    void removeUndoLogRecord(int transactionId) {
-        undoLogs[transactionId].trimLast();
+    void addUndoLogRecords(int transactionId, Object[][] undoLogRecords, int count) {
+        MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
+        for (int i = 0; i < count; i++) {
+            undoLog.append(getOperationId(transactionId, i), undoLogRecords[i]);
+        }
+        if (committingTransactions.get().get(transactionId)) {
+            // the transaction is being committed from the buffer: if the
+            // changes are stored now, the commit is completed after a restart
+            store.renameMap(undoLog, getUndoLogName(true, transactionId));
+        }
+    }
+
+    /**
+     * Remove an undo log entry.
+     * @param t the transaction
+     */
+    void removeUndoLogRecord(Transaction t) {
+        if (!t.removeFromUndoBuffer()) {
+            undoLogs[t.transactionId].trimLast();
+        }
+    }
+
+    /**
+     * Move the undo buffers of all open transactions to the undo log maps. This
+     * is done before the changes are stored, because the uncommitted changes
+     * can only be undone after a restart if the undo log is stored as well.
+     */
+    void spillUndoBuffers() {
+        BitSet openTrans = openTransactions.get();
+        for (int i = openTrans.nextSetBit(0); i >= 0; i = openTrans.nextSetBit(i + 1)) {
+            Transaction t = getTransaction(i);
+            if (t != null) {
+                t.spillUndoBuffer();
+            }
+        }
     }
 
     /**
@@ -431,10 +540,192 @@ public class TransactionStore {
      */
     <K, V> void removeMap(TransactionMap<K, V> map) {
         store.removeMap(map.map, false);
+        changeStamps.remove(map.map.getId());
+        entryCounts.remove(map.map.getId());
+        waitQueues.remove(map.map.getId());
+    }
+
+    /**
+     * Get the change stamp of the given map.
+     *
+     * @param mapId the map id
+     * @return the change stamp
+     */
+    AtomicLong getChangeStamp(int mapId) {
+        AtomicLong stamp = changeStamps.get(mapId);
+        if (stamp == null) {
+            stamp = new AtomicLong();
+            AtomicLong old = changeStamps.putIfAbsent(mapId, stamp);
+            if (old != null) {
+                stamp = old;
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Get the queues of the transactions waiting for an entry of the given
+     * map.
+     *
+     * @param mapId the map id
+     * @return the queues, by key
+     */
+    ConcurrentHashMap<Object, WaitQueue> getWaitQueues(int mapId) {
+        ConcurrentHashMap<Object, WaitQueue> queues = waitQueues.get(mapId);
+        if (queues == null) {
+            queues = new ConcurrentHashMap<>();
+            ConcurrentHashMap<Object, WaitQueue> old = waitQueues.putIfAbsent(mapId, queues);
+            if (old != null) {
+                queues = old;
+            }
+        }
+        return queues;
+    }
+
+    /**
+     * Mark the start of a change of a map.
+     *
+     * @param stamp the change stamp of the map
+     */
+    static void beginChange(AtomicLong stamp) {
+        stamp.incrementAndGet();
+    }
+
+    /**
+     * Mark the end of a change of a map.
+     *
+     * @param stamp the change stamp of the map
+     */
+    static void endChange(AtomicLong stamp) {
+        // one more completed change, one less change in progress
+        stamp.addAndGet((1L << 32) - 1);
+    }
+
+    /**
+     * Get the entry counts of the given map. They are created when the map is
+     * first used by a transaction; the map can then only have uncommitted
+     * entries of transactions that were restored when opening the store.
+     *
+     * @param map the map
+     * @return the entry counts
+     */
+    AtomicReference<EntryCounts> getEntryCounts(MVMap<?, VersionedValue> map) {
+        int mapId = map.getId();
+        AtomicReference<EntryCounts> counts = entryCounts.get(mapId);
+        if (counts == null) {
+            if (restoredTransactions.get() == 0) {
+                counts = new AtomicReference<>(EntryCounts.create(map.sizeAsLong()));
+            } else {
+                synchronized (restoredTransactions) {
+                    counts = entryCounts.get(mapId);
+                    if (counts != null) {
+                        return counts;
+                    }
+                    counts = new AtomicReference<>(EntryCounts.create(map.sizeAsLong()));
+                    countRestoredEntries(map, counts);
+                }
+            }
+            AtomicReference<EntryCounts> old = entryCounts.putIfAbsent(mapId, counts);
+            if (old != null) {
+                counts = old;
+            }
+        }
+        return counts;
+    }
+
+    private void countRestoredEntries(MVMap<?, VersionedValue> map, AtomicReference<EntryCounts> counts) {
+        int mapId = map.getId();
+        BitSet openTrans = openTransactions.get();
+        for (int i = openTrans.nextSetBit(0); i >= 0; i = openTrans.nextSetBit(i + 1)) {
+            Transaction t = getTransaction(i);
+            if (t == null || !t.restored) {
+                continue;
+            }
+            Cursor<Long, Object[]> cursor = undoLogs[i].cursor(null);
+            while (cursor.hasNext()) {
+                long undoKey = cursor.next();
+                Object[] op = cursor.getValue();
+                if ((int) op[0] == mapId) {
+                    VersionedValue value = map.get(op[1]);
+                    // only the last change of an entry is in the map
+                    if (value != null && value.getOperationId() == undoKey) {
+                        // the size of the map counts the entry as visible to all
+                        updateCounts(mapId, counts, VersionedValue.DUMMY, value);
+                    }
+                }
+            }
+            if (committingTransactions.get().get(i)) {
+                counts.set(counts.get().setCommitting(i));
+            }
+        }
+    }
+
+    /**
+     * Update the entry counts after an entry of a map was changed.
+     *
+     * @param mapId the map id
+     * @param oldValue the old value, or null
+     * @param newValue the new value, or null if the entry was removed
+     */
+    void updateCounts(int mapId, VersionedValue oldValue, VersionedValue newValue) {
+        AtomicReference<EntryCounts> counts = entryCounts.get(mapId);
+        if (counts != null) {
+            updateCounts(mapId, counts, oldValue, newValue);
+        }
+    }
+
+    /**
+     * Update the entry counts after an entry of a map was changed.
+     *
+     * @param mapId the map id
+     * @param counts the entry counts of the map
+     * @param oldValue the old value, or null
+     * @param newValue the new value, or null if the entry was removed
+     */
+    void updateCounts(int mapId, AtomicReference<EntryCounts> counts, VersionedValue oldValue,
+            VersionedValue newValue) {
+        long operationId;
+        if (newValue != null && (operationId = newValue.getOperationId()) != 0) {
+            Transaction t = getTransaction(getTransactionId(operationId));
+            if (t != null) {
+                t.addCountedMap(mapId);
+            }
+        }
+        EntryCounts c, n;
+        do {
+            c = counts.get();
+            n = c.update(oldValue, newValue);
+        } while (c != n && !counts.compareAndSet(c, n));
+    }
+
+    /**
+     * Make the uncommitted entries of a transaction that started to commit
+     * visible in the entry counts.
+     *
+     * @param t the transaction
+     */
+    private void setCommittingCounts(Transaction t) {
+        for (int mapId : t.getCountedMaps()) {
+            AtomicReference<EntryCounts> counts = entryCounts.get(mapId);
+            if (counts != null) {
+                EntryCounts c, n;
+                do {
+                    c = counts.get();
+                    n = c.setCommitting(t.transactionId);
+                } while (c != n && !counts.compareAndSet(c, n));
+            }
+        }
     }
 
     /**
      * Commit a transaction.
+     * <p>
+     * If the undo log of the transaction is in the undo log map, and the store
+     * is persistent, the changes are not applied to the maps here: renaming
+     * the undo log map is enough to commit the transaction, and the
+     * transaction stays in the committing state until the changes are applied
+     * by {@link #finishCommits()}.
+     *
      *  @param t transaction to commit
      *  @param recovery if called during initial transaction recovery procedure
      *                  therefore undo log is stored under "committed" name already
@@ -443,38 +734,120 @@ public class TransactionStore {
         if (!store.isClosed()) {
             int transactionId = t.transactionId;
             // this is an atomic action that causes all changes
-            // made by this transaction, to be considered as "committed"
-            flipCommittingTransactionsBit(transactionId, true);
+            // made by this transaction, to be considered as "committed";
+            // the bit of a restored committed transaction is set by init
+            if (!recovery || !committingTransactions.get().get(transactionId)) {
+                flipCommittingTransactionsBit(transactionId, true);
+            }
+            setCommittingCounts(t);
 
+            boolean pending = false;
             CommitDecisionMaker commitDecisionMaker = new CommitDecisionMaker();
             try {
                 MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
+                int bufferSize = recovery ? -1 : t.getUndoBufferSize();
+                if (bufferSize >= 0) {
+                    // the undo log map is not used, unless the records are
+                    // moved there in the meantime
+                    Object[][] buffer = t.getUndoBuffer();
+                    for (int i = 0; i < bufferSize; i++) {
+                        commit(getOperationId(transactionId, i), buffer[i], commitDecisionMaker);
+                    }
+                    if (!t.trimUndoBuffer(bufferSize, 0)) {
+                        undoLog.clear();
+                        store.renameMap(undoLog, getUndoLogName(false, transactionId));
+                    }
+                    return;
+                }
                 if(!recovery) {
                     store.renameMap(undoLog, getUndoLogName(true, transactionId));
-                }
-                try {
-                    Cursor<Long, Object[]> cursor = undoLog.cursor(null);
-                    while (cursor.hasNext()) {
-                        Long undoKey = cursor.next();
-                        Object[] op = cursor.getValue();
-                        int mapId = (Integer) op[0];
-                        MVMap<Object, VersionedValue> map = openMap(mapId);
-                        if (map != null) { // might be null if map was removed later
-                            Object key = op[1];
-                            commitDecisionMaker.setUndoKey(undoKey);
-                            // although second parameter (value) is not really
-                            // used by CommitDecisionMaker, MVRTreeMap has weird
-                            // traversal logic based on it, and any non-null
-                            // value will do, to signify update, not removal
-                            map.operate(key, VersionedValue.DUMMY, commitDecisionMaker);
-                        }
+                    if (store.getFileStore() != null) {
+                        // see endTransaction
+                        pending = true;
+                        return;
                     }
-                    undoLog.clear();
-                } finally {
-                    store.renameMap(undoLog, getUndoLogName(false, transactionId));
+                }
+                commitUndoLog(t, commitDecisionMaker);
+            } finally {
+                if (!pending) {
+                    flipCommittingTransactionsBit(transactionId, false);
+                }
+            }
+        }
+    }
+
+    private void commitUndoLog(Transaction t, CommitDecisionMaker commitDecisionMaker) {
+        if (t.restored) {
+            // see getEntryCounts
+            synchronized (restoredTransactions) {
+                commitUndoLog(t.transactionId, commitDecisionMaker);
+            }
+        } else {
+            commitUndoLog(t.transactionId, commitDecisionMaker);
+        }
+    }
+
+    private void commitUndoLog(int transactionId, CommitDecisionMaker commitDecisionMaker) {
+        MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
+        Cursor<Long, Object[]> cursor = undoLog.cursor(null);
+        while (cursor.hasNext()) {
+            Long undoKey = cursor.next();
+            commit(undoKey, cursor.getValue(), commitDecisionMaker);
+        }
+        undoLog.clear();
+        // if the changes could not be applied, the undo log keeps the
+        // committed name, so that they are applied when the store is reopened
+        store.renameMap(undoLog, getUndoLogName(false, transactionId));
+    }
+
+    /**
+     * Apply the changes of the committed transactions to the maps, and close
+     * the transactions. This is done by the background writer thread, after
+     * a commit if there is no background writer, and when there is no free
+     * transaction id. It can also be called before a checkpoint, so that the
+     * changes are stored right away. If the changes of a transaction can not
+     * be applied, it stays committed and is retried later.
+     *
+     * @return true if there were such transactions
+     */
+    public boolean finishCommits() {
+        boolean result = false;
+        Transaction t;
+        while ((t = pendingCommits.poll()) != null) {
+            try {
+                commitUndoLog(t, new CommitDecisionMaker());
+            } catch (Throwable e) {
+                pendingCommits.add(t);
+                throw e;
+            }
+            flipCommittingTransactionsBit(t.transactionId, false);
+            releaseTransactionId(t);
+            result = true;
+        }
+        return result;
+    }
+
+    private void commit(long undoKey, Object[] op, CommitDecisionMaker commitDecisionMaker) {
+        int mapId = (Integer) op[0];
+        MVMap<Object, VersionedValue> map = openMap(mapId);
+        if (map != null) { // might be null if map was removed later
+            Object key = op[1];
+            commitDecisionMaker.setUndoKey(undoKey);
+            AtomicLong stamp = getChangeStamp(mapId);
+            beginChange(stamp);
+            try {
+                // although second parameter (value) is not really
+                // used by CommitDecisionMaker, MVRTreeMap has weird
+                // traversal logic based on it, and any non-null
+                // value will do, to signify update, not removal
+                VersionedValue old = map.operate(key, VersionedValue.DUMMY, commitDecisionMaker);
+                MVMap.Decision decision = commitDecisionMaker.getDecision();
+                if (decision != MVMap.Decision.ABORT) {
+                    // the committed value is visible to all transactions
+                    updateCounts(mapId, old, decision == MVMap.Decision.REMOVE ? null : VersionedValue.DUMMY);
                 }
             } finally {
-                flipCommittingTransactionsBit(transactionId, false);
+                endChange(stamp);
             }
         }
     }
@@ -501,6 +874,22 @@ public class TransactionStore {
      */
     <K> MVMap<K, VersionedValue> openMap(String name,
             DataType keyType, DataType valueType) {
+        return openMap(name, keyType, valueType, false);
+    }
+
+    /**
+     * Open the map with the given name.
+     *
+     * @param <K> the key type
+     * @param name the map name
+     * @param keyType the key type
+     * @param valueType the value type
+     * @param appendBuffer whether the map should have an append buffer (only
+     *            if it is not open yet)
+     * @return the map
+     */
+    <K> MVMap<K, VersionedValue> openMap(String name,
+            DataType keyType, DataType valueType, boolean appendBuffer) {
         if (keyType == null) {
             keyType = new ObjectDataType();
         }
@@ -512,6 +901,9 @@ public class TransactionStore {
         MVMap.Builder<K, VersionedValue> builder =
                 new MVMap.Builder<K, VersionedValue>().
                 keyType(keyType).valueType(vt);
+        if (appendBuffer) {
+            builder.singleWriter();
+        }
         map = store.openMap(name, builder);
         return map;
     }
@@ -538,7 +930,8 @@ public class TransactionStore {
     /**
      * End this transaction. Change status to CLOSED and vacate transaction slot.
      * Will try to commit MVStore if autocommitDelay is 0 or if database is idle
-     * and amount of unsaved changes is sizable.
+     * and amount of unsaved changes is sizable. If group commit is enabled,
+     * a committed transaction waits until its changes are synced.
      *
      * @param t the transaction
      * @param hasChanges true if transaction has done any updates
@@ -546,18 +939,20 @@ public class TransactionStore {
      *                   false if it just performed a data access
      */
     void endTransaction(Transaction t, boolean hasChanges) {
+        boolean committed = t.getStatus() == Transaction.STATUS_COMMITTED;
         t.closeIt();
         int txId = t.transactionId;
-        transactions.set(txId, null);
-
-        boolean success;
-        do {
-            VersionedBitSet original = openTransactions.get();
-            assert original.get(txId);
-            VersionedBitSet clone = original.clone();
-            clone.clear(txId);
-            success = openTransactions.compareAndSet(original, clone);
-        } while(!success);
+        if (committed && committingTransactions.get().get(txId)) {
+            // the changes are not applied yet: the transaction
+            // keeps its id and entry counts until then
+            pendingCommits.add(t);
+            if (store.getAutoCommitDelay() == 0) {
+                // there is no background writer to apply them
+                finishCommits();
+            }
+        } else {
+            releaseTransactionId(t);
+        }
 
         if (hasChanges) {
             boolean wasStored = t.wasStored;
@@ -565,7 +960,9 @@ public class TransactionStore {
                 preparedTransactions.remove(txId);
             }
 
-            if (wasStored || store.getAutoCommitDelay() == 0) {
+            if (committed && store.getGroupCommitDelay() >= 0) {
+                store.commitAndSync();
+            } else if (wasStored || store.getAutoCommitDelay() == 0) {
                 store.tryCommit();
             } else {
                 if (isUndoEmpty()) {
@@ -583,6 +980,23 @@ public class TransactionStore {
         }
     }
 
+    private void releaseTransactionId(Transaction t) {
+        int txId = t.transactionId;
+        transactions.set(txId, null);
+        if (t.restored) {
+            restoredTransactions.decrementAndGet();
+        }
+
+        boolean success;
+        do {
+            VersionedBitSet original = openTransactions.get();
+            assert original.get(txId);
+            VersionedBitSet clone = original.clone();
+            clone.clear(txId);
+            success = openTransactions.compareAndSet(original, clone);
+        } while(!success);
+    }
+
     private boolean isUndoEmpty() {
         BitSet openTrans = openTransactions.get();
         for (int i = openTrans.nextSetBit(0); i >= 0; i = openTrans.nextSetBit(i + 1)) {
@@ -590,6 +1004,10 @@ public class TransactionStore {
             if (undoLog != null && !undoLog.isEmpty()) {
                 return false;
             }
+            Transaction t = getTransaction(i);
+            if (t != null && t.getUndoBufferSize() > 0) {
+                return false;
+            }
         }
         return true;
     }
@@ -615,6 +1033,33 @@ public class TransactionStore {
         int transactionId = t.getId();
         MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
         RollbackDecisionMaker decisionMaker = new RollbackDecisionMaker(this, transactionId, toLogId, t.listener);
+        int bufferSize = t.getUndoBufferSize();
+        if (bufferSize >= 0) {
+            Object[][] buffer = t.getUndoBuffer();
+            for (int i = bufferSize - 1; i >= toLogId; i--) {
+                decisionMaker.decide(buffer[i], null);
+                decisionMaker.reset();
+            }
+            if (!t.trimUndoBuffer(bufferSize, (int) Math.min(bufferSize, toLogId))) {
+                // the records were moved to the undo log map in the meantime
+                for (long logId = bufferSize - 1; logId >= toLogId; logId--) {
+                    undoLog.remove(getOperationId(transactionId, logId));
+                }
+            }
+            return;
+        }
+        if (t.restored) {
+            // see getEntryCounts
+            synchronized (restoredTransactions) {
+                rollbackUndoLog(undoLog, transactionId, maxLogId, toLogId, decisionMaker);
+            }
+        } else {
+            rollbackUndoLog(undoLog, transactionId, maxLogId, toLogId, decisionMaker);
+        }
+    }
+
+    private static void rollbackUndoLog(MVMap<Long, Object[]> undoLog, int transactionId, long maxLogId,
+            long toLogId, RollbackDecisionMaker decisionMaker) {
         for (long logId = maxLogId - 1; logId >= toLogId; logId--) {
             Long undoKey = getOperationId(transactionId, logId);
             undoLog.operate(undoKey, null, decisionMaker);
@@ -635,6 +1080,8 @@ public class TransactionStore {
             final long toLogId) {
 
         final MVMap<Long, Object[]> undoLog = undoLogs[t.getId()];
+        int bufferSize = t.getUndoBufferSize();
+        final Object[][] buffer = bufferSize < 0 ? null : t.copyUndoBuffer(bufferSize);
         return new Iterator<Change>() {
 
             private long logId = maxLogId - 1;
@@ -644,8 +1091,17 @@ public class TransactionStore {
                 int transactionId = t.getId();
                 while (logId >= toLogId) {
                     Long undoKey = getOperationId(transactionId, logId);
-                    Object[] op = undoLog.get(undoKey);
-                    logId--;
+                    Object[] op;
+                    if (buffer != null) {
+                        op = logId < buffer.length ? buffer[(int) logId] : null;
+                        logId--;
+                        if (op == null) {
+                            continue;
+                        }
+                    } else {
+                        op = undoLog.get(undoKey);
+                        logId--;
+                    }
                     if (op == null) {
                         // partially rolled back: load previous
                         undoKey = undoLog.floorKey(undoKey);
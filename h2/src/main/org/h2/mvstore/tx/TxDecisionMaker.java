@@ -45,9 +45,20 @@ abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
      */
     private       long           lastOperationId;
 
+    /**
+     * The value selected to be stored in the map, if any
+     */
+    VersionedValue               selectedValue;
+
     private       Transaction    blockingTransaction;
     private       MVMap.Decision decision;
 
+    /**
+     * Whether the existing entry belongs to a committing transaction,
+     * so that its current value is the committed one
+     */
+    boolean                      existingCommitted;
+
     TxDecisionMaker(int mapId, Object key, Object value, Transaction transaction) {
         this.mapId = mapId;
         this.key = key;
@@ -69,6 +80,7 @@ abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
             logIt(existingValue);
             decision = MVMap.Decision.PUT;
         } else if (isCommitted(blockingId)) {
+            existingCommitted = true;
             // Condition above means that entry belongs to a committing transaction.
             // We assume that we are looking at the final value for this transaction,
             // and if it's not the case, then it will fail later,
@@ -113,12 +125,27 @@ abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
         }
         blockingTransaction = null;
         decision = null;
+        selectedValue = null;
+        existingCommitted = false;
     }
 
     public final MVMap.Decision getDecision() {
         return decision;
     }
 
+    /**
+     * Get the committed value of the existing entry.
+     *
+     * @param existingValue the existing entry, or null
+     * @return the committed value, or null
+     */
+    final Object getCommittedValue(VersionedValue existingValue) {
+        if (existingValue == null) {
+            return null;
+        }
+        return existingCommitted ? existingValue.getCurrentValue() : existingValue.getCommittedValue();
+    }
+
     final Transaction getBlockingTransaction() {
         return blockingTransaction;
     }
@@ -205,8 +232,8 @@ abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
         @SuppressWarnings("unchecked")
         @Override
         public final VersionedValue selectValue(VersionedValue existingValue, VersionedValue providedValue) {
-            return VersionedValueUncommitted.getInstance(undoKey, value,
-                                                existingValue == null ? null : existingValue.getCommittedValue());
+            return selectedValue = VersionedValueUncommitted.getInstance(undoKey, value,
+                                                getCommittedValue(existingValue));
         }
     }
 
@@ -236,6 +263,7 @@ abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
                     logIt(existingValue);
                     return setDecision(MVMap.Decision.PUT);
                 } else if (isCommitted(blockingId)) {
+                    existingCommitted = true;
                     // entry belongs to a committing transaction
                     // and therefore will be committed soon
                     if(existingValue.getCurrentValue() != null) {
@@ -294,9 +322,9 @@ abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
         @SuppressWarnings("unchecked")
         @Override
         public VersionedValue selectValue(VersionedValue existingValue, VersionedValue providedValue) {
-            return VersionedValueUncommitted.getInstance(undoKey,
+            return selectedValue = VersionedValueUncommitted.getInstance(undoKey,
                     existingValue == null ? null : existingValue.getCurrentValue(),
-                    existingValue == null ? null : existingValue.getCommittedValue());
+                    getCommittedValue(existingValue));
         }
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2004-2019 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.tx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The transactions waiting for a map entry that is modified by another
+ * transaction, in the order in which they started to wait.
+ * <p>
+ * When the transaction that modified the entry (the blocker) is closed, only
+ * the first waiting transaction is woken up. If it then modifies the entry,
+ * it becomes the blocker of the remaining transactions; otherwise the next
+ * transaction is woken up. This way, the waiting transactions get the entry
+ * one after the other, and do not all retry at the same time.
+ * <p>
+ * When the blocker of the waiting transactions changes, they are checked for
+ * deadlocks, and a deadlocked transaction is woken up, so that it fails.
+ */
+final class WaitQueue {
+
+    /**
+     * The queues of the map, by key.
+     */
+    private final ConcurrentHashMap<Object, WaitQueue> queues;
+
+    /**
+     * The key of the entry.
+     */
+    private final Object key;
+
+    /**
+     * The waiting transactions.
+     */
+    private final ArrayDeque<Transaction> waiting = new ArrayDeque<>();
+
+    /**
+     * The transaction that was woken up, and did not yet decide whether it
+     * modifies the entry, or null.
+     */
+    private Transaction woken;
+
+    /**
+     * Whether this queue was removed from the map, because it is not used.
+     */
+    private boolean removed;
+
+    private WaitQueue(ConcurrentHashMap<Object, WaitQueue> queues, Object key) {
+        this.queues = queues;
+        this.key = key;
+    }
+
+    /**
+     * Add a transaction to the queue of the given entry. A transaction that was
+     * woken up by this queue is added at the front.
+     *
+     * @param queues the queues of the map, by key
+     * @param key the key of the entry
+     * @param t the waiting transaction
+     * @param blocker the transaction that modified the entry
+     * @return the queue
+     */
+    static WaitQueue add(ConcurrentHashMap<Object, WaitQueue> queues, Object key, Transaction t,
+            Transaction blocker) {
+        while (true) {
+            WaitQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new WaitQueue(queues, key);
+                WaitQueue old = queues.putIfAbsent(key, queue);
+                if (old != null) {
+                    queue = old;
+                }
+            }
+            ArrayList<Transaction> deadlocked;
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue;
+                }
+                if (queue.woken == t) {
+                    queue.woken = null;
+                    queue.waiting.addFirst(t);
+                } else {
+                    queue.waiting.addLast(t);
+                }
+                deadlocked = queue.setBlocker(blocker);
+            }
+            wakeUp(deadlocked);
+            return queue;
+        }
+    }
+
+    /**
+     * Remove a waiting transaction, after it stopped waiting.
+     *
+     * @param t the transaction
+     * @return false if the transaction was already woken up
+     */
+    synchronized boolean remove(Transaction t) {
+        if (!waiting.remove(t)) {
+            return false;
+        }
+        removeIfUnused();
+        return true;
+    }
+
+    /**
+     * Wake up the first waiting transaction, if any.
+     */
+    void wakeUpNext() {
+        Transaction t;
+        synchronized (this) {
+            if (woken != null) {
+                // the entry is not decided yet
+                return;
+            }
+            t = waiting.pollFirst();
+            if (t == null) {
+                removeIfUnused();
+                return;
+            }
+            woken = t;
+        }
+        t.wakeUp(this);
+    }
+
+    /**
+     * Called by the transaction that was woken up, after it modified the entry
+     * or gave up.
+     *
+     * @param t the transaction
+     * @param modified whether the transaction modified the entry, so that the
+     *            remaining transactions wait for it
+     */
+    void release(Transaction t, boolean modified) {
+        boolean blocked;
+        ArrayList<Transaction> deadlocked = null;
+        synchronized (this) {
+            if (woken != t) {
+                return;
+            }
+            woken = null;
+            blocked = modified && !waiting.isEmpty();
+            if (blocked) {
+                deadlocked = setBlocker(t);
+            }
+        }
+        wakeUp(deadlocked);
+        if (!blocked || !t.addWaitQueue(this)) {
+            wakeUpNext();
+        }
+    }
+
+    /**
+     * Set the blocker of the waiting transactions, and remove the transactions
+     * that are deadlocked now.
+     *
+     * @param blocker the blocker
+     * @return the deadlocked transactions, or null
+     */
+    private ArrayList<Transaction> setBlocker(Transaction blocker) {
+        ArrayList<Transaction> deadlocked = null;
+        for (Transaction t : waiting) {
+            if (t.setBlockingTransaction(blocker)) {
+                if (deadlocked == null) {
+                    deadlocked = new ArrayList<>();
+                }
+                deadlocked.add(t);
+            }
+        }
+        if (deadlocked != null) {
+            waiting.removeAll(deadlocked);
+        }
+        return deadlocked;
+    }
+
+    private static void wakeUp(ArrayList<Transaction> deadlocked) {
+        if (deadlocked != null) {
+            for (Transaction t : deadlocked) {
+                // it will find the deadlock when it tries again
+                t.wakeUp(null);
+            }
+        }
+    }
+
+    private void removeIfUnused() {
+        if (waiting.isEmpty() && woken == null) {
+            removed = true;
+            queues.remove(key, this);
+        }
+    }
+
+}
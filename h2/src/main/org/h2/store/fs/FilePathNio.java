@@ -8,7 +8,9 @@ package org.h2.store.fs;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
 
@@ -115,6 +117,12 @@ class FileNio extends FileBase {
         }
     }
 
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size)
+            throws IOException {
+        return channel.map(mode, position, size);
+    }
+
     @Override
     public synchronized FileLock tryLock(long position, long size,
             boolean shared) throws IOException {
@@ -518,7 +518,8 @@ public class MetaTable extends Table {
                     "STATEMENT_START TIMESTAMP WITH TIME ZONE",
                     "CONTAINS_UNCOMMITTED BIT",
                     "STATE",
-                    "BLOCKER_ID INT"
+                    "BLOCKER_ID INT",
+                    "WAIT_START TIMESTAMP WITH TIME ZONE"
             );
             break;
         }
@@ -1860,6 +1861,7 @@ public class MetaTable extends Table {
                 if (admin || s == session) {
                     Command command = s.getCurrentCommand();
                     int blockingSessionId = s.getBlockingSessionId();
+                    long waitStart = s.getWaitStart();
                     add(rows,
                             // ID
                             ValueInt.get(s.getId()),
@@ -1876,7 +1878,9 @@ public class MetaTable extends Table {
                             // STATE
                             String.valueOf(s.getState()),
                             // BLOCKER_ID
-                            blockingSessionId == 0 ? null : ValueInt.get(blockingSessionId)
+                            blockingSessionId == 0 ? null : ValueInt.get(blockingSessionId),
+                            // WAIT_START
+                            waitStart == 0 ? null : DateTimeUtils.timestampTimeZoneFromMillis(waitStart)
                     );
                 }
             }
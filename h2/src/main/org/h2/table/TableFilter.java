@@ -101,6 +101,11 @@ public class TableFilter implements ColumnResolver {
     private Row current;
     private int state;
 
+    /**
+     * The number of rows to skip at the next lookup, without reading them.
+     */
+    private long offset;
+
     /**
      * The joined table (if there is one).
      */
@@ -472,7 +477,12 @@ public class TableFilter implements ColumnResolver {
         if (state == AFTER_LAST) {
             return false;
         } else if (state == BEFORE_FIRST) {
-            cursor.find(session, indexConditions);
+            if (offset > 0) {
+                cursor.find(session, indexConditions, offset);
+                offset = 0;
+            } else {
+                cursor.find(session, indexConditions);
+            }
             if (!cursor.isAlwaysFalse()) {
                 if (nestedJoin != null) {
                     nestedJoin.reset();
@@ -921,6 +931,42 @@ public class TableFilter implements ColumnResolver {
         return index;
     }
 
+    /**
+     * Check if this is a single table where the index conditions are the only
+     * conditions, and the index can count and skip the rows in the range
+     * without reading them.
+     *
+     * @return true if it can
+     */
+    public boolean isPositionalRange() {
+        if (join != null || nestedJoin != null || joinBatch != null ||
+                filterCondition != null || joinCondition != null) {
+            return false;
+        }
+        return cursor.isPositionalRange(session, indexConditions);
+    }
+
+    /**
+     * Count the rows in the range of the index conditions, without reading
+     * them.
+     *
+     * @return the number of rows
+     * @see #isPositionalRange()
+     */
+    public long getRowCountInRange() {
+        return cursor.getRowCount(session, indexConditions);
+    }
+
+    /**
+     * Skip the given number of rows at the next lookup, without reading them.
+     *
+     * @param offset the number of rows to skip
+     * @see #isPositionalRange()
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
     public void setIndex(Index index) {
         this.index = index;
         cursor.setIndex(index);
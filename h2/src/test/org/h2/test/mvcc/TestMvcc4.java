@@ -12,6 +12,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import org.h2.test.TestBase;
 import org.h2.test.TestDb;
 
@@ -73,6 +74,7 @@ public class TestMvcc4 extends TestDb {
 
         //Fire off a concurrent update.
         final CountDownLatch executedUpdate = new CountDownLatch(1);
+        final AtomicReference<Timestamp> waitStart = new AtomicReference<>();
         new Thread() {
             @Override
             public void run() {
@@ -94,6 +96,7 @@ public class TestMvcc4 extends TestDb {
                     do {
                         resultSet = stmt.executeQuery();
                     } while(!resultSet.next());
+                    waitStart.set(resultSet.getTimestamp("WAIT_START"));
 
                     c2.commit();
                     c2.close();
@@ -115,6 +118,8 @@ public class TestMvcc4 extends TestDb {
         PreparedStatement ps = c1.prepareStatement("UPDATE test SET lastUpdated = ?");
         ps.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
         assertEquals(2, ps.executeUpdate());
+        // the blocked session reported when it started to wait
+        assertNotNull(waitStart.get());
 
         c1.commit();
         c1.close();
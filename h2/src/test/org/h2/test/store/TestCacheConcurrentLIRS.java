@@ -5,6 +5,8 @@
  */
 package org.h2.test.store;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -89,6 +91,16 @@ public class TestCacheConcurrentLIRS extends TestBase {
             totalCount += x;
         }
         trace("requests: " + totalCount);
+        // the buffered reads did not break the internal state
+        assertTrue(test.getUsedMemory() <= 100);
+        List<Long> stack = test.keys(false, false);
+        assertEquals(stack.size(), new HashSet<>(stack).size());
+        for (int i = 0; i < 100; i++) {
+            test.put(offset + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, test.get(offset + i).intValue());
+        }
     }
 
 }
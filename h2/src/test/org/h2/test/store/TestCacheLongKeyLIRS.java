@@ -43,6 +43,7 @@ public class TestCacheLongKeyLIRS extends TestBase {
         testLimitNonResident();
         testLimitMemory();
         testScanResistance();
+        testPutCold();
         testRandomOperations();
     }
 
@@ -415,6 +416,82 @@ public class TestCacheLongKeyLIRS extends TestBase {
         }
     }
 
+    private void testPutCold() {
+        for (int j = 0; j < 2; j++) {
+            boolean cold = j == 1;
+            CacheLongKeyLIRS<Integer> test = createCache(10);
+            for (int i = 0; i < 10; i++) {
+                test.put(i, i * 10);
+            }
+            // the same scan, twice
+            for (int k = 0; k < 2; k++) {
+                for (int i = 100; i < 120; i++) {
+                    if (test.get(i) == null) {
+                        if (cold) {
+                            test.putCold(i, i * 10, 1);
+                        } else {
+                            test.put(i, i * 10, 1);
+                        }
+                    }
+                    verify(test, null);
+                }
+            }
+            List<Long> stack = test.keys(false, false);
+            List<Long> coldKeys = test.keys(true, false);
+            int hot = 0;
+            for (long i = 0; i < 10; i++) {
+                if (stack.contains(i) && !coldKeys.contains(i)) {
+                    hot++;
+                }
+            }
+            // without putCold, the repeated scan makes its own entries hot
+            if (cold) {
+                assertTrue("hot: " + hot, hot >= 8);
+            } else {
+                assertTrue("hot: " + hot, hot < 8);
+            }
+        }
+        // entries that were added cold become hot if used again
+        CacheLongKeyLIRS<Integer> test = createCache(10);
+        for (int i = 0; i < 10; i++) {
+            test.put(i, i * 10);
+        }
+        test.putCold(100, 1000, 1);
+        assertTrue(test.keys(true, false).contains(100L));
+        assertFalse(test.keys(false, false).contains(100L));
+        test.get(100);
+        test.get(100);
+        assertFalse(test.keys(true, false).contains(100L));
+        assertTrue(test.keys(false, false).contains(100L));
+        verify(test, null);
+        // if the cache is not full, entries are added as usual
+        test = createCache(10);
+        test.putCold(1, 10, 1);
+        assertEquals(1, test.sizeHot());
+        verify(test, null);
+        // mixed operations
+        Random r = new Random(1);
+        test = createCache(10);
+        for (int i = 0; i < 10000; i++) {
+            int key = r.nextInt(30);
+            int memory = r.nextInt(3) + 1;
+            switch (r.nextInt(4)) {
+                case 0:
+                    test.put(key, i, memory);
+                    break;
+                case 1:
+                    test.putCold(key, i, memory);
+                    break;
+                case 2:
+                    test.remove(key);
+                    break;
+                default:
+                    test.get(key);
+            }
+            verify(test, null);
+        }
+    }
+
     private void testRandomOperations() {
         boolean log = false;
         int size = 10;
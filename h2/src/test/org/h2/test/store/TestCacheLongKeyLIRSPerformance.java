@@ -0,0 +1,90 @@
+/*
+ * Copyright 2004-2019 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.mvstore.cache.CacheLongKeyLIRS;
+import org.h2.test.TestBase;
+import org.h2.util.Task;
+
+/**
+ * Compares the throughput of CacheLongKeyLIRS.get with and without the read
+ * buffer, for a number of threads. Most reads are for a few hot keys, as
+ * for the root pages of an index.
+ */
+public class TestCacheLongKeyLIRSPerformance extends TestBase {
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase test = TestBase.createCaller().init();
+        test.test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        for (int threadCount = 1; threadCount <= 64; threadCount *= 4) {
+            testGet(threadCount, 0);
+            testGet(threadCount, 32);
+        }
+    }
+
+    private static void testGet(int threadCount, int readBufferSize) throws Exception {
+        CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
+        cc.maxMemory = 10000;
+        cc.readBufferSize = readBufferSize;
+        final CacheLongKeyLIRS<Integer> cache = new CacheLongKeyLIRS<>(cc);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        final int[] keys = new int[4096];
+        Random random = new Random(1);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (int) Math.min(9999, Math.abs(random.nextGaussian() * 100));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicLong counter = new AtomicLong();
+        Task[] tasks = new Task[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int x = i;
+            tasks[i] = new Task() {
+
+                @Override
+                public void call() throws Exception {
+                    start.await();
+                    int i = x * 997;
+                    long count = 0;
+                    while (!stopped.get()) {
+                        for (int j = 0; j < 1024; j++) {
+                            cache.get(keys[i++ & (keys.length - 1)]);
+                        }
+                        count += 1024;
+                    }
+                    counter.addAndGet(count);
+                }
+
+            };
+            tasks[i].execute();
+        }
+        start.countDown();
+        Thread.sleep(2000);
+        stopped.set(true);
+        for (Task t : tasks) {
+            t.get();
+        }
+        System.out.println(counter.get() / 2000 + " ops/ms; " +
+                threadCount + " thread(s); read buffer " + readBufferSize);
+    }
+
+}
@@ -9,6 +9,7 @@ import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.h2.mvstore.FreeSpaceBitSet;
+import org.h2.mvstore.FreeSpaceExtents;
 import org.h2.test.TestBase;
 import org.h2.util.Utils;
 
@@ -26,12 +27,14 @@ public class TestFreeSpace extends TestBase {
         TestBase.createCaller().init().test();
         testMemoryUsage();
         testPerformance();
+        testFragmentedPerformance();
     }
 
     @Override
     public void test() throws Exception {
         testSimple();
         testRandomized();
+        testExtentsRandomized();
     }
 
     private static void testPerformance() {
@@ -60,6 +63,66 @@ public class TestFreeSpace extends TestBase {
         }
     }
 
+    private static void testFragmentedPerformance() {
+        // a 64 GB file with 4 KB blocks, where about half of the chunks
+        // were freed
+        int chunks = 200000;
+        int[] chunkBlocks = new int[chunks];
+        Random r = new Random(1);
+        for (int i = 0; i < chunks; i++) {
+            chunkBlocks[i] = 1 + r.nextInt(160);
+        }
+        for (int i = 0; i < 3; i++) {
+            long t = System.nanoTime();
+            FreeSpaceBitSet f = new FreeSpaceBitSet(2, 4096);
+            long pos = 2 * 4096;
+            for (int j = 0; j < chunks; j++) {
+                f.markUsed(pos, chunkBlocks[j] * 4096);
+                pos += chunkBlocks[j] * 4096L;
+            }
+            pos = 2 * 4096;
+            for (int j = 0; j < chunks; j++) {
+                if (j % 2 == 0) {
+                    f.free(pos, chunkBlocks[j] * 4096);
+                }
+                pos += chunkBlocks[j] * 4096L;
+            }
+            long t2 = System.nanoTime();
+            long fill = 0;
+            for (int j = 0; j < 10000; j++) {
+                f.allocate(4096 * (1 + r.nextInt(80)));
+                fill += f.getFillRate();
+            }
+            System.out.println("FreeSpaceBitSet: setup " +
+                    TimeUnit.NANOSECONDS.toMillis(t2 - t) + " ms, allocate " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t2) + " ms " + fill);
+
+            t = System.nanoTime();
+            FreeSpaceExtents f2 = new FreeSpaceExtents(2, 4096);
+            pos = 2 * 4096;
+            for (int j = 0; j < chunks; j++) {
+                f2.markUsed(pos, chunkBlocks[j] * 4096);
+                pos += chunkBlocks[j] * 4096L;
+            }
+            pos = 2 * 4096;
+            for (int j = 0; j < chunks; j++) {
+                if (j % 2 == 0) {
+                    f2.free(pos, chunkBlocks[j] * 4096);
+                }
+                pos += chunkBlocks[j] * 4096L;
+            }
+            t2 = System.nanoTime();
+            fill = 0;
+            for (int j = 0; j < 10000; j++) {
+                f2.allocate(4096 * (1 + r.nextInt(80)));
+                fill += f2.getFillRate();
+            }
+            System.out.println("FreeSpaceExtents: setup " +
+                    TimeUnit.NANOSECONDS.toMillis(t2 - t) + " ms, allocate " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t2) + " ms " + fill);
+        }
+    }
+
     private static void testMemoryUsage() {
 
         // 16 GB file size
@@ -93,18 +156,24 @@ public class TestFreeSpace extends TestBase {
         FreeSpaceBitSet f1 = new FreeSpaceBitSet(2, 1024);
         FreeSpaceList f2 = new FreeSpaceList(2, 1024);
         FreeSpaceTree f3 = new FreeSpaceTree(2, 1024);
+        FreeSpaceExtents f4 = new FreeSpaceExtents(2, 1024);
         assertEquals(f1.toString(), f2.toString());
         assertEquals(f1.toString(), f3.toString());
+        assertEquals(f1.toString(), f4.toString());
         assertEquals(2 * 1024, f1.allocate(10240));
         assertEquals(2 * 1024, f2.allocate(10240));
         assertEquals(2 * 1024, f3.allocate(10240));
+        assertEquals(2 * 1024, f4.allocate(10240));
         assertEquals(f1.toString(), f2.toString());
         assertEquals(f1.toString(), f3.toString());
+        assertEquals(f1.toString(), f4.toString());
         f1.markUsed(20480, 1024);
         f2.markUsed(20480, 1024);
         f3.markUsed(20480, 1024);
+        f4.markUsed(20480, 1024);
         assertEquals(f1.toString(), f2.toString());
         assertEquals(f1.toString(), f3.toString());
+        assertEquals(f1.toString(), f4.toString());
     }
 
     private void testRandomized() {
@@ -142,4 +211,68 @@ public class TestFreeSpace extends TestBase {
         }
     }
 
+    private void testExtentsRandomized() {
+        FreeSpaceBitSet f1 = new FreeSpaceBitSet(2, 8);
+        FreeSpaceExtents f2 = new FreeSpaceExtents(2, 8);
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            long pos = r.nextInt(1024);
+            int length = 1 + r.nextInt(8 * 32);
+            switch (r.nextInt(3)) {
+            case 0: {
+                long expected = getBestFit(f1, length);
+                long p = f2.allocate(length);
+                assertEquals(expected, p);
+                assertTrue(f1.isFree(p, length));
+                f1.markUsed(p, length);
+                break;
+            }
+            case 1:
+                assertEquals(f1.isUsed(pos, length), f2.isUsed(pos, length));
+                if (f1.isUsed(pos, length)) {
+                    f1.free(pos, length);
+                    f2.free(pos, length);
+                }
+                break;
+            case 2:
+                assertEquals(f1.isFree(pos, length), f2.isFree(pos, length));
+                if (f1.isFree(pos, length)) {
+                    f1.markUsed(pos, length);
+                    f2.markUsed(pos, length);
+                }
+                break;
+            }
+            assertEquals(f1.toString(), f2.toString());
+            assertEquals(f1.getFillRate(), f2.getFillRate());
+            assertEquals(f1.getFirstFree(), f2.getFirstFree());
+            assertEquals(f1.getLastFree(), f2.getLastFree());
+        }
+    }
+
+    /**
+     * Find the start of the smallest free range (with the lowest position)
+     * that is large enough, or the end of the used space.
+     */
+    private static long getBestFit(FreeSpaceBitSet f, int length) {
+        int blocks = (length + 7) / 8;
+        long end = f.getLastFree() / 8;
+        long best = end, bestBlocks = Long.MAX_VALUE;
+        for (long start = 0; start < end;) {
+            if (!f.isFree(start * 8, 8)) {
+                start++;
+                continue;
+            }
+            long next = start + 1;
+            while (next < end && f.isFree(next * 8, 8)) {
+                next++;
+            }
+            if (next - start >= blocks && next - start < bestBlocks) {
+                best = start;
+                bestBlocks = next - start;
+            }
+            start = next;
+        }
+        return best * 8;
+    }
+
 }
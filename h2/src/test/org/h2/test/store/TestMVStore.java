@@ -5,26 +5,37 @@
  */
 package org.h2.test.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import org.h2.compress.Compressor;
 import org.h2.mvstore.Chunk;
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.FileStore;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreTool;
 import org.h2.mvstore.OffHeapStore;
+import org.h2.mvstore.Page;
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.mvstore.type.StringDataType;
@@ -32,6 +43,7 @@ import org.h2.store.fs.FilePath;
 import org.h2.store.fs.FileUtils;
 import org.h2.test.TestBase;
 import org.h2.test.utils.AssertThrows;
+import org.h2.util.Task;
 
 /**
  * Tests the MVStore.
@@ -58,6 +70,19 @@ public class TestMVStore extends TestBase {
         testEntrySet();
         testCompressEmptyPage();
         testCompressed();
+        testCompressionPerMap();
+        testParallelPageWrite();
+        testMappedReads();
+        testReadAhead();
+        testOffHeapCache();
+        testScanCursor();
+        testConcurrentPageLoad();
+        testIncrementalBackup();
+        testBulkLoad();
+        testFillFactor();
+        testOperateBatch();
+        testChunkIndex();
+        testRecoveryThreads();
         testFileFormatExample();
         testMaxChunkLength();
         testCacheInfo();
@@ -69,6 +94,7 @@ public class TestMVStore extends TestBase {
         testOffHeapStorage();
         testNewerWriteVersion();
         testCompactFully();
+        testCompactBudget();
         testBackgroundExceptionListener();
         testOldVersion();
         testAtomicOperations();
@@ -256,6 +282,800 @@ public class TestMVStore extends TestBase {
         }
     }
 
+    private void testCompressionPerMap() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        int[] algorithms = { Compressor.NO, Compressor.LZF, Compressor.DEFLATE, Compressor.LZ4 };
+        String data = new String(new char[1000]).replace((char) 0, 'x');
+        long uncompressedSize = 0;
+        for (int algorithm : algorithms) {
+            FileUtils.delete(fileName);
+            MVStore s = new MVStore.Builder().fileName(fileName).open();
+            MVMap<String, String> map = s.openMap("data");
+            map.setCompression(algorithm);
+            assertEquals(algorithm, map.getCompression());
+            for (int i = 0; i < 400; i++) {
+                map.put(data + i, data);
+            }
+            s.close();
+            // older versions can not read LZ4 pages
+            s = new MVStore.Builder().fileName(fileName).readOnly().open();
+            assertEquals(algorithm == Compressor.LZ4 ? "2" : "1",
+                    s.getStoreHeader().get("format").toString());
+            assertEquals(algorithm == Compressor.LZ4 ? "2" : null,
+                    (String) s.getStoreHeader().get("formatRead"));
+            s.close();
+            long size = FileUtils.size(fileName);
+            if (algorithm == Compressor.NO) {
+                uncompressedSize = size;
+            } else {
+                assertTrue(size < uncompressedSize);
+            }
+        }
+
+        // maps with different algorithms in the same store and chunks,
+        // written in parallel; the setting is not persisted
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().fileName(fileName).
+                compress().pageWriteThreads(2).open();
+        for (int algorithm : algorithms) {
+            MVMap<Integer, String> map = s.openMap("data" + algorithm);
+            assertEquals(-1, map.getCompression());
+            map.setCompression(algorithm);
+            for (int i = 0; i < 1000; i++) {
+                map.put(i, data + i);
+            }
+        }
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        for (int algorithm : algorithms) {
+            MVMap<Integer, String> map = s.openMap("data" + algorithm);
+            assertEquals(-1, map.getCompression());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(data + i, map.get(i));
+            }
+        }
+        final MVMap<Integer, String> map = s.openMap("data0");
+        new AssertThrows(IllegalArgumentException.class) {
+            @Override
+            public void test() {
+                map.setCompression(100);
+            }
+        };
+        s.close();
+    }
+
+    private void testParallelPageWrite() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        for (int level = 0; level <= 2; level++) {
+            long expectedSize = 0;
+            for (int threads = 1; threads <= 4; threads += 3) {
+                FileUtils.delete(fileName);
+                MVStore.Builder builder = new MVStore.Builder().
+                        fileName(fileName).
+                        autoCommitDisabled().
+                        pageWriteThreads(threads);
+                if (level == 1) {
+                    builder.compress();
+                } else if (level == 2) {
+                    builder.compressHigh();
+                }
+                MVStore s = builder.open();
+                for (int m = 0; m < 3; m++) {
+                    MVMap<Integer, String> map = s.openMap("data" + m);
+                    for (int i = 0; i < 2000; i++) {
+                        map.put(i, "Hello " + m + " " + i);
+                    }
+                }
+                s.commit();
+                MVMap<Integer, String> map = s.openMap("data1");
+                for (int i = 0; i < 2000; i += 10) {
+                    map.put(i, "World " + i);
+                }
+                s.close();
+                long size = FileUtils.size(fileName);
+                if (threads == 1) {
+                    expectedSize = size;
+                } else {
+                    // the chunk layout does not depend on the number of threads
+                    assertEquals(expectedSize, size);
+                }
+                s = new MVStore.Builder().fileName(fileName).open();
+                for (int m = 0; m < 3; m++) {
+                    map = s.openMap("data" + m);
+                    assertEquals(2000, map.size());
+                    for (int i = 0; i < 2000; i++) {
+                        String expected = m == 1 && i % 10 == 0 ?
+                                "World " + i : "Hello " + m + " " + i;
+                        assertEquals(expected, map.get(i));
+                    }
+                }
+                s.close();
+            }
+        }
+    }
+
+    private void testMappedReads() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        for (int encrypted = 0; encrypted <= 1; encrypted++) {
+            FileUtils.delete(fileName);
+            MVStore.Builder builder = new MVStore.Builder().
+                    fileName(fileName).
+                    autoCommitDisabled().
+                    cacheSize(0).
+                    mappedReads();
+            if (encrypted == 1) {
+                builder.encryptionKey("secret".toCharArray());
+            }
+            MVStore s = builder.open();
+            MVMap<Integer, String> map = s.openMap("data");
+            for (int i = 0; i < 1000; i++) {
+                map.put(i, "Hello " + i);
+            }
+            s.commit();
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("Hello " + i, map.get(i));
+            }
+            // the file grows: the mapped region needs to be extended
+            for (int i = 1000; i < 2000; i++) {
+                map.put(i, "Hello " + i);
+            }
+            s.commit();
+            for (int i = 0; i < 2000; i++) {
+                assertEquals("Hello " + i, map.get(i));
+            }
+            // encrypted files can not be mapped
+            assertEquals(encrypted == 0, s.getFileStore().isMappedReads());
+            // the file shrinks
+            for (int i = 500; i < 2000; i++) {
+                map.remove(i);
+            }
+            s.commit();
+            s.compactMoveChunks();
+            for (int i = 0; i < 500; i++) {
+                assertEquals("Hello " + i, map.get(i));
+            }
+            for (int i = 500; i < 1000; i++) {
+                map.put(i, "World " + i);
+            }
+            s.close();
+            if (encrypted == 1) {
+                // the key is cleared when opening
+                builder.encryptionKey("secret".toCharArray());
+            }
+            s = builder.open();
+            map = s.openMap("data");
+            assertEquals(1000, map.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals((i < 500 ? "Hello " : "World ") + i, map.get(i));
+            }
+            s.close();
+        }
+    }
+
+    private void testReadAhead() throws InterruptedException {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                pageSplitSize(512).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 2000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                readAheadPages(16).
+                open();
+        assertEquals(16, s.getReadAheadPages());
+        map = s.openMap("data");
+        int i = 0;
+        for (Cursor<Integer, String> c = map.cursor(null); c.hasNext(); i++) {
+            assertEquals(i, c.next().intValue());
+            assertEquals("Hello " + i, c.getValue());
+            if (i % 10 == 0) {
+                // give the read-ahead thread time, as otherwise the cursor
+                // may read all pages itself
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(2000, i);
+        long count = s.getReadAheadCount();
+        assertTrue(count > 0);
+        assertTrue(s.getReadAheadHitCount() > 0);
+        assertTrue(s.getReadAheadHitCount() + s.getReadAheadWasteCount() <= count);
+        // neighbor pages are read using one operation
+        assertTrue(s.getReadAheadReadCount() < count);
+        s.close();
+    }
+
+    private void testOffHeapCache() {
+        CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(4 * 1024, 1);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 10; i++) {
+            Arrays.fill(data, (byte) i);
+            cache.put(i, ByteBuffer.wrap(data));
+        }
+        // only the last 4 entries fit
+        assertEquals(4, cache.size());
+        assertEquals(4000, cache.getUsedMemory());
+        assertEquals(6, cache.getEvictions());
+        assertNull(cache.get(5));
+        Arrays.fill(data, (byte) 7);
+        assertEquals(data, cache.get(7));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // too large
+        cache.put(20, ByteBuffer.wrap(new byte[2000]));
+        assertNull(cache.get(20));
+
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                compress().
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 20000; i++) {
+            map.put(i, "Hello World " + i);
+        }
+        s.close();
+        s = new MVStore.Builder().
+                fileName(fileName).
+                cacheSize(0).
+                offHeapCacheSize(4).
+                open();
+        assertNull(s.getCache());
+        CacheLongKeyOffHeap offHeap = s.getOffHeapCache();
+        assertEquals(4 * 1024 * 1024, offHeap.getMaxMemory());
+        map = s.openMap("data");
+        for (int i = 0; i < 20000; i++) {
+            assertEquals("Hello World " + i, map.get(i));
+        }
+        long reads = s.getFileStore().getReadCount();
+        long hits = offHeap.getHits();
+        for (int i = 0; i < 20000; i++) {
+            assertEquals("Hello World " + i, map.get(i));
+        }
+        // all pages are decoded from the second level cache
+        assertEquals(reads, s.getFileStore().getReadCount());
+        assertTrue(offHeap.getHits() > hits);
+        s.close();
+    }
+
+    private void testScanCursor() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        // small pages, so that the lookups fit in the cache
+        MVMap<Integer, String> map = s.openMap("data",
+                new MVMap.Builder<Integer, String>().fillFactor(50));
+        String prefix = new String(new char[200]).replace((char) 0, 'x');
+        for (int i = 0; i < 50000; i++) {
+            map.put(i, prefix + i);
+        }
+        s.close();
+        long[] lookupReads = new long[2];
+        for (int j = 0; j < 2; j++) {
+            boolean scan = j == 1;
+            s = new MVStore.Builder().
+                    fileName(fileName).
+                    cacheSize(1).
+                    open();
+            map = s.openMap("data");
+            for (int k = 0; k < 3; k++) {
+                for (int i = 0; i < 50000; i += 2500) {
+                    assertEquals(prefix + i, map.get(i));
+                }
+            }
+            // the same scan, twice
+            for (int k = 0; k < 2; k++) {
+                Cursor<Integer, String> c = map.cursor(null, null, scan);
+                int count = 0;
+                while (c.hasNext()) {
+                    assertEquals(count++, c.next().intValue());
+                }
+                assertEquals(50000, count);
+            }
+            if (scan) {
+                assertTrue(s.getCache().getUsedMemory() <= s.getCache().getMaxMemory());
+            }
+            long reads = s.getFileStore().getReadCount();
+            for (int i = 0; i < 50000; i += 2500) {
+                assertEquals(prefix + i, map.get(i));
+            }
+            lookupReads[j] = s.getFileStore().getReadCount() - reads;
+            s.close();
+        }
+        // most pages used by the lookups are still cached after a scan
+        assertTrue(lookupReads[1] <= 2);
+        assertTrue(lookupReads[1] < lookupReads[0]);
+    }
+
+    private void testConcurrentPageLoad() throws Exception {
+        final AtomicInteger slowReads = new AtomicInteger(-1);
+        OffHeapStore offHeap = new OffHeapStore() {
+            @Override
+            public ByteBuffer readFully(long pos, int len) {
+                if (slowReads.get() >= 0) {
+                    slowReads.incrementAndGet();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                return super.readFully(pos, len);
+            }
+        };
+        MVStore s = new MVStore.Builder().
+                fileStore(offHeap).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.close();
+        s = new MVStore.Builder().
+                fileStore(offHeap).
+                open();
+        final MVMap<Integer, String> m = s.openMap("data");
+        slowReads.set(0);
+        int threadCount = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        Task[] tasks = new Task[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    start.await();
+                    assertEquals("Hello 500", m.get(500));
+                }
+            };
+            tasks[i].execute();
+        }
+        start.countDown();
+        for (Task t : tasks) {
+            t.get();
+        }
+        // each page on the path to the key was read once
+        assertTrue(slowReads.get() < threadCount);
+        assertTrue(s.getPageLoadWaitCount() > 0);
+        s.close();
+    }
+
+    private void testIncrementalBackup() throws Exception {
+        String fileName = getBaseDir() + "/" + getTestName();
+        String restoreName = fileName + ".restore";
+        FileUtils.delete(fileName);
+        FileUtils.delete(restoreName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                open();
+        s.setRetentionTime(0);
+        final MVMap<Integer, String> map = s.openMap("data");
+        MVMap<Integer, byte[]> temp = s.openMap("temp");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i + new String(new char[100]));
+            if (i == 500) {
+                s.commit();
+                for (int j = 0; j < 100; j++) {
+                    temp.put(j, new byte[1000]);
+                }
+                s.commit();
+            }
+        }
+        s.commit();
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        long v1 = s.backup(full, -1);
+        // change a few entries, and move the chunks into the free space
+        temp.clear();
+        for (int i = 0; i < 10; i++) {
+            map.put(i, "Hi " + i);
+        }
+        s.commit();
+        // the next store frees the chunk with the removed entries
+        map.put(-1, "");
+        s.commit();
+        map.remove(-1);
+        s.compactMoveChunks();
+        ByteArrayOutputStream inc1 = new ByteArrayOutputStream();
+        long v2 = s.backup(inc1, v1);
+        assertTrue(v2 > v1);
+        assertTrue(inc1.size() < full.size());
+        // backup while the store is changed concurrently
+        final MVStore store = s;
+        Task task = new Task() {
+            @Override
+            public void call() {
+                for (int i = 1000; !stop; i++) {
+                    map.put(i, "Hello " + i);
+                    store.commit();
+                }
+            }
+        };
+        task.execute();
+        Thread.sleep(10);
+        ByteArrayOutputStream inc2 = new ByteArrayOutputStream();
+        assertTrue(s.backup(inc2, v2) > v2);
+        task.get();
+        s.close();
+
+        MVStoreTool.restore(restoreName, new ByteArrayInputStream(full.toByteArray()));
+        s = MVStore.open(restoreName);
+        MVMap<Integer, String> m = s.openMap("data");
+        assertEquals(1000, m.size());
+        assertEquals("Hello 0" + new String(new char[100]), m.get(0));
+        s.close();
+        MVStoreTool.restore(restoreName,
+                new ByteArrayInputStream(inc1.toByteArray()),
+                new ByteArrayInputStream(inc2.toByteArray()));
+        s = MVStore.open(restoreName);
+        m = s.openMap("data");
+        // the entries that were added until the backup started
+        assertTrue(m.size() >= 1000);
+        assertEquals(m.size() - 1, m.lastKey().intValue());
+        assertEquals("Hi 0", m.get(0));
+        assertEquals("Hello 999" + new String(new char[100]), m.get(999));
+        s.close();
+
+        // an incremental backup can only be applied to its base version
+        try {
+            MVStoreTool.restore(restoreName, new ByteArrayInputStream(inc1.toByteArray()));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_FILE_CORRUPT, DataUtils.getErrorCode(e.getMessage()));
+        }
+        FileUtils.delete(fileName);
+        FileUtils.delete(restoreName);
+    }
+
+    private void testBulkLoad() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        TreeMap<Integer, String> data = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            data.put(i * 2, "Hello " + i);
+        }
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitBufferSize(1).
+                open();
+        MVMap<Integer, String> map = s.openMap("bulk");
+        assertEquals(data.size(), map.bulkLoad(data.entrySet().iterator(), 100));
+        MVMap<Integer, String> half = s.openMap("half");
+        half.bulkLoad(data.entrySet().iterator(), 50);
+        MVMap<Integer, String> put = s.openMap("put",
+                new MVMap.Builder<Integer, String>().fillFactor(50));
+        for (Entry<Integer, String> e : data.entrySet()) {
+            put.put(e.getKey(), e.getValue());
+        }
+        // the pages are full, or half full
+        int bulkPages = getPageCount(map.getRootPage());
+        int halfPages = getPageCount(half.getRootPage());
+        int putPages = getPageCount(put.getRootPage());
+        assertTrue(bulkPages + " " + putPages, bulkPages < putPages * 3 / 4);
+        assertTrue(halfPages + " " + bulkPages, halfPages > bulkPages * 3 / 2);
+        // the map can be changed afterwards
+        map.put(1, "Hi");
+        map.remove(0);
+        data.put(1, "Hi");
+        data.remove(0);
+        s.close();
+
+        s = MVStore.open(fileName);
+        map = s.openMap("bulk");
+        assertEquals(data.size(), map.size());
+        Iterator<Integer> it = map.keyIterator(null);
+        for (Entry<Integer, String> e : data.entrySet()) {
+            assertEquals(e.getKey(), it.next());
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertFalse(it.hasNext());
+        assertEquals(20000, s.<Integer, String>openMap("half").size());
+        assertEquals("Hello 100", s.<Integer, String>openMap("half").get(200));
+
+        // only for empty maps, and sorted keys
+        final MVMap<Integer, String> m = map;
+        new AssertThrows(UnsupportedOperationException.class) {
+            @Override
+            public void test() {
+                m.bulkLoad(new TreeMap<Integer, String>().entrySet().iterator(), 100);
+            }
+        };
+        final MVMap<Integer, String> empty = s.openMap("empty");
+        final TreeMap<Integer, String> unsorted = new TreeMap<>(Collections.reverseOrder());
+        unsorted.put(1, "a");
+        unsorted.put(2, "b");
+        new AssertThrows(IllegalArgumentException.class) {
+            @Override
+            public void test() {
+                empty.bulkLoad(unsorted.entrySet().iterator(), 100);
+            }
+        };
+        assertEquals(0, empty.bulkLoad(new TreeMap<Integer, String>().entrySet().iterator(), 100));
+        assertEquals(0, empty.size());
+        s.close();
+
+        // the pages that were only saved as part of the entries loaded so
+        // far are no longer live
+        FileUtils.delete(fileName);
+        s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitBufferSize(1).
+                open();
+        map = s.openMap("bulk");
+        map.bulkLoad(data.entrySet().iterator(), 100);
+        assertTrue(s.getCurrentVersion() > 2);
+        s.close();
+        s = MVStore.open(fileName);
+        map = s.openMap("bulk");
+        int livePages = 0;
+        for (String k : s.getMetaMap().keySet()) {
+            if (k.startsWith("chunk.")) {
+                Map<String, String> chunk = DataUtils.parseMap(s.getMetaMap().get(k));
+                livePages += DataUtils.readHexInt(chunk, "livePages", DataUtils.readHexInt(chunk, "pages", 0));
+            }
+        }
+        int pages = getPageCount(s.getMetaMap().getRootPage()) + getPageCount(map.getRootPage());
+        // the live page count of the metadata is not exact
+        assertTrue(livePages + " " + pages, Math.abs(livePages - pages) < pages / 20);
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testFillFactor() {
+        MVStore s = new MVStore.Builder().open();
+        MVMap<Integer, String> half = s.openMap("half",
+                new MVMap.Builder<Integer, String>().fillFactor(50));
+        MVMap<Integer, String> def = s.openMap("default");
+        assertEquals(MVMap.DEFAULT_FILL_FACTOR, def.getFillFactor());
+        MVMap<Integer, String> full = s.openMap("full");
+        full.setFillFactor(100);
+        for (int i = 0; i < 10000; i++) {
+            half.put(i, "Hello");
+            def.put(i, "Hello");
+            full.put(i, "Hello");
+        }
+        // batches of ascending keys build the same tree shape
+        MVMap<Integer, String> batch = s.openMap("batch");
+        for (int i = 0; i < 10000; i += 100) {
+            TreeMap<Integer, String> m = new TreeMap<>();
+            for (int j = i; j < i + 100; j++) {
+                m.put(j, "Hello");
+            }
+            batch.putAll(m);
+        }
+        int halfPages = getPageCount(half.getRootPage());
+        int defPages = getPageCount(def.getRootPage());
+        int fullPages = getPageCount(full.getRootPage());
+        int batchPages = getPageCount(batch.getRootPage());
+        assertTrue(halfPages + " " + defPages, defPages < halfPages * 6 / 10);
+        assertTrue(defPages + " " + fullPages, fullPages < defPages);
+        assertEquals(defPages, batchPages);
+        // inserting lower keys splits in the middle
+        for (int i = -1; i > -1000; i--) {
+            full.put(i, "Hello");
+        }
+        assertEquals(10999, full.size());
+        assertEquals(-999, full.firstKey().intValue());
+        assertEquals(9999, full.lastKey().intValue());
+        try {
+            full.setFillFactor(40);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        s.close();
+    }
+
+    private void testOperateBatch() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(200).
+                autoCommitDisabled().
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            // a mix of inserts, updates and removals, clustered or spread out
+            int range = r.nextBoolean() ? 100 : 5000;
+            int count = r.nextInt(i % 10 == 0 ? 1000 : 50);
+            TreeMap<Integer, String> changes = new TreeMap<>();
+            boolean remove = r.nextInt(3) == 0;
+            for (int j = 0; j < count; j++) {
+                int k = r.nextInt(range);
+                changes.put(k, remove ? null : "v" + i + "/" + k);
+            }
+            Integer[] keys = changes.keySet().toArray(new Integer[0]);
+            String[] values = changes.values().toArray(new String[0]);
+            List<String> old = map.operateBatch(keys, values, null);
+            assertEquals(keys.length, old.size());
+            for (int j = 0; j < keys.length; j++) {
+                assertEquals(expected.get(keys[j]), old.get(j));
+                if (values[j] == null) {
+                    expected.remove(keys[j]);
+                } else {
+                    expected.put(keys[j], values[j]);
+                }
+            }
+            assertEquals(expected.size(), map.size());
+            if (i % 20 == 0) {
+                s.commit();
+            }
+        }
+        assertEquals(expected.size(), map.sizeAsLong());
+        Iterator<Integer> it = map.keyIterator(null);
+        for (Entry<Integer, String> e : expected.entrySet()) {
+            assertEquals(e.getKey(), it.next());
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertFalse(it.hasNext());
+        if (!expected.isEmpty()) {
+            int key = expected.lastKey();
+            assertEquals(expected.headMap(key).size(), map.getKeyIndex(key));
+        }
+
+        // remove everything
+        map.operateBatch(expected.keySet().toArray(new Integer[0]), new String[expected.size()], null);
+        assertEquals(0, map.size());
+        assertNull(map.firstKey());
+        expected.clear();
+
+        // putAll sorts the entries
+        HashMap<Integer, String> m = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            m.put(r.nextInt(), "x" + i);
+        }
+        map.putAll(m);
+        expected.putAll(m);
+        s.commit();
+        s.close();
+
+        s = MVStore.open(fileName);
+        map = s.openMap("data");
+        assertEquals(expected, new TreeMap<>(map));
+        try {
+            map.operateBatch(new Integer[] { 2, 1 }, new String[2], null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            map.putAll(Collections.singletonMap(1, (String) null));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private static int getPageCount(Page p) {
+        int count = 1;
+        if (!p.isLeaf()) {
+            for (int i = 0; i < p.getRawChildPageCount(); i++) {
+                count += getPageCount(p.getChildPage(i));
+            }
+        }
+        return count;
+    }
+
+    private void testChunkIndex() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 300; i++) {
+            map.put(i, "Hello " + i);
+            s.commit();
+        }
+        s.close();
+        int chunkCount = 0;
+
+        // the chunks don't need to be read after a normal close
+        s = MVStore.open(fileName);
+        long reads = s.getFileStore().getReadCount();
+        for (String k : s.getMetaMap().keySet()) {
+            if (k.startsWith("chunk.")) {
+                chunkCount++;
+            }
+        }
+        assertTrue(chunkCount > 250);
+        assertTrue(reads + " reads, " + chunkCount + " chunks", reads < chunkCount / 2);
+        map = s.openMap("data");
+        assertEquals("Hello 10", map.get(10));
+        map.put(1000, "new");
+        s.commit();
+        s.closeImmediately();
+
+        // the chunk index is stale now
+        s = MVStore.open(fileName);
+        reads = s.getFileStore().getReadCount();
+        assertTrue(reads + " reads, " + chunkCount + " chunks", reads > chunkCount);
+        map = s.openMap("data");
+        assertEquals("new", map.get(1000));
+        assertEquals(301, map.size());
+        // if nothing is written, the file is not changed when closing
+        s.close();
+        s = MVStore.open(fileName);
+        reads = s.getFileStore().getReadCount();
+        assertTrue(reads + " reads, " + chunkCount + " chunks", reads > chunkCount);
+        map = s.openMap("data");
+        map.put(1001, "new");
+        s.close();
+
+        s = MVStore.open(fileName);
+        reads = s.getFileStore().getReadCount();
+        assertTrue(reads + " reads, " + chunkCount + " chunks", reads < chunkCount / 2);
+        map = s.openMap("data");
+        assertEquals("new", map.get(1000));
+        assertEquals(302, map.size());
+        s.close();
+    }
+
+    private void testRecoveryThreads() throws Exception {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 300; i++) {
+            map.put(i, "Hello " + i);
+            s.commit();
+        }
+        Map<String, String> chunk = DataUtils.parseMap(s.getMetaMap().get("chunk.96"));
+        s.closeImmediately();
+
+        for (int threads = 1; threads <= 4; threads *= 4) {
+            s = new MVStore.Builder().
+                    fileName(fileName).
+                    recoveryThreads(threads).
+                    open();
+            assertTrue(s.getFileStore().getReadCount() > 300);
+            map = s.openMap("data");
+            assertEquals(300, map.size());
+            assertEquals("Hello 299", map.get(299));
+            s.closeImmediately();
+        }
+
+        // corrupt a chunk in the middle: an older version is used
+        long end = (DataUtils.readHexLong(chunk, "block", 0) +
+                DataUtils.readHexInt(chunk, "len", 0)) * 4096;
+        FileChannel fc = FilePath.get(fileName).open("rw");
+        fc.write(ByteBuffer.allocate(256), end - 256);
+        fc.close();
+        int size = -1;
+        for (int threads = 1; threads <= 4; threads *= 4) {
+            s = new MVStore.Builder().
+                    fileName(fileName).
+                    recoveryThreads(threads).
+                    open();
+            map = s.openMap("data");
+            if (size < 0) {
+                size = map.size();
+                assertTrue("size " + size, size > 0 && size < 300);
+            }
+            assertEquals(size, map.size());
+            assertEquals("Hello " + (size - 1), map.get(size - 1));
+            s.closeImmediately();
+        }
+    }
+
     private void testFileFormatExample() {
         String fileName = getBaseDir() + "/" + getTestName();
         FileUtils.delete(fileName);
@@ -435,7 +1255,7 @@ public class TestMVStore extends TestBase {
         Map<String, Object> header = s.getStoreHeader();
         assertEquals("1", header.get("format").toString());
         header.put("formatRead", "1");
-        header.put("format", "2");
+        header.put("format", "3");
         forceWriteStoreHeader(s);
         MVMap<Integer, String> m = s.openMap("data");
         forceWriteStoreHeader(s);
@@ -499,6 +1319,62 @@ public class TestMVStore extends TestBase {
         assertTrue("old: " + sizeOld + " new: " + sizeNew, sizeNew < sizeOld);
     }
 
+    private void testCompactBudget() throws Exception {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                autoCompactFillRate(90).
+                compactBytesPerSecond(1024 * 1024).
+                open();
+        assertEquals(1024 * 1024, s.getCompactBytesPerSecond());
+        s.setRetentionTime(0);
+        MVMap<Integer, String> m = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            m.put(i, "Hello World " + i);
+        }
+        s.commit();
+        // leave most of the first chunk unused
+        for (int j = 0; j < 9; j++) {
+            for (int i = j * 100; i < j * 100 + 100; i++) {
+                m.put(i, "Hello " + i);
+            }
+            s.commit();
+        }
+        long debt = s.getCompactDebt();
+        assertTrue(debt > 0);
+        assertEquals(0, s.getCompactRunCount());
+        // start the background writer
+        s.setAutoCommitDelay(10);
+        for (int i = 0; i < 500 && s.getCompactRunCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(s.getCompactRunCount() > 0);
+        assertTrue(s.getCompactRewriteBytes() > 0);
+
+        // with a very low budget, compaction pauses after one run
+        s.setCompactBytesPerSecond(1);
+        for (int j = 0; j < 10; j++) {
+            for (int i = j * 100; i < j * 100 + 100; i++) {
+                m.put(i, "Hello " + j + " " + i);
+            }
+            s.commit();
+        }
+        Thread.sleep(100);
+        long count = s.getCompactRunCount();
+        Thread.sleep(300);
+        assertTrue(s.getCompactRunCount() - count <= 1);
+        s.close();
+
+        s = MVStore.open(fileName);
+        m = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Hello " + (i / 100) + " " + i, m.get(i));
+        }
+        s.close();
+    }
+
     private void testBackgroundExceptionListener() throws Exception {
         String fileName = getBaseDir() + "/" + getTestName();
         FileUtils.delete(fileName);
@@ -758,7 +1634,7 @@ public class TestMVStore extends TestBase {
         Map<String, Object> header = s.getStoreHeader();
         int format = Integer.parseInt(header.get("format").toString());
         assertEquals(1, format);
-        header.put("format", Integer.toString(format + 1));
+        header.put("format", Integer.toString(format + 2));
         forceWriteStoreHeader(s);
         s.close();
         try {
@@ -1001,7 +1877,9 @@ public class TestMVStore extends TestBase {
                 assertEquals(100, map.get(0).length);
                 map = s.openMap("test2");
                 assertFalse(map.containsKey(1));
-                s.close();
+                // storing would re-write both headers, as the chunk index
+                // in the header is no longer valid
+                s.closeImmediately();
             } else {
                 // both headers are corrupt
                 try {
@@ -1440,7 +2318,7 @@ public class TestMVStore extends TestBase {
         }
         assertEquals(1000, m.size());
         // memory calculations were adjusted, so as this out-of-the-thin-air number
-        assertEquals(93522, s.getUnsavedMemory());
+        assertEquals(90336, s.getUnsavedMemory());
         s.commit();
         assertEquals(2, s.getFileStore().getWriteCount());
         s.close();
@@ -18,14 +18,18 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.h2.api.ErrorCode;
+import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
 import org.h2.engine.Database;
 import org.h2.jdbc.JdbcConnection;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.db.ValueDataType;
 import org.h2.mvstore.tx.TransactionStore;
 import org.h2.store.fs.FileUtils;
 import org.h2.test.TestBase;
@@ -34,6 +38,12 @@ import org.h2.tools.Recover;
 import org.h2.tools.Restore;
 import org.h2.util.JdbcUtils;
 import org.h2.util.Task;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+import org.h2.value.ValueDouble;
+import org.h2.value.ValueInt;
+import org.h2.value.ValueString;
+import org.h2.value.ValueStringIgnoreCase;
 
 /**
  * Tests the MVStore in a database.
@@ -66,13 +76,20 @@ public class TestMVTableEngine extends TestDb {
         testManyTransactions();
         testAppendOnly();
         testLowRetentionTime();
+        testCompressedTables();
+        testCompactBackoff();
         testOldAndNew();
         testTemporaryTables();
         testUniqueIndex();
         testSecondaryIndex();
+        testCreateIndexBulkLoad();
+        testIndexFillFactor();
+        testDeleteRange();
+        testPrefixCompressedKeys();
         testGarbageCollectionForLOB();
         testSpatial();
         testCount();
+        testRangeCountAndOffset();
         testMinMaxWithNull();
         testTimeout();
         testExplainAnalyze();
@@ -347,6 +364,86 @@ public class TestMVTableEngine extends TestDb {
         conn.close();
     }
 
+    private void testCompactBackoff() throws Exception {
+        if (config.memory) {
+            return;
+        }
+        deleteDb(getTestName());
+        String dbName = getTestName() + ";COMPACT_BYTES_PER_SECOND=100000000;GROUP_COMMIT_DELAY=0";
+        Connection conn = getConnection(dbName);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, name varchar)");
+        Database db = (Database) ((JdbcConnection) conn).getSession().getDataHandler();
+        MVStore store = db.getStore().getMvStore();
+        // many small commits define the usual commit latency
+        PreparedStatement prep = conn.prepareStatement("insert into test values(?, 'Hello')");
+        for (int i = 0; i < 200; i++) {
+            prep.setInt(1, i);
+            prep.execute();
+        }
+        long backoff = store.getCompactBackoffCount();
+        // the commits of large transactions take much longer,
+        // so that background compaction is postponed
+        conn.setAutoCommit(false);
+        for (int i = 0; i < 20 && store.getCompactBackoffCount() == backoff; i++) {
+            stat.execute("insert into test select x, space(1000) || x from system_range(" +
+                    (1000 + i * 5000) + ", " + (5999 + i * 5000) + ")");
+            conn.commit();
+            for (int j = 0; j < 100 && store.getCompactBackoffCount() == backoff; j++) {
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(store.getCompactBackoffCount() > backoff);
+        conn.close();
+    }
+
+    private void testCompressedTables() throws SQLException {
+        if (config.memory) {
+            return;
+        }
+        deleteDb(getTestName());
+        String dbName = getTestName() + ";COMPRESS=TRUE";
+        Connection conn = getConnection(dbName);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, name varchar(10000))");
+        stat.execute("create index idx_name on test(name)");
+        stat.execute("create table small(id int primary key, name varchar(20))");
+        stat.execute("insert into test select x, 'Hello ' || space(1000) || x " +
+                "from system_range(1, 1000)");
+        stat.execute("insert into small select x, 'Hello ' || x from system_range(1, 1000)");
+        Database db = (Database) ((JdbcConnection) conn).getSession().getDataHandler();
+        MVStore store = db.getStore().getMvStore();
+        int large = 0, small = 0, index = 0;
+        for (String mapName : store.getMapNames()) {
+            MVMap<Object, Object> map = store.openMap(mapName);
+            if (mapName.startsWith("index.")) {
+                assertEquals(Compressor.NO, map.getCompression());
+                index++;
+            } else if (map.getCompression() == Compressor.DEFLATE) {
+                large++;
+            } else if (mapName.startsWith("table.")) {
+                assertEquals(-1, map.getCompression());
+                small++;
+            }
+        }
+        assertTrue(large > 0);
+        assertTrue(small > 0);
+        assertTrue(index > 0);
+        conn.close();
+        conn = getConnection(dbName);
+        stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("select count(*), sum(length(name)) from test");
+        rs.next();
+        assertEquals(1000, rs.getInt(1));
+        rs = stat.executeQuery("select id from test where name = 'Hello ' || space(1000) || 500");
+        assertTrue(rs.next());
+        assertEquals(500, rs.getInt(1));
+        rs = stat.executeQuery("select count(*) from small");
+        rs.next();
+        assertEquals(1000, rs.getInt(1));
+        conn.close();
+    }
+
     private void testOldAndNew() throws SQLException {
         if (config.memory) {
             return;
@@ -421,6 +518,143 @@ public class TestMVTableEngine extends TestDb {
         conn.close();
     }
 
+    private void testIndexFillFactor() throws SQLException {
+        if (config.memory) {
+            return;
+        }
+        deleteDb(getTestName());
+        String url = getTestName() + ";MV_STORE=TRUE";
+        url = getURL(url, true);
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id identity, created timestamp)");
+        stat.execute("create index idx_created on test(created) with (fillfactor = 100)");
+        assertThrows(ErrorCode.INVALID_VALUE_2, stat).
+                execute("create index idx_id on test(id) with (fillfactor = 40)");
+        conn.close();
+
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("select id, sql from information_schema.indexes " +
+                "where index_name = 'IDX_CREATED'");
+        assertTrue(rs.next());
+        int id = rs.getInt(1);
+        assertTrue(rs.getString(2), rs.getString(2).endsWith(" WITH (FILLFACTOR = 100)"));
+        Database db = (Database) ((JdbcConnection) conn).getSession().getDataHandler();
+        MVStore store = db.getStore().getMvStore();
+        assertEquals(100, store.openMap("index." + id).getFillFactor());
+        stat.execute("insert into test(created) select dateadd('second', x, timestamp '2000-01-01') " +
+                "from system_range(1, 1000)");
+        rs = stat.executeQuery("select count(*) from test where created > timestamp '2000-01-01 00:10:00'");
+        assertTrue(rs.next());
+        assertEquals(400, rs.getInt(1));
+        conn.close();
+    }
+
+    private void testDeleteRange() throws SQLException {
+        deleteDb(getTestName());
+        String url = getTestName() + ";MV_STORE=TRUE";
+        url = getURL(url, true);
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id bigint primary key, name varchar)");
+        stat.execute("insert into test select x, 'n' || x from system_range(1, 10000)");
+        assertEquals(5001, stat.executeUpdate("delete from test where id between 2000 and 7000"));
+        assertEquals(1, stat.executeUpdate("delete from test where id = 1"));
+        assertEquals(0, stat.executeUpdate("delete from test where id = 1"));
+        assertEquals(0, stat.executeUpdate("delete from test where id > 9000 and id < 9001"));
+        assertEquals(999, stat.executeUpdate("delete from test where id > 9000 and id < 10000"));
+        ResultSet rs = stat.executeQuery("select count(*), min(id), max(id) from test");
+        assertTrue(rs.next());
+        assertEquals(3999, rs.getInt(1));
+        assertEquals(2, rs.getInt(2));
+        assertEquals(10000, rs.getInt(3));
+        PreparedStatement prep = conn.prepareStatement("delete from test where id >= ? and id <= ?");
+        prep.setInt(1, 7000);
+        prep.setInt(2, 8000);
+        assertEquals(1000, prep.executeUpdate());
+        prep.setNull(1, Types.INTEGER);
+        assertEquals(0, prep.executeUpdate());
+
+        conn.setAutoCommit(false);
+        assertEquals(2999, stat.executeUpdate("delete from test"));
+        rs = stat.executeQuery("select count(*) from test");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        conn.rollback();
+        rs = stat.executeQuery("select count(*) from test");
+        assertTrue(rs.next());
+        assertEquals(2999, rs.getInt(1));
+        conn.setAutoCommit(true);
+
+        // a table without primary key, and a table with a secondary index
+        stat.execute("create table test2(name varchar)");
+        stat.execute("insert into test2 select 'n' || x from system_range(1, 100)");
+        assertEquals(50, stat.executeUpdate("delete from test2 where _rowid_ <= 50"));
+        assertEquals(10, stat.executeUpdate("delete from test2 where name like 'n9%'"));
+        stat.execute("create index idx_name on test(name)");
+        assertEquals(1000, stat.executeUpdate("delete from test where id between 1000 and 2999"));
+        rs = stat.executeQuery("select count(*) from test where name = 'n2000'");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        conn.close();
+    }
+
+    private void testCreateIndexBulkLoad() throws SQLException {
+        deleteDb(getTestName());
+        String url = getTestName() + ";MV_STORE=TRUE;MAX_MEMORY_ROWS=200";
+        url = getURL(url, true);
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        // the index is built from multiple sorted buffers
+        stat.execute("create table test(id int primary key, name varchar, x int)");
+        stat.execute("insert into test select x, 'n' || mod(x * 7919, 5000), " +
+                "case when mod(x, 10) = 0 then null else mod(x, 3000) end " +
+                "from system_range(1, 5000)");
+        stat.execute("create unique index idx_name on test(name)");
+        stat.execute("create index idx_x on test(x)");
+        // the row count of the index is used by median
+        stat.execute("create table test_median(v int) as select x from system_range(1, 1001)");
+        stat.execute("create index idx_v on test_median(v)");
+        ResultSet rs = stat.executeQuery("select median(v) from test_median");
+        rs.next();
+        assertEquals(501, rs.getInt(1));
+        stat.execute("delete from test_median where v = 1");
+        rs = stat.executeQuery("select median(v) from test_median");
+        rs.next();
+        assertEquals(501.5, rs.getDouble(1));
+        rs = stat.executeQuery("select id from test where name = 'n4321'");
+        assertTrue(rs.next());
+        assertEquals(4321, rs.getInt(1) * 7919 % 5000);
+        assertFalse(rs.next());
+        rs = stat.executeQuery("select count(*) from test where x = 7");
+        rs.next();
+        assertEquals(2, rs.getInt(1));
+        rs = stat.executeQuery("select count(*), min(name), max(name) from test");
+        rs.next();
+        assertEquals(5000, rs.getInt(1));
+        assertEquals("n0", rs.getString(2));
+        assertEquals("n999", rs.getString(3));
+        // duplicates are detected, but null values are allowed
+        assertThrows(ErrorCode.DUPLICATE_KEY_1, stat).
+                execute("create unique index idx_x_unique on test(x)");
+        stat.execute("update test set x = id where x is not null");
+        stat.execute("create unique index idx_x_unique on test(x)");
+        stat.execute("insert into test values(5001, 'new', 5001)");
+        assertThrows(ErrorCode.DUPLICATE_KEY_1, stat).
+                execute("insert into test values(5002, 'new', 5002)");
+        conn.close();
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        rs = stat.executeQuery("select count(*) from test where name > 'n5'");
+        rs.next();
+        assertEquals(555, rs.getInt(1));
+        rs = stat.executeQuery("select id from test where x = 4001");
+        assertTrue(rs.next());
+        assertEquals(4001, rs.getInt(1));
+        conn.close();
+    }
+
     private void testSecondaryIndex() throws SQLException {
         Connection conn;
         Statement stat;
@@ -443,6 +677,78 @@ public class TestMVTableEngine extends TestDb {
         conn.close();
     }
 
+    private void testPrefixCompressedKeys() throws SQLException {
+        ValueDataType type = new ValueDataType();
+        int len = 100;
+        Object[] keys = new Object[len];
+        for (int i = 0; i < len; i++) {
+            keys[i] = ValueArray.get(new Value[] {
+                    ValueString.get("Team Blue"),
+                    ValueStringIgnoreCase.get(i % 2 == 0 ? "user" : "User"),
+                    ValueDouble.get(i < 50 ? 0.0 : -0.0),
+                    ValueInt.get(i) });
+        }
+        WriteBuffer buff = new WriteBuffer();
+        type.write(buff, keys, len, true);
+        int plainLength = buff.position();
+        buff.clear();
+        type.setPrefixKeys(true);
+        type.write(buff, keys, len, false);
+        assertEquals(plainLength, buff.position());
+        buff.clear();
+        type.write(buff, keys, len, true);
+        assertTrue(buff.position() < plainLength / 2);
+        Object[] read = new Object[len];
+        type.read(buff.getBuffer().flip(), read, len, true);
+        for (int i = 0; i < len; i++) {
+            Value[] expected = ((ValueArray) keys[i]).getList();
+            Value[] actual = ((ValueArray) read[i]).getList();
+            assertEquals(expected.length, actual.length);
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals(expected[j].getString(), actual[j].getString());
+            }
+            // the common prefix is shared
+            assertTrue(actual[0] == ((ValueArray) read[0]).getList()[0]);
+        }
+
+        deleteDb(getTestName());
+        String url = getTestName() + ";INDEX_KEY_PREFIXES=TRUE";
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, " +
+                "team varchar, day date, name varchar_ignorecase)");
+        stat.execute("create index idx on test(team, day, name)");
+        stat.execute("insert into test select x, 'Team ' || (x / 1000), " +
+                "dateadd('day', x / 100, date '2019-01-01'), " +
+                "case mod(x, 2) when 0 then 'user' else 'USER' end " +
+                "from system_range(1, 5000)");
+        conn.close();
+        if (!config.memory) {
+            // older versions refuse to open the file
+            MVStore s = new MVStore.Builder().readOnly().
+                    fileName(getBaseDir() + "/" + getTestName() + Constants.SUFFIX_MV_FILE).open();
+            assertEquals("2", s.getStoreHeader().get("formatRead").toString());
+            s.close();
+        }
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("select id, team, name from test " +
+                "where team = 'Team 2' order by team, day, name, id");
+        int count = 0;
+        while (rs.next()) {
+            int id = rs.getInt(1);
+            assertEquals("Team " + (id / 1000), rs.getString(2));
+            assertEquals(id % 2 == 0 ? "user" : "USER", rs.getString(3));
+            count++;
+        }
+        assertEquals(1000, count);
+        rs = stat.executeQuery("select count(*) from test " +
+                "where team = 'Team 3' and day = date '2019-02-05'");
+        rs.next();
+        assertEquals(100, rs.getInt(1));
+        conn.close();
+    }
+
     private void testGarbageCollectionForLOB() throws SQLException {
         if (config.memory) {
             return;
@@ -551,8 +857,9 @@ public class TestMVTableEngine extends TestDb {
         rs = stat2.executeQuery("explain analyze select count(*) from test");
         rs.next();
         plan = rs.getString(1);
-        // transaction log is larger than the table, so read the table
-        assertContains(plan, "reads:");
+        // the uncommitted changes are counted, so the table is not read
+        // even if the transaction log is larger than the table
+        assertTrue(plan, plan.indexOf("reads:") < 0);
         rs = stat2.executeQuery("select count(*) from test");
         rs.next();
         assertEquals(10000, rs.getInt(1));
@@ -561,6 +868,100 @@ public class TestMVTableEngine extends TestDb {
         conn.close();
     }
 
+    private void testRangeCountAndOffset() throws Exception {
+        deleteDb(getTestName());
+        String url = getURL(getTestName() + ";MV_STORE=TRUE", true);
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, v int not null, n int)");
+        stat.execute("create index idx_v on test(v)");
+        stat.execute("create index idx_n on test(n)");
+        stat.execute("insert into test select x, x / 10, case when mod(x, 7) = 0 " +
+                "then null else x end from system_range(1, 10000)");
+        Connection conn2 = getConnection(url);
+        conn2.setAutoCommit(false);
+        Statement stat2 = conn2.createStatement();
+
+        assertRangeCount(stat, "id between 100 and 199", 100, true);
+        assertRangeCount(stat, "v >= 10 and v <= 19", 100, true);
+        assertRangeCount(stat, "v = 5", 10, true);
+        assertRangeCount(stat, "id >= 9990", 11, true);
+        assertRangeCount(stat, "n between 1 and 70", 60, true);
+        // strict comparisons and NULL values at the end of the range
+        assertRangeCount(stat, "id > 100 and id < 200", 99, false);
+        assertRangeCount(stat, "n >= 9990", 10, false);
+        assertRangeOffset(stat, "where id >= 100 order by id limit 3 offset 500", "600, 601, 602", true);
+        assertRangeOffset(stat, "order by id limit 5 offset 9998", "9999, 10000", true);
+        assertRangeOffset(stat, "where id <= 100 order by id limit 5 offset 100", "", true);
+        assertRangeOffset(stat, "where v = 5 limit 2 offset 3", "53, 54", true);
+
+        // uncommitted changes of another transaction
+        stat2.execute("delete from test where id between 150 and 159");
+        stat2.execute("insert into test select 20000 + x, 15, null from system_range(1, 5)");
+        assertRangeCount(stat, "id between 100 and 199", 100, true);
+        assertRangeCount(stat, "v >= 10 and v <= 19", 100, true);
+        assertRangeOffset(stat, "where id >= 100 order by id limit 1 offset 50", "150", true);
+        assertRangeOffset(stat, "where v = 15 limit 2 offset 9", "159", true);
+        assertRangeCount(stat2, "id between 100 and 199", 90, true);
+        assertRangeCount(stat2, "v >= 10 and v <= 19", 95, true);
+        assertRangeOffset(stat2, "where id >= 100 order by id limit 1 offset 50", "160", true);
+        assertRangeOffset(stat2, "where v = 15 limit 2 offset 3", "20004, 20005", true);
+
+        PreparedStatement prep = conn.prepareStatement("select count(*) from test where id between ? and ?");
+        prep.setInt(1, 1);
+        prep.setInt(2, 1000);
+        ResultSet rs = prep.executeQuery();
+        rs.next();
+        assertEquals(1000, rs.getInt(1));
+        prep.setInt(1, 500);
+        prep.setInt(2, 100);
+        rs = prep.executeQuery();
+        rs.next();
+        assertEquals(0, rs.getInt(1));
+
+        conn2.close();
+        conn.close();
+    }
+
+    private void assertRangeCount(Statement stat, String condition, int expected, boolean positional)
+            throws SQLException {
+        ResultSet rs = stat.executeQuery("select count(*) from test where " + condition);
+        rs.next();
+        assertEquals(condition, expected, rs.getInt(1));
+        rs = stat.executeQuery("explain analyze select count(*) from test where " + condition);
+        rs.next();
+        String plan = rs.getString(1);
+        // the rows in the range are counted without reading them
+        assertTrue(plan, positional == (getScanCount(plan) == 0));
+    }
+
+    private void assertRangeOffset(Statement stat, String query, String expected, boolean positional)
+            throws SQLException {
+        ResultSet rs = stat.executeQuery("select id from test " + query);
+        StringBuilder buff = new StringBuilder();
+        while (rs.next()) {
+            if (buff.length() > 0) {
+                buff.append(", ");
+            }
+            buff.append(rs.getInt(1));
+        }
+        assertEquals(expected, buff.toString());
+        rs = stat.executeQuery("explain analyze select id from test " + query);
+        rs.next();
+        String plan = rs.getString(1);
+        // the rows before the offset are skipped without reading them
+        assertTrue(plan, positional == (getScanCount(plan) < 10));
+    }
+
+    private static int getScanCount(String plan) {
+        int idx = plan.indexOf("scanCount: ");
+        if (idx < 0) {
+            return 0;
+        }
+        idx += "scanCount: ".length();
+        return Integer.parseInt(plan.substring(idx, plan.indexOf(' ', idx)));
+    }
+
     private void testMinMaxWithNull() throws Exception {
         Connection conn;
         Connection conn2;
@@ -637,7 +1038,8 @@ public class TestMVTableEngine extends TestDb {
         String readCount = plan.substring(plan.indexOf("reads: "));
         readCount = readCount.substring("reads: ".length(), readCount.indexOf('\n'));
         int rc = Integer.parseInt(readCount);
-        assertTrue(plan, rc >= 60 && rc <= 80);
+        // the rows are appended, so the leaves are full
+        assertTrue(plan, rc >= 30 && rc <= 40);
 //        assertTrue(plan, rc >= 1000 && rc <= 1200);
         conn.close();
     }
@@ -11,10 +11,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.h2.mvstore.DataUtils;
@@ -28,6 +32,7 @@ import org.h2.mvstore.type.ObjectDataType;
 import org.h2.store.fs.FileUtils;
 import org.h2.test.TestBase;
 import org.h2.util.Task;
+import org.h2.value.VersionedValue;
 
 /**
  * Test concurrent transactions.
@@ -50,7 +55,19 @@ public class TestTransactionStore extends TestBase {
         testConcurrentAddRemove();
         testConcurrentAdd();
         testCountWithOpenTransactions();
+        testCountWithChanges();
+        testCountAfterReopen();
+        testCountAfterLoad();
+        testCountWithConcurrentChanges();
+        testUndoBuffer();
+        testDeferredCommit();
+        testPositionWithChanges();
+        testAppendIfAbsent();
+        testPutAll();
         testConcurrentUpdate();
+        testWaitQueue();
+        testWaitQueueDeadlock();
+        testWaitQueueDeadlockAfterHandOver();
         testRepeatedChange();
         testTransactionAge();
         testStopWhileCommitting();
@@ -62,6 +79,7 @@ public class TestTransactionStore extends TestBase {
         testSingleConnection();
         testCompareWithPostgreSQL();
         testStoreMultiThreadedReads();
+        testGroupCommit();
     }
 
     private void testHCLFKey() {
@@ -249,6 +267,615 @@ public class TestTransactionStore extends TestBase {
         s.close();
     }
 
+    private void testCountWithChanges() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction[] txs = new Transaction[3];
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        TransactionMap<Integer, Integer>[] maps = new TransactionMap[txs.length];
+        long[] savepoints = new long[txs.length];
+        Random r = new Random(1);
+        int appendKey = 1000;
+        for (int i = 0; i < 3000; i++) {
+            int x = r.nextInt(txs.length);
+            if (txs[x] == null) {
+                txs[x] = ts.begin();
+                maps[x] = txs[x].openMap("data");
+                savepoints[x] = txs[x].setSavepoint();
+            }
+            TransactionMap<Integer, Integer> map = maps[x];
+            int k = r.nextInt(100);
+            try {
+                switch (r.nextInt(12)) {
+                case 0:
+                    txs[x].commit();
+                    txs[x] = null;
+                    break;
+                case 1:
+                    txs[x].rollback();
+                    txs[x] = null;
+                    break;
+                case 2:
+                    txs[x].rollbackToSavepoint(savepoints[x]);
+                    checkCount(txs, maps, i);
+                    // other transactions would not wait for this one
+                    // after a partial rollback
+                    txs[x].commit();
+                    txs[x] = null;
+                    break;
+                case 3:
+                    savepoints[x] = txs[x].setSavepoint();
+                    break;
+                case 4:
+                    map.lock(k);
+                    break;
+                case 5:
+                    map.putIfAbsent(k, i);
+                    break;
+                case 6:
+                    map.removeAll(Arrays.asList(k, k + 1, k + 2));
+                    break;
+                case 7:
+                    map.putAll(Collections.singletonMap(k, i));
+                    break;
+                case 8:
+                    map.appendIfAbsent(appendKey++, i);
+                    break;
+                case 9:
+                    // a key that is not changed otherwise
+                    map.putCommitted(500 + k, i);
+                    break;
+                default:
+                    if (r.nextBoolean()) {
+                        map.remove(k);
+                    } else {
+                        map.put(k, i);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, DataUtils.getErrorCode(e.getMessage()));
+            }
+            checkCount(txs, maps, i);
+        }
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        map.clear();
+        assertEquals(0, map.sizeAsLong());
+        for (int j = 0; j < txs.length; j++) {
+            if (txs[j] != null) {
+                assertEquals(0, maps[j].sizeAsLong());
+            }
+        }
+        s.close();
+    }
+
+    private void testCountAfterReopen() {
+        String fileName = getBaseDir() + "/testCountAfterReopen.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        // the committed changes are applied before the store is committed
+        s.setAutoCommitDelay(0);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        tx.commit();
+        tx = ts.begin();
+        map = tx.openMap("data");
+        for (int i = 0; i < 10; i++) {
+            map.remove(i);
+        }
+        for (int i = 100; i < 130; i++) {
+            map.put(i, i);
+        }
+        assertEquals(120, map.sizeAsLong());
+        tx.prepare();
+        s.commit();
+        s.closeImmediately();
+
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, Integer> map2 = tx2.openMap("data");
+        // the changes of the restored transaction are not visible
+        assertEquals(100, map2.sizeAsLong());
+        map2.put(200, 200);
+        assertEquals(101, map2.sizeAsLong());
+        List<Transaction> open = ts.getOpenTransactions();
+        assertEquals(2, open.size());
+        tx = open.get(0) == tx2 ? open.get(1) : open.get(0);
+        assertEquals(Transaction.STATUS_PREPARED, tx.getStatus());
+        tx.commit();
+        assertEquals(121, map2.sizeAsLong());
+        tx2.commit();
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(121, map.sizeAsLong());
+        map.remove(100);
+        assertEquals(120, map.sizeAsLong());
+        tx.commit();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testCountAfterLoad() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        TreeMap<Integer, Integer> entries = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put(i, i);
+        }
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        assertEquals(1000, map.loadCommitted(entries.entrySet().iterator(), 100));
+        assertEquals(1000, map.sizeAsLong());
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, Integer> map2 = tx2.openMap("data");
+        assertEquals(1000, map2.sizeAsLong());
+        map2.remove(10);
+        assertEquals(999, map2.sizeAsLong());
+        assertEquals(1000, map.sizeAsLong());
+        tx2.commit();
+        assertEquals(999, map.sizeAsLong());
+        tx.commit();
+        s.close();
+    }
+
+    private void testUndoBuffer() {
+        String fileName = getBaseDir() + "/testUndoBuffer.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        for (int i = 0; i < 10; i++) {
+            map.put(i, i);
+        }
+        // small transactions do not use the undo log map
+        MVMap<Long, Object[]> undoLog = s.openMap(TransactionStore.getUndoLogName(false, tx.getId()));
+        assertTrue(undoLog.isEmpty());
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, Integer> map2 = tx2.openMap("data");
+        assertEquals(0, map2.sizeAsLong());
+        assertEquals(10, map.sizeAsLong());
+        long savepoint = tx.setSavepoint();
+        map.put(10, 10);
+        map.remove(0);
+        assertEquals(10, map.sizeAsLong());
+        tx.rollbackToSavepoint(savepoint);
+        assertEquals(0, map.get(0).intValue());
+        assertNull(map.get(10));
+        int count = 0;
+        for (Iterator<Change> it = tx.getChanges(0); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(10, count);
+        assertTrue(undoLog.isEmpty());
+        tx.commit();
+        assertEquals(10, map2.sizeAsLong());
+        tx2.commit();
+
+        // large transactions use the undo log map
+        tx = ts.begin();
+        map = tx.openMap("data");
+        undoLog = s.openMap(TransactionStore.getUndoLogName(false, tx.getId()));
+        for (int i = 0; i < 200; i++) {
+            map.put(i, -i);
+        }
+        assertFalse(undoLog.isEmpty());
+        assertEquals(200, map.sizeAsLong());
+        tx.rollback();
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(10, map.sizeAsLong());
+        assertEquals(9, map.get(9).intValue());
+        tx.commit();
+
+        // the undo log is stored together with the uncommitted changes
+        tx = ts.begin();
+        map = tx.openMap("data");
+        map.put(100, 100);
+        map.remove(0);
+        s.commit();
+        s.closeImmediately();
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        ts.init();
+        for (Transaction t : ts.getOpenTransactions()) {
+            t.rollback();
+        }
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(10, map.sizeAsLong());
+        assertEquals(0, map.get(0).intValue());
+        assertNull(map.get(100));
+        tx.commit();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testDeferredCommit() throws InterruptedException {
+        String fileName = getBaseDir() + "/testDeferredCommit.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        // the background writer does not run in the first part of this test
+        s.setAutoCommitDelay(60_000);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        for (int i = 0; i < 200; i++) {
+            map.put(i, i);
+        }
+        String committedUndoLog = TransactionStore.getUndoLogName(true, tx.getId());
+        tx.commit();
+        // the changes are applied by the background writer
+        assertTrue(s.hasMap(committedUndoLog));
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, Integer> map2 = tx2.openMap("data");
+        assertEquals(200, map2.sizeAsLong());
+        assertEquals(10, map2.get(10).intValue());
+        map2.put(0, -1);
+        map2.remove(1);
+        assertEquals(199, map2.sizeAsLong());
+        tx2.rollback();
+        tx2 = ts.begin();
+        map2 = tx2.openMap("data");
+        assertEquals(0, map2.get(0).intValue());
+        assertEquals(1, map2.get(1).intValue());
+        map2.remove(2);
+        tx2.commit();
+        s.commit();
+        assertTrue(s.hasMap(committedUndoLog));
+        s.setAutoCommitDelay(1);
+        for (int i = 0; i < 1000 && s.hasMap(committedUndoLog); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(s.hasMap(committedUndoLog));
+        s.setAutoCommitDelay(60_000);
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(199, map.sizeAsLong());
+        assertNull(map.get(2));
+        tx.commit();
+
+        // the changes are also applied if no transaction id is free
+        ts.setMaxTransactionId(2);
+        tx = ts.begin();
+        map = tx.openMap("data");
+        for (int i = 200; i < 300; i++) {
+            map.put(i, i);
+        }
+        tx.commit();
+        tx = ts.begin();
+        tx2 = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(299, map.sizeAsLong());
+        tx.commit();
+        tx2.commit();
+
+        // without a background writer, the changes are applied on commit
+        s.setAutoCommitDelay(0);
+        tx = ts.begin();
+        map = tx.openMap("data");
+        for (int i = 300; i < 500; i++) {
+            map.put(i, i);
+        }
+        committedUndoLog = TransactionStore.getUndoLogName(true, tx.getId());
+        tx.commit();
+        assertFalse(s.hasMap(committedUndoLog));
+
+        // committed changes that are not applied yet are visible after a crash
+        s.setAutoCommitDelay(60_000);
+        tx = ts.begin();
+        map = tx.openMap("data");
+        for (int i = 300; i < 400; i++) {
+            map.remove(i);
+        }
+        committedUndoLog = TransactionStore.getUndoLogName(true, tx.getId());
+        tx.commit();
+        s.commit();
+        assertTrue(s.hasMap(committedUndoLog));
+        s.closeImmediately();
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        ts.init();
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(399, map.sizeAsLong());
+        assertNull(map.get(300));
+        tx.commit();
+        ts.endLeftoverTransactions();
+        assertFalse(s.hasMap(committedUndoLog));
+        s.close();
+
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        ts.init();
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(399, map.sizeAsLong());
+        assertEquals(250, map.get(250).intValue());
+        tx.commit();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testCountWithConcurrentChanges() throws Exception {
+        MVStore s = MVStore.open(null);
+        final TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        final int size = 1000;
+        final int writerCount = 3;
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        for (int i = 0; i < size; i++) {
+            map.put(i, i);
+        }
+        tx.commit();
+        Task[] writers = new Task[writerCount];
+        for (int i = 0; i < writerCount; i++) {
+            final int w = i;
+            writers[i] = new Task() {
+
+                @Override
+                public void call() throws Exception {
+                    Random r = new Random(w);
+                    // each writer moves its own keys, so that the number
+                    // of committed entries does not change
+                    ArrayList<Integer> keys = new ArrayList<>();
+                    for (int k = w; k < size; k += writerCount) {
+                        keys.add(k);
+                    }
+                    int nextKey = size + w;
+                    while (!stop) {
+                        Transaction tx = ts.begin();
+                        TransactionMap<Integer, Integer> map = tx.openMap("data");
+                        int moves = 1 + r.nextInt(20);
+                        for (int j = 0; j < moves; j++) {
+                            map.remove(keys.get(j));
+                            assertEquals(size - 1, map.sizeAsLong());
+                            map.put(nextKey + j * writerCount, j);
+                            assertEquals(size, map.sizeAsLong());
+                        }
+                        if (r.nextBoolean()) {
+                            tx.rollback();
+                        } else {
+                            tx.commit();
+                            for (int j = 0; j < moves; j++) {
+                                keys.add(nextKey + j * writerCount);
+                            }
+                            keys.subList(0, moves).clear();
+                        }
+                        nextKey += moves * writerCount;
+                    }
+                }
+            };
+            writers[i].execute();
+        }
+        // the changes of each transaction are visible all at once, or not at
+        // all, and the size does not depend on how the writers interleave
+        for (int i = 0; i < 100000; i++) {
+            tx = ts.begin();
+            map = tx.openMap("data");
+            assertEquals(size, map.sizeAsLong());
+            if ((i & 127) == 0) {
+                map.put(-1, i);
+                assertEquals(size + 1, map.sizeAsLong());
+                tx.rollback();
+            } else {
+                tx.commit();
+            }
+        }
+        for (Task t : writers) {
+            t.get();
+        }
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(size, map.sizeAsLong());
+        assertEquals(size, countEntries(map));
+        tx.commit();
+        s.close();
+    }
+
+    private void checkCount(Transaction[] txs, TransactionMap<Integer, Integer>[] maps, int op) {
+        for (int j = 0; j < txs.length; j++) {
+            if (txs[j] != null) {
+                assertEquals("op: " + op, countEntries(maps[j]), (int) maps[j].sizeAsLong());
+            }
+        }
+    }
+
+    private static int countEntries(TransactionMap<Integer, Integer> map) {
+        int count = 0;
+        for (Iterator<Integer> it = map.keyIterator(null); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private void testPositionWithChanges() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> m = tx.openMap("data");
+        for (int i = 0; i < 1000; i += 2) {
+            m.put(i, i);
+        }
+        tx.commit();
+        Transaction[] txs = new Transaction[3];
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        TransactionMap<Integer, Integer>[] maps = new TransactionMap[txs.length];
+        Random r = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int x = r.nextInt(txs.length);
+            if (txs[x] == null) {
+                txs[x] = ts.begin();
+                maps[x] = txs[x].openMap("data");
+            }
+            TransactionMap<Integer, Integer> map = maps[x];
+            int k = r.nextInt(1000);
+            try {
+                switch (r.nextInt(20)) {
+                case 0:
+                    txs[x].commit();
+                    txs[x] = null;
+                    break;
+                case 1:
+                    txs[x].rollback();
+                    txs[x] = null;
+                    break;
+                default:
+                    if (r.nextBoolean()) {
+                        map.put(k, i);
+                    } else {
+                        map.remove(k);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // concurrent update
+                txs[x].rollback();
+                txs[x] = null;
+            }
+            for (int j = 0; j < txs.length; j++) {
+                if (txs[j] != null) {
+                    Integer from = r.nextInt(10) == 0 ? null : r.nextInt(1000);
+                    Integer to = r.nextInt(10) == 0 ? null : r.nextInt(1000);
+                    int offset = r.nextInt(r.nextBoolean() ? 10 : 600);
+                    String op = "op: " + i + " from: " + from + " to: " + to + " offset: " + offset;
+                    int count = 0;
+                    for (Iterator<Integer> it = maps[j].keyIterator(from, to, false); it.hasNext(); it.next()) {
+                        count++;
+                    }
+                    assertEquals(op, count, (int) maps[j].sizeAsLong(from, to));
+                    Iterator<Integer> it = maps[j].keyIterator(from, null, false);
+                    for (int o = 0; o < offset && it.hasNext(); o++) {
+                        it.next();
+                    }
+                    Integer key = maps[j].getKey(from, offset);
+                    assertEquals(op, it.hasNext() ? it.next() : -1, key == null ? -1 : key);
+                }
+            }
+        }
+        s.close();
+    }
+
+    private void testAppendIfAbsent() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, String> map = tx.openMap("data", null, null, true);
+        for (int i = 0; i < 100; i++) {
+            assertNull(map.appendIfAbsent(i * 2, "x" + i));
+        }
+        // not the highest key: added the usual way
+        assertNull(map.appendIfAbsent(11, "y"));
+        assertEquals("x5", map.appendIfAbsent(10, "z"));
+        assertEquals(101, map.size());
+        tx.commit();
+
+        tx = ts.begin();
+        map = tx.openMap("data");
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, String> map2 = tx2.openMap("data");
+        for (int i = 100; i < 200; i++) {
+            assertNull(map.appendIfAbsent(i * 2, "x" + i));
+        }
+        // the uncommitted entries are not visible, but can not be overwritten
+        assertNull(map2.get(200));
+        assertEquals(101, map2.size());
+        try {
+            map2.appendIfAbsent(1000, "w");
+            map2.appendIfAbsent(200, "w");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        tx2.rollback();
+        tx.rollback();
+
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(101, map.size());
+        assertEquals("x99", map.get(198));
+        assertNull(map.get(200));
+        assertNull(map.get(1000));
+        tx.commit();
+        s.close();
+    }
+
+    private void testPutAll() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, String> map = tx.openMap("data");
+        HashMap<Integer, String> m = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            m.put(i * 7 % 1000, "x" + i);
+        }
+        map.putAll(m);
+        assertEquals(1000, map.size());
+        assertEquals("x3", map.get(21));
+        tx.commit();
+
+        tx = ts.begin();
+        map = tx.openMap("data");
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, String> map2 = tx2.openMap("data");
+        map2.put(500, "locked");
+        m.clear();
+        for (int i = 490; i < 1010; i++) {
+            m.put(i, "y" + i);
+        }
+        // the locked entry is updated last, and times out
+        try {
+            map.putAll(m);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        assertEquals("y499", map.get(499));
+        assertEquals("y501", map.get(501));
+        assertEquals("y1009", map.get(1009));
+        assertEquals("x" + 500 * 143 % 1000, map.get(500));
+        // not visible to the other transaction
+        assertEquals("x" + 501 * 143 % 1000, map2.get(501));
+        assertNull(map2.get(1009));
+        tx2.rollback();
+
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 2) {
+            keys.add(i);
+        }
+        map.removeAll(keys);
+        assertEquals(510, map.size());
+        assertNull(map.get(0));
+        assertEquals("y1009", map.get(1009));
+        tx.rollback();
+
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(1000, map.size());
+        assertEquals("x3", map.get(21));
+        assertNull(map.get(1009));
+        tx.commit();
+        s.close();
+    }
+
     private void testConcurrentUpdate() {
         MVStore s;
         TransactionStore ts;
@@ -277,6 +904,167 @@ public class TestTransactionStore extends TestBase {
         s.close();
     }
 
+    private void testWaitQueue() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+
+        Transaction tx0 = begin(ts, 100);
+        tx0.openMap("data").put(1, 0);
+
+        int waitCount = 3;
+        final Transaction[] txs = new Transaction[waitCount];
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        Task[] tasks = new Task[waitCount];
+        for (int i = 0; i < waitCount; i++) {
+            final int x = i;
+            txs[i] = begin(ts, i);
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    txs[x].openMap("data").put(1, x + 1);
+                    order.add(x);
+                }
+            };
+            tasks[i].execute();
+            // the transactions are queued in the order they start to wait
+            while (txs[i].getWaitStart() == 0) {
+                Thread.sleep(1);
+            }
+            assertEquals(100, txs[i].getBlockerId());
+        }
+        tx0.commit();
+        for (int i = 0; i < waitCount; i++) {
+            tasks[i].get();
+            assertEquals(i + 1, order.size());
+            assertEquals(i, order.get(i).intValue());
+            // the next transaction now waits for the one that got the entry
+            for (int j = i + 1; j < waitCount; j++) {
+                assertEquals(i, txs[j].getBlockerId());
+            }
+            txs[i].commit();
+        }
+        TransactionMap<Integer, Integer> map = ts.begin().openMap("data");
+        assertEquals(waitCount, map.get(1).intValue());
+        s.close();
+    }
+
+    private void testWaitQueueDeadlock() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+
+        final Transaction tx1 = begin(ts, 1);
+        final Transaction tx2 = begin(ts, 2);
+        TransactionMap<Integer, Integer> map1 = tx1.openMap("data");
+        tx2.openMap("data").put(2, 2);
+        map1.put(1, 1);
+        Task task = new Task() {
+            @Override
+            public void call() throws Exception {
+                tx2.openMap("data").put(1, 2);
+            }
+        };
+        task.execute();
+        while (tx2.getWaitStart() == 0) {
+            Thread.sleep(1);
+        }
+        long start = System.nanoTime();
+        try {
+            map1.put(2, 1);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTIONS_DEADLOCK, DataUtils.getErrorCode(e.getMessage()));
+        }
+        // detected when waiting, not after the lock timeout
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        assertEquals(0, tx1.getWaitStart());
+        tx1.rollback();
+        task.get();
+        tx2.commit();
+        map1 = ts.begin().openMap("data");
+        assertEquals(2, map1.get(1).intValue());
+        s.close();
+    }
+
+    private void testWaitQueueDeadlockAfterHandOver() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+
+        Transaction tx0 = begin(ts, 0);
+        final Transaction tx1 = begin(ts, 1);
+        final Transaction tx2 = begin(ts, 2);
+        final Transaction tx3 = begin(ts, 3);
+        tx0.openMap("data").put(1, 0);
+        tx3.openMap("data").put(3, 3);
+        // tx2 and tx3 are queued for the entry of tx0
+        Task task2 = new Task() {
+            @Override
+            public void call() throws Exception {
+                tx2.openMap("data").put(1, 2);
+            }
+        };
+        task2.execute();
+        while (tx2.getWaitStart() == 0) {
+            Thread.sleep(1);
+        }
+        Task task3 = new Task() {
+            @Override
+            public void call() throws Exception {
+                tx3.openMap("data").put(1, 3);
+            }
+        };
+        task3.execute();
+        while (tx3.getWaitStart() == 0) {
+            Thread.sleep(1);
+        }
+        Task task1 = new Task() {
+            @Override
+            public void call() throws Exception {
+                tx1.openMap("data").put(3, 1);
+            }
+        };
+        long start;
+        // tx2 is woken up, but can not retry before tx1 took the entry and
+        // waits for tx3
+        synchronized (tx2) {
+            tx0.commit();
+            tx1.openMap("data").put(1, 1);
+            task1.execute();
+            while (tx1.getWaitStart() == 0) {
+                Thread.sleep(1);
+            }
+            start = System.nanoTime();
+        }
+        // when tx2 is queued again, tx1 is the blocker of tx3, and tx3 is
+        // woken up because it is deadlocked now
+        Exception e = task3.getException();
+        assertNotNull(e);
+        assertEquals(DataUtils.ERROR_TRANSACTIONS_DEADLOCK, DataUtils.getErrorCode(e.getMessage()));
+        // detected when the blocker changed, not after the lock timeout
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        tx3.rollback();
+        task1.get();
+        tx1.commit();
+        task2.get();
+        tx2.commit();
+        TransactionMap<Integer, Integer> map = ts.begin().openMap("data");
+        assertEquals(2, map.get(1).intValue());
+        assertEquals(1, map.get(3).intValue());
+        s.close();
+    }
+
+    private static Transaction begin(TransactionStore ts, int ownerId) {
+        return ts.begin(new TransactionStore.RollbackListener() {
+            @Override
+            public void onRollback(MVMap<Object, VersionedValue> map, Object key,
+                    VersionedValue existingValue, VersionedValue restoredValue) {
+                // ignore
+            }
+        }, 10000, ownerId);
+    }
+
     private void testRepeatedChange() {
         MVStore s;
         TransactionStore ts;
@@ -1018,4 +1806,70 @@ public class TestTransactionStore extends TestBase {
         ts.close();
     }
 
+    private void testGroupCommit() throws Exception {
+        String fileName = getBaseDir() + "/testGroupCommit.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                groupCommitDelay(10).
+                groupCommitSize(4).
+                open();
+        final TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        int threadCount = 4;
+        final int count = 50;
+        Task[] tasks = new Task[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int x = i;
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    for (int j = 0; j < count; j++) {
+                        Transaction tx = ts.begin();
+                        TransactionMap<Integer, Integer> map = tx.openMap("data");
+                        map.put(x * count + j, j);
+                        tx.commit();
+                    }
+                }
+            };
+            tasks[i].execute();
+        }
+        for (Task t : tasks) {
+            t.get();
+        }
+        assertEquals(threadCount * count, s.getGroupCommitRequestCount());
+        long batches = s.getGroupCommitBatchCount();
+        assertTrue(batches > 0 && batches <= threadCount * count);
+        assertTrue(s.getGroupCommitMaxBatchSize() >= 1);
+        assertTrue(s.getGroupCommitMaxBatchSize() <= threadCount);
+        assertTrue(s.getGroupCommitWaitTime() >= s.getGroupCommitSyncTime());
+        // a rolled back transaction does not wait
+        Transaction tx = ts.begin();
+        tx.openMap("data").put(-1, -1);
+        tx.rollback();
+        assertEquals(threadCount * count, s.getGroupCommitRequestCount());
+        // an interrupted commit still waits for the sync, and keeps the interrupt
+        tx = ts.begin();
+        tx.openMap("data").put(-2, -2);
+        Thread.currentThread().interrupt();
+        tx.commit();
+        assertTrue(Thread.interrupted());
+        assertEquals(threadCount * count + 1, s.getGroupCommitRequestCount());
+        // all committed changes are stored without an explicit commit
+        s.closeImmediately();
+
+        s = MVStore.open(fileName);
+        TransactionStore ts2 = new TransactionStore(s);
+        ts2.init();
+        tx = ts2.begin();
+        TransactionMap<Integer, Integer> map = tx.openMap("data");
+        assertEquals(threadCount * count + 1, map.sizeAsLong());
+        for (int i = 0; i < threadCount * count; i++) {
+            assertEquals(i % count, map.get(i).intValue());
+        }
+        assertEquals(-2, map.get(-2).intValue());
+        tx.commit();
+        s.close();
+    }
 }
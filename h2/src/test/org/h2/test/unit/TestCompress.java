@@ -19,6 +19,8 @@ import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
+import org.h2.compress.CompressDeflate;
+import org.h2.compress.CompressLZ4;
 import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
@@ -137,6 +139,7 @@ public class TestCompress extends TestDb {
             String test = b.toString();
             byte[] in = test.getBytes();
             assertEquals(in, utils.expand(utils.compress(in, "LZF")));
+            assertEquals(in, utils.expand(utils.compress(in, "LZ4")));
         }
     }
 
@@ -155,7 +158,15 @@ public class TestCompress extends TestDb {
             }
         }
         conn.close();
-        Compressor compress = new CompressLZF();
+        String fileName = "memFS:compress" + Constants.SUFFIX_MV_FILE;
+        for (Compressor compress : new Compressor[] {
+                new CompressLZF(), new CompressLZ4(), new CompressDeflate() }) {
+            testDatabase(fileName, compress);
+        }
+    }
+
+    private void testDatabase(String fileName, Compressor compress) throws Exception {
+        String algorithm = compress.getClass().getSimpleName();
         int pageSize = Constants.DEFAULT_PAGE_SIZE;
         byte[] buff2 = new byte[pageSize];
         byte[] test = new byte[2 * pageSize];
@@ -163,7 +174,7 @@ public class TestCompress extends TestDb {
         for (int j = 0; j < 4; j++) {
             long time = System.nanoTime();
             for (int i = 0; i < 1000; i++) {
-                InputStream in = FileUtils.newInputStream("memFS:compress.h2.db");
+                InputStream in = FileUtils.newInputStream(fileName);
                 while (true) {
                     int len = in.read(buff2);
                     if (len < 0) {
@@ -173,14 +184,15 @@ public class TestCompress extends TestDb {
                 }
                 in.close();
             }
-            System.out.println("compress: " +
+            System.out.println(algorithm + " compress: " +
                     TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - time) +
                     " ms");
         }
 
         for (int j = 0; j < 4; j++) {
             ArrayList<byte[]> comp = new ArrayList<>();
-            InputStream in = FileUtils.newInputStream("memFS:compress.h2.db");
+            long length = 0, compressedLength = 0;
+            InputStream in = FileUtils.newInputStream(fileName);
             while (true) {
                 int len = in.read(buff2);
                 if (len < 0) {
@@ -189,6 +201,8 @@ public class TestCompress extends TestDb {
                 int b = compress.compress(buff2, pageSize, test, 0);
                 byte[] data = Arrays.copyOf(test, b);
                 comp.add(data);
+                length += pageSize;
+                compressedLength += b;
             }
             in.close();
             byte[] result = new byte[pageSize];
@@ -199,9 +213,9 @@ public class TestCompress extends TestDb {
                     compress.expand(data, 0, data.length, result, 0, pageSize);
                 }
             }
-            System.out.println("expand: " +
+            System.out.println(algorithm + " expand: " +
                     TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - time) +
-                    " ms");
+                    " ms, ratio: " + (100 * compressedLength / Math.max(1, length)) + "%");
         }
     }
 
@@ -245,7 +259,7 @@ public class TestCompress extends TestDb {
             }
             CompressTool utils = CompressTool.getInstance();
             // level 9 is highest, strategy 2 is huffman only
-            for (String a : new String[] { "LZF", "No",
+            for (String a : new String[] { "LZF", "LZ4", "No",
                     "Deflate", "Deflate level 9 strategy 2" }) {
                 long time = System.nanoTime();
                 byte[] out = utils.compress(b, a);